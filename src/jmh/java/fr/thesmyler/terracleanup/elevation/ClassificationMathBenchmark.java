@@ -0,0 +1,107 @@
+package fr.thesmyler.terracleanup.elevation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import fr.thesmyler.terracleanup.util.IntRange;
+import fr.thesmyler.terracleanup.util.Packing;
+import fr.thesmyler.terracleanup.util.coordinates.Region3dColumn;
+import fr.thesmyler.terracleanup.util.coordinates.Region3dPosition;
+
+/**
+ * Measures {@link IntRange} operations and {@link ElevationClassifier#classifyFromRange(IntRange, IntRange)},
+ * over a fixed set of section and elevation ranges that covers every classification,
+ * against the primitive classification path that the classifier uses internally.
+ * Run with -prof gc to check that the primitive path does not allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ClassificationMathBenchmark {
+	
+	private static final int RANGE_COUNT = 1024;
+	
+	private ElevationClassifier<Region3dColumn, Region3dPosition> classifier;
+	private IntRange[] sections;
+	private IntRange[] elevations;
+	private long[] packedElevations;
+	private List<Region3dPosition> positions;
+	private ElevationClassification[] classifications;
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		SyntheticElevationSource source = SyntheticElevationSource.hills();
+		this.classifier = new ElevationClassifier<>(source, 8, 1000, 1000, 1, null, ElevationClassifier.DEFAULT_CACHE_BUDGET, false);
+		this.sections = new IntRange[RANGE_COUNT];
+		this.elevations = new IntRange[RANGE_COUNT];
+		this.packedElevations = new long[RANGE_COUNT];
+		this.positions = new ArrayList<>();
+		this.classifications = new ElevationClassification[RANGE_COUNT];
+		for(int i = 0; i < RANGE_COUNT; i++) {
+			int y = (i % 64 - 32) * Region3dPosition.SIZE;
+			this.sections[i] = new IntRange(y, y + Region3dPosition.SIZE - 1);
+			int ground = (int) source.elevation(i * 977, i * 1319);
+			this.elevations[i] = i % 17 == 0 ? null: new IntRange(ground - i % 200, ground + i % 300);
+			this.packedElevations[i] = Packing.packRange(this.elevations[i]);
+			this.positions.add(new Region3dPosition(0, i % 64 - 32, 0));
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.classifier.terminate();
+	}
+	
+	@Benchmark
+	public void classifyFromRange(Blackhole blackhole) {
+		for(int i = 0; i < RANGE_COUNT; i++) {
+			blackhole.consume(this.classifier.classifyFromRange(this.sections[i], this.elevations[i]));
+		}
+	}
+	
+	@Benchmark
+	public void classifyFromPackedRange(Blackhole blackhole) {
+		for(int i = 0; i < RANGE_COUNT; i++) {
+			int minY = this.sections[i].lowerBound();
+			blackhole.consume(this.classifier.classifyFromPackedRange(minY, minY + Region3dPosition.SIZE - 1, this.packedElevations[i]));
+		}
+	}
+	
+	/**
+	 * The per section loop of {@link ElevationClassifier#classifyColumn(fr.thesmyler.terracleanup.util.coordinates.IPosition2d, List)}, for a column whose range is cached
+	 */
+	@Benchmark
+	public ElevationClassification[] classifySections() {
+		this.classifier.classifySections(this.positions, this.packedElevations[1], this.classifications);
+		return this.classifications;
+	}
+	
+	@Benchmark
+	public void intersects(Blackhole blackhole) {
+		for(int i = 0; i < RANGE_COUNT; i++) {
+			IntRange elevation = this.elevations[i];
+			if(elevation != null) blackhole.consume(elevation.intersects(this.sections[i]));
+		}
+	}
+	
+	@Benchmark
+	public void extendAndCompare(Blackhole blackhole) {
+		for(int i = 0; i < RANGE_COUNT; i++) {
+			IntRange elevation = this.elevations[i];
+			if(elevation != null) blackhole.consume(elevation.extendUp(1000).extendDown(1000).above(this.sections[i]));
+		}
+	}
+
+}
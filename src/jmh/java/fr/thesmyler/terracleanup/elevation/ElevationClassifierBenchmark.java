@@ -0,0 +1,114 @@
+package fr.thesmyler.terracleanup.elevation;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import fr.thesmyler.terracleanup.util.IntRange;
+import fr.thesmyler.terracleanup.util.coordinates.Region3dColumn;
+import fr.thesmyler.terracleanup.util.coordinates.Region3dPosition;
+
+/**
+ * Measures the elevation classification hot paths against {@link SyntheticElevationSource#hills()}.
+ * <br>
+ * Columns are walked along a fixed pseudo-random sequence, so every run sees the same positions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ElevationClassifierBenchmark {
+	
+	/** Number of distinct columns the benchmarks cycle through */
+	private static final int COLUMN_COUNT = 1 << 12;
+	
+	/** Number of sections per batch in batch benchmarks, they are spread over as many columns */
+	private static final int BATCH_SIZE = 256;
+	
+	@Param({"1", "4", "8", "16", "64"})
+	public int stepSize;
+	
+	private ElevationClassifier<Region3dColumn, Region3dPosition> classifier;
+	private Region3dColumn[] columns;
+	private Region3dPosition[] positions;
+	private List<Region3dPosition> batchView;
+	private ElevationClassification[] results = new ElevationClassification[BATCH_SIZE];
+	private int next;
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		// A budget of a quarter of the columns, so classify() sees both hits and misses
+		long cacheBudget = COLUMN_COUNT / 4 * ColumnElevationCache.ESTIMATED_ENTRY_SIZE;
+		this.classifier = new ElevationClassifier<>(SyntheticElevationSource.hills(), this.stepSize, 1000, 1000, 1, null, cacheBudget, false);
+		this.columns = new Region3dColumn[COLUMN_COUNT];
+		this.positions = new Region3dPosition[COLUMN_COUNT];
+		long seed = 0x5DEECE66DL;
+		for(int i = 0; i < COLUMN_COUNT; i++) {
+			seed = seed * 6364136223846793005L + 1442695040888963407L;
+			int x = (int)(seed >> 40) % 20000;
+			int z = (int)(seed >> 20) % 20000;
+			int y = (int)(seed & 0xF) - 8;
+			this.columns[i] = new Region3dColumn(x, z);
+			this.positions[i] = new Region3dPosition(x, y, z);
+		}
+		this.batchView = Arrays.asList(this.positions);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.classifier.terminate();
+	}
+	
+	private int nextIndex() {
+		int index = this.next;
+		this.next = (index + 1) & (COLUMN_COUNT - 1);
+		return index;
+	}
+	
+	@Benchmark
+	public IntRange computeElevationRange() throws InterruptedException, ExecutionException {
+		return this.classifier.computeElevationRange(this.columns[this.nextIndex()]).get();
+	}
+	
+	@Benchmark
+	public ElevationClassification classify() throws InterruptedException, ExecutionException {
+		return this.classifier.classify(this.positions[this.nextIndex()]).get();
+	}
+	
+	/**
+	 * Classifies a batch of sections one future at a time, to compare with {@link #classifyAll()}
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public ElevationClassification[] classifyEach() throws InterruptedException, ExecutionException {
+		List<Region3dPosition> batch = this.nextBatch();
+		for(int i = 0; i < BATCH_SIZE; i++) this.results[i] = this.classifier.classify(batch.get(i)).get();
+		return this.results;
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public ElevationClassification[] classifyAll() throws InterruptedException, ExecutionException {
+		this.classifier.classifyAll(this.nextBatch(), this.results).get();
+		return this.results;
+	}
+	
+	private List<Region3dPosition> nextBatch() {
+		int start = this.next & ~(BATCH_SIZE - 1);
+		this.next = (start + BATCH_SIZE) & (COLUMN_COUNT - 1);
+		return this.batchView.subList(start, start + BATCH_SIZE);
+	}
+
+}
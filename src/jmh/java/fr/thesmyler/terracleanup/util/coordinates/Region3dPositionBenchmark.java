@@ -0,0 +1,56 @@
+package fr.thesmyler.terracleanup.util.coordinates;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import fr.thesmyler.terracleanup.files.Region3dFilenameClassifier;
+
+/**
+ * Measures how fast region file names are validated and parsed, as done for every file of a region3d folder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class Region3dPositionBenchmark {
+	
+	private static final int PATH_COUNT = 1024;
+	
+	private Path[] paths;
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		this.paths = new Path[PATH_COUNT];
+		for(int i = 0; i < PATH_COUNT; i++) {
+			Region3dPosition position = new Region3dPosition(i * 37 - 20000, i % 64 - 32, 19000 - i * 41);
+			this.paths[i] = Paths.get("world", "region3d", position.fileName());
+		}
+	}
+	
+	@Benchmark
+	public void parse(Blackhole blackhole) {
+		for(Path path: this.paths) {
+			blackhole.consume(new Region3dPosition(path));
+		}
+	}
+	
+	@Benchmark
+	public void validateAndParse(Blackhole blackhole) {
+		for(Path path: this.paths) {
+			if(Region3dFilenameClassifier.isValidFileName(path.getFileName().toString())) {
+				blackhole.consume(new Region3dPosition(path));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+package fr.thesmyler.terracleanup;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import fr.thesmyler.terracleanup.elevation.ElevationClassification;
+import fr.thesmyler.terracleanup.files.Region3dScanner;
+import fr.thesmyler.terracleanup.util.Formatting;
+
+/**
+ * Periodically prints the progress of a run: throughput, estimated time remaining and counts per classification.
+ * <br>
+ * It only reads counters, so it never slows down or blocks classification.
+ */
+public class ProgressReporter implements Closeable {
+
+	private final Region3dScanner scanner;
+	private final Region3dCleanupReport report;
+	private final PrintStream out;
+	private final long start = System.nanoTime();
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * Starts reporting
+	 *
+	 * @param scanner the scanner regions are found by
+	 * @param report the report classified regions are added to
+	 * @param out where to print progress
+	 * @param intervalMillis the interval between two progress lines, in milliseconds
+	 */
+	public ProgressReporter(Region3dScanner scanner, Region3dCleanupReport report, PrintStream out, long intervalMillis) {
+		this.scanner = scanner;
+		this.report = report;
+		this.out = out;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "Progress reporter");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.scheduler.scheduleAtFixedRate(() -> this.out.print(this.progressLine(System.nanoTime() - this.start) + "\r"), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param elapsedNanos time since the start of the run
+	 * @return a line describing the current progress
+	 */
+	String progressLine(long elapsedNanos) {
+		double seconds = Math.max(elapsedNanos / 1e9d, 1e-3);
+		long found = this.scanner.foundCount();
+		long processed = this.scanner.processedCount();
+		long bytes = 0;
+		StringBuilder classes = new StringBuilder();
+		for(ElevationClassification classification: ElevationClassification.values()) {
+			long count = this.report.getCount(classification);
+			bytes += this.report.getSize(classification);
+			if(count > 0) classes.append(String.format(" | %s: %d", classification, count));
+		}
+		double rate = processed / seconds;
+		String remaining;
+		if(!this.scanner.isListingDone()) {
+			remaining = "listing files";
+		} else if(rate > 0) {
+			remaining = formatDuration((long) ((found - processed) / rate));
+		} else {
+			remaining = "unknown";
+		}
+		return String.format("%d/%d files | %.0f files/s | %s/s | remaining: %s%s",
+				processed,
+				found,
+				rate,
+				Formatting.humanReadableByteCountBin((long) (bytes / seconds)),
+				remaining,
+				classes);
+	}
+
+	private static String formatDuration(long seconds) {
+		return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+	}
+
+	/**
+	 * Stops reporting and prints a last progress line
+	 */
+	@Override
+	public void close() {
+		this.scheduler.shutdownNow();
+		try {
+			this.scheduler.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.out.println(this.progressLine(System.nanoTime() - this.start));
+	}
+
+}
@@ -1,55 +1,227 @@
 package fr.thesmyler.terracleanup;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.nio.file.Paths;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 import fr.thesmyler.terracleanup.elevation.ElevationClassification;
 import fr.thesmyler.terracleanup.util.Formatting;
+import fr.thesmyler.terracleanup.util.coordinates.Region3dPosition;
+import fr.thesmyler.terracleanup.util.metrics.LatencyHistogram;
+import fr.thesmyler.terracleanup.util.metrics.Metrics;
 
-public class Region3dCleanupReport {
+/**
+ * Collects the classification results of region files.
+ * <br>
+ * Regions are not kept in memory: their coordinates are streamed to a spill file per classification as they are added,
+ * and only the counters are kept in memory.
+ */
+public class Region3dCleanupReport implements Closeable {
 	
-	private ConcurrentMap<ElevationClassification, Queue<Path>> result = new ConcurrentHashMap<>();
-	private ConcurrentMap<ElevationClassification, AtomicLong> resultSizes = new ConcurrentHashMap<>();
+	private final Path region3dFolder;
+	private final Path spillFolder;
+	private final Map<ElevationClassification, ClassificationResults> results = new EnumMap<>(ElevationClassification.class);
 	
-	public Region3dCleanupReport() {
+	private final Metrics metrics = new Metrics();
+	private final LatencyHistogram sizeTime = this.metrics.histogram("file_size");
+	private final LatencyHistogram appendTime = this.metrics.histogram("append");
+	
+	private volatile IOException failure;
+	
+	/**
+	 * @param region3dFolder the folder the region files are in
+	 * @throws IOException if the spill files cannot be created
+	 */
+	public Region3dCleanupReport(Path region3dFolder) throws IOException {
+		this.region3dFolder = region3dFolder;
+		this.spillFolder = Files.createTempDirectory("terracleanup-report");
 		for(ElevationClassification classification: ElevationClassification.values()) {
-			result.put(classification, new ConcurrentLinkedQueue<Path>());
-			resultSizes.put(classification, new AtomicLong(0));
+			this.results.put(classification, new ClassificationResults(this.spillFolder.resolve(classification.name())));
 		}
 	}
 	
-	public synchronized void addPath(Path path, ElevationClassification classification) {
-		this.result.get(classification).add(path);
+	/**
+	 * Adds a region to this report. This can safely be called from multiple threads.
+	 *
+	 * @param position the position of the region
+	 * @param classification the classification of the region
+	 * @throws UncheckedIOException if the region cannot be written to the spill file, the report then fails to be read back
+	 */
+	public void add(Region3dPosition position, ElevationClassification classification) {
+		long size = 0;
+		long start = System.nanoTime();
 		try {
-			resultSizes.get(classification).addAndGet(Files.size(path));
+			size = Files.size(this.region3dFolder.resolve(position.fileName()));
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		this.sizeTime.recordSince(start);
+		this.add(position, classification, size);
 	}
 	
-	public synchronized int getCount(ElevationClassification classification) {
-		return this.result.get(classification).size();
+	/**
+	 * Adds a region whose file size is already known to this report. This can safely be called from multiple threads.
+	 *
+	 * @param position the position of the region
+	 * @param classification the classification of the region
+	 * @param size the size of the region's file, in bytes
+	 * @throws UncheckedIOException if the region cannot be written to the spill file, the report then fails to be read back
+	 */
+	public void add(Region3dPosition position, ElevationClassification classification, long size) {
+		ClassificationResults results = this.results.get(classification);
+		long start = System.nanoTime();
+		try {
+			results.append(position);
+		} catch (IOException e) {
+			// The report cannot be trusted anymore, reading it back fails from now on instead of silently missing regions
+			if(this.failure == null) this.failure = e;
+			throw new UncheckedIOException(e);
+		}
+		this.appendTime.recordSince(start);
+		results.count.increment();
+		results.size.add(size);
 	}
 	
-	public synchronized long getSize(ElevationClassification classification) {
-		return this.resultSizes.get(classification).longValue();
+	/**
+	 * Adds the regions listed in a report printed with {@link #printTo(PrintStream)}, e.g. by a run on another shard of the world.
+	 * Regions are looked up by file name in this report's region3d folder, so their sizes are read again.
+	 *
+	 * @param reportFile
+	 * @throws IOException if the report cannot be read or is not a valid report
+	 */
+	public void addFrom(Path reportFile) throws IOException {
+		try(BufferedReader reader = Files.newBufferedReader(reportFile)) {
+			ElevationClassification classification = null;
+			String line;
+			for(int number = 1; (line = reader.readLine()) != null; number++) {
+				if(line.isEmpty()) continue;
+				try {
+					if(line.startsWith("## ") && line.endsWith(" ##")) {
+						classification = ElevationClassification.valueOf(line.substring(3, line.indexOf(':')));
+					} else if(classification != null) {
+						this.add(new Region3dPosition(Paths.get(line)), classification);
+					} else {
+						throw new IllegalArgumentException();
+					}
+				} catch(IllegalArgumentException | IndexOutOfBoundsException e) {
+					throw new IOException(String.format("%s is not a valid report, line %d: %s", reportFile, number, line));
+				}
+			}
+		}
 	}
 	
-	public void printTo(PrintStream out) {
-		for(ElevationClassification c: ElevationClassification.values()) {
-			out.println(String.format("## %s: %d (%s) ##", c.toString(), this.result.get(c).size(), Formatting.humanReadableByteCountBin(this.resultSizes.get(c).get())));
-			for(Path p: this.result.get(c)) {
-				out.println(p);
+	public long getCount(ElevationClassification classification) {
+		return this.results.get(classification).count.sum();
+	}
+	
+	public long getSize(ElevationClassification classification) {
+		return this.results.get(classification).size.sum();
+	}
+	
+	/**
+	 * Reads back the regions that were added with the given classification.
+	 * This should not be called while regions are still being added.
+	 *
+	 * @param classification
+	 * @param consumer
+	 * @throws IOException if the spill file cannot be read, or if a region could not be added to this report
+	 */
+	public void forEach(ElevationClassification classification, Consumer<Region3dPosition> consumer) throws IOException {
+		IOException failure = this.failure;
+		if(failure != null) throw new IOException("Some regions could not be added to the report", failure);
+		ClassificationResults results = this.results.get(classification);
+		results.flush();
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(results.file)))) {
+			while(true) {
+				int x, y, z;
+				try {
+					x = in.readInt();
+					y = in.readInt();
+					z = in.readInt();
+				} catch(EOFException e) {
+					break;
+				}
+				consumer.accept(new Region3dPosition(x, y, z));
 			}
+		}
+	}
+	
+	/**
+	 * @return the instrumentation of this report: how long looking up file sizes and appending to spill files takes
+	 */
+	public Metrics metrics() {
+		return this.metrics;
+	}
+	
+	public void printTo(PrintStream out) throws IOException {
+		for(ElevationClassification c: ElevationClassification.values()) {
+			out.println(String.format("## %s: %d (%s) ##", c.toString(), this.getCount(c), Formatting.humanReadableByteCountBin(this.getSize(c))));
+			this.forEach(c, p -> out.println(this.region3dFolder.resolve(p.fileName())));
 			out.println();
 		}
 	}
+	
+	/**
+	 * Deletes the spill files of this report, this can be called more than once
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			for(ClassificationResults results: this.results.values()) {
+				try {
+					results.close();
+				} finally {
+					Files.deleteIfExists(results.file);
+				}
+			}
+		} finally {
+			Files.deleteIfExists(this.spillFolder);
+		}
+	}
+	
+	private static class ClassificationResults {
+		
+		final LongAdder count = new LongAdder();
+		final LongAdder size = new LongAdder();
+		final Path file;
+		final DataOutputStream out;
+		boolean closed = false;
+		
+		ClassificationResults(Path file) throws IOException {
+			this.file = file;
+			this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+		}
+		
+		synchronized void append(Region3dPosition position) throws IOException {
+			this.out.writeInt(position.x());
+			this.out.writeInt(position.y());
+			this.out.writeInt(position.z());
+		}
+		
+		synchronized void flush() throws IOException {
+			this.out.flush();
+		}
+		
+		synchronized void close() throws IOException {
+			if(this.closed) return;
+			this.closed = true;
+			this.out.close();
+		}
+	
+	}
 
 }
@@ -5,10 +5,18 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.file.Files;
-import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.DefaultParser;
@@ -20,11 +28,28 @@ import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.simple.SimpleLogger;
 import org.apache.logging.log4j.util.PropertiesUtil;
 
+import fr.thesmyler.terracleanup.api.IElevationSource;
+import fr.thesmyler.terracleanup.content.Region3dContentClassifier;
+import fr.thesmyler.terracleanup.elevation.DatasetElevationSource;
 import fr.thesmyler.terracleanup.elevation.ElevationClassification;
 import fr.thesmyler.terracleanup.elevation.ElevationClassifier;
+import fr.thesmyler.terracleanup.elevation.ElevationRangeStore;
+import fr.thesmyler.terracleanup.elevation.TileDirectoryElevationSource;
+import fr.thesmyler.terracleanup.files.ClassificationJournal;
+import fr.thesmyler.terracleanup.files.CleanupResult;
+import fr.thesmyler.terracleanup.files.Region2dCleaner;
+import fr.thesmyler.terracleanup.files.Region3dCleaner;
+import fr.thesmyler.terracleanup.files.Region3dScanner;
+import fr.thesmyler.terracleanup.files.Region3dWatcher;
+import fr.thesmyler.terracleanup.files.RegionIndex;
+import fr.thesmyler.terracleanup.files.Shard;
+import fr.thesmyler.terracleanup.util.ConcurrentLongMap;
 import fr.thesmyler.terracleanup.util.Formatting;
+import fr.thesmyler.terracleanup.util.WorkerPools;
 import fr.thesmyler.terracleanup.util.coordinates.Region3dColumn;
 import fr.thesmyler.terracleanup.util.coordinates.Region3dPosition;
+import fr.thesmyler.terracleanup.util.metrics.Metrics;
+import fr.thesmyler.terracleanup.util.metrics.MetricsDumper;
 import net.buildtheearth.terraminusminus.TerraConfig;
 import net.buildtheearth.terraminusminus.TerraConstants;
 import net.buildtheearth.terraminusminus.TerraMinusMinus;
@@ -79,8 +104,8 @@ public class TerraCleanupHeadless {
 		int processors = Runtime.getRuntime().availableProcessors();
 		if(cmd.hasOption(OPTION_THREADS)) {
 			try {
-				below = Integer.parseInt(cmd.getOptionValue(OPTION_THREADS));
-				if(below < 1) throw new NumberFormatException();
+				processors = Integer.parseInt(cmd.getOptionValue(OPTION_THREADS));
+				if(processors < 1) throw new NumberFormatException();
 			} catch(NumberFormatException e) {
 				System.err.println("Invalid number of thread specifed");
 				System.exit(1);
@@ -98,9 +123,9 @@ public class TerraCleanupHeadless {
 		}
 		
 		int sampling = 8;
-		if(cmd.hasOption(OPTION_THREADS)) {
+		if(cmd.hasOption(OPTION_SAMPLE_STEP)) {
 			try {
-				sampling = Integer.parseInt(cmd.getOptionValue(OPTION_THREADS));
+				sampling = Integer.parseInt(cmd.getOptionValue(OPTION_SAMPLE_STEP));
 				if(sampling < 1) throw new NumberFormatException();
 			} catch(NumberFormatException e) {
 				System.err.println("Invalid sampling step value specified");
@@ -108,44 +133,273 @@ public class TerraCleanupHeadless {
 			}
 		}
 		
-		ElevationClassifier<Region3dColumn, Region3dPosition> classifier = new ElevationClassifier<>(settings, 8, below, above, processors);
+		Set<ElevationClassification> toApply = EnumSet.noneOf(ElevationClassification.class);
+		if(cmd.hasOption(OPTION_APPLY)) {
+			try {
+				for(String name: cmd.getOptionValue(OPTION_APPLY).split(",")) {
+					toApply.add(ElevationClassification.valueOf(name.trim().toUpperCase()));
+				}
+			} catch(IllegalArgumentException e) {
+				System.err.println("Invalid classification to apply cleanup to");
+				System.exit(1);
+			}
+			// Adaptive sampling can miss narrow features, it is fine for a preview but must not decide what gets deleted
+			if(cmd.hasOption(OPTION_ADAPTIVE_SAMPLING) && !cmd.hasOption(OPTION_DRY_RUN)) {
+				System.err.println("Adaptive sampling can miss narrow terrain features, it can only be used to apply a cleanup as a dry run");
+				System.exit(1);
+			}
+		}
+		
+		int ioThreads = 16;
+		if(cmd.hasOption(OPTION_IO_THREADS)) {
+			try {
+				ioThreads = Integer.parseInt(cmd.getOptionValue(OPTION_IO_THREADS));
+				if(ioThreads < 1) throw new NumberFormatException();
+			} catch(NumberFormatException e) {
+				System.err.println("Invalid number of io threads specified");
+				System.exit(1);
+			}
+		}
+		
+		IElevationSource elevationSource = null;
+		if(cmd.hasOption(OPTION_ELEVATION_TILES)) {
+			try {
+				elevationSource = new TileDirectoryElevationSource(new File(cmd.getOptionValue(OPTION_ELEVATION_TILES)).toPath(), settings.projection());
+			} catch(IOException | IllegalArgumentException e) {
+				System.err.println("Invalid elevation tile folder: " + e.getMessage());
+				System.exit(1);
+			}
+		} else {
+			elevationSource = new DatasetElevationSource(settings);
+		}
+		
+		ElevationRangeStore elevationStore = null;
+		if(cmd.hasOption(OPTION_ELEVATION_CACHE)) {
+			File storeFile = new File(cmd.getOptionValue(OPTION_ELEVATION_CACHE));
+			elevationStore = new ElevationRangeStore(storeFile, ElevationRangeStore.fingerprint(elevationSource, sampling));
+			System.out.println(String.format("Loaded %d column elevations from %s", elevationStore.size(), storeFile));
+		}
+		
+		long cacheBudget = ElevationClassifier.DEFAULT_CACHE_BUDGET;
+		if(cmd.hasOption(OPTION_CACHE_MEMORY)) {
+			try {
+				long megabytes = Long.parseLong(cmd.getOptionValue(OPTION_CACHE_MEMORY));
+				// Larger values would overflow once converted to bytes
+				if(megabytes < 1 || megabytes >= Long.MAX_VALUE >> 20) throw new NumberFormatException();
+				cacheBudget = megabytes << 20;
+			} catch(NumberFormatException e) {
+				System.err.println("Invalid cache memory value specified");
+				System.exit(1);
+			}
+		}
+		
+		Shard shard = null;
+		if(cmd.hasOption(OPTION_SHARD)) {
+			try {
+				shard = Shard.parse(cmd.getOptionValue(OPTION_SHARD));
+			} catch(IllegalArgumentException e) {
+				System.err.println("Invalid shard: " + e.getMessage());
+				System.exit(1);
+			}
+		}
+		if(cmd.hasOption(OPTION_MERGE_REPORTS) && (cmd.hasOption(OPTION_SHARD) || cmd.hasOption(OPTION_JOURNAL))) {
+			System.err.println("Cannot merge reports and classify a shard or use a journal at the same time");
+			System.exit(1);
+		}
+		
+		long watchPeriod = 0;
+		long watchIdle = DEFAULT_WATCH_IDLE_MILLIS;
+		if(cmd.hasOption(OPTION_WATCH_IDLE)) {
+			try {
+				watchIdle = Long.parseLong(cmd.getOptionValue(OPTION_WATCH_IDLE)) * 1000;
+				if(watchIdle < Region3dWatcher.DEFAULT_SETTLE_MILLIS || watchIdle > Long.MAX_VALUE / 2) throw new NumberFormatException();
+			} catch(NumberFormatException e) {
+				System.err.println(String.format("Invalid watch idle time specified, it has to be at least %d seconds", Region3dWatcher.DEFAULT_SETTLE_MILLIS / 1000));
+				System.exit(1);
+			}
+			if(!cmd.hasOption(OPTION_WATCH)) {
+				System.err.println("--watch-idle requires --watch");
+				System.exit(1);
+			}
+		}
+		if(cmd.hasOption(OPTION_WATCH)) {
+			try {
+				watchPeriod = Long.parseLong(cmd.getOptionValue(OPTION_WATCH)) * 1000;
+				if(watchPeriod < 1) throw new NumberFormatException();
+			} catch(NumberFormatException e) {
+				System.err.println("Invalid watch cleanup interval specified");
+				System.exit(1);
+			}
+			if(cmd.hasOption(OPTION_MERGE_REPORTS) || cmd.hasOption(OPTION_JOURNAL)) {
+				System.err.println("Cannot watch the world and merge reports or use a journal at the same time");
+				System.exit(1);
+			}
+			if(cmd.hasOption(OPTION_CUBE_CLEANUP) || cmd.hasOption(OPTION_REGION2D_CLEANUP)) {
+				System.err.println("Cube and region2d cleanups rewrite files a server may be using, they cannot be used in watch mode");
+				System.exit(1);
+			}
+		}
+		
+		if(cmd.hasOption(OPTION_VIRTUAL_THREADS) && !WorkerPools.virtualThreadsAvailable()) {
+			System.err.println("Virtual threads are not supported by this JVM, falling back to a work-stealing pool");
+		}
+		ExecutorService workers = WorkerPools.create(processors, "Elevation classifier", cmd.hasOption(OPTION_VIRTUAL_THREADS));
+		ElevationClassifier<Region3dColumn, Region3dPosition> classifier = new ElevationClassifier<>(elevationSource, sampling, below, above, workers, elevationStore, cacheBudget, cmd.hasOption(OPTION_ADAPTIVE_SAMPLING));
 		
 		File region3dFolder = new File(cmd.getOptionValue(OPTION_WORLD)).toPath().resolve("region3d").toFile();
 		if(!region3dFolder.exists() || !region3dFolder.isDirectory()) {
 			System.err.println(region3dFolder.getPath() + "is not a valid region3d folder");
 			System.exit(1);
 		}
-		List<Path> paths = new ArrayList<>();
-		try {
-			Files.list(region3dFolder.toPath()).forEach(p -> paths.add(p));
-			System.out.println(String.format("Found %d files", paths.size()));
-		} catch(NoSuchFileException e) {
-			System.err.println(region3dFolder.getPath() + "is not a valid region3d folder");
+		Path region3dPath = region3dFolder.toPath();
+		
+		RegionIndex regionIndex = null;
+		if(cmd.hasOption(OPTION_REGION_INDEX)) {
+			long start = System.nanoTime();
+			try {
+				regionIndex = RegionIndex.loadOrBuild(new File(cmd.getOptionValue(OPTION_REGION_INDEX)), region3dPath);
+			} catch(IOException e) {
+				System.err.println("Could not load or build the region index: " + e.getMessage());
+				System.exit(1);
+			}
+			System.out.println(String.format("Indexed %d regions in %d columns in %.1fs", regionIndex.regionCount(), regionIndex.columnCount(), (System.nanoTime() - start) / 1e9d));
+		}
+		
+		Region3dContentClassifier contentClassifier = null;
+		if(cmd.hasOption(OPTION_KEEP_MODIFIED)) {
+			if(!cmd.hasOption(OPTION_APPLY)) {
+				System.err.println("--keep-modified requires --apply");
+				System.exit(1);
+			}
+			contentClassifier = new Region3dContentClassifier(region3dPath, Region3dContentClassifier.DEFAULT_NATURAL_BLOCKS, ioThreads);
 		}
 		
-		Region3dCleanupReport report = new Region3dCleanupReport();
+		Region3dCleaner cleaner = null;
+		if(cmd.hasOption(OPTION_APPLY)) {
+			Path quarantine = cmd.hasOption(OPTION_QUARANTINE) ? new File(cmd.getOptionValue(OPTION_QUARANTINE)).toPath(): null;
+			try {
+				// A running server may still write to a region it has loaded, so watch mode only cleans up files that have been idle for long
+				long minIdle = cmd.hasOption(OPTION_WATCH) ? watchIdle: 0;
+				cleaner = new Region3dCleaner(region3dPath, quarantine, ioThreads, cmd.hasOption(OPTION_DRY_RUN), contentClassifier, minIdle);
+			} catch(IllegalArgumentException e) {
+				System.err.println(e.getMessage());
+				System.exit(1);
+			}
+		}
 		
-		for(Path p: paths) {
+		long metricsInterval = 10;
+		if(cmd.hasOption(OPTION_METRICS_INTERVAL)) {
 			try {
-				Region3dPosition pos = new Region3dPosition(p);
-				classifier.classify(pos).thenAccept(c -> report.addPath(p, c));
-			} catch(Throwable  t) {
-				System.out.println(String.format("Ignoring %s", p));
+				metricsInterval = Long.parseLong(cmd.getOptionValue(OPTION_METRICS_INTERVAL));
+				if(metricsInterval < 1) throw new NumberFormatException();
+			} catch(NumberFormatException e) {
+				System.err.println("Invalid metrics interval specified");
+				System.exit(1);
 			}
 		}
 		
-		while(classifier.queueSize() > 0) {
-			System.out.print(String.format("Processing... (%d remaining) | Cache size: %d | Available memory: %s | Press enter to show progress\r", classifier.queueSize(), classifier.cacheCount(), Formatting.humanReadableByteCountBin(Runtime.getRuntime().freeMemory())));
-			if(System.in.available() > 0) {
-				while(System.in.available() > 0) System.in.read();
-				System.out.println();
-				for(ElevationClassification c: ElevationClassification.values()) {
-					System.out.println(String.format("%s: %d (%s)", c, report.getCount(c),  Formatting.humanReadableByteCountBin(report.getSize(c))));
+		Region3dCleanupReport report = new Region3dCleanupReport(region3dPath);
+		if(!cmd.hasOption(OPTION_WATCH)) {
+			// Spill files are temporary, they are removed however the run ends. Watch mode closes its reports itself once its last period is applied
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				try {
+					report.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}, "Report cleanup"));
+		}
+		
+		MetricsDumper metricsDumper = null;
+		if(cmd.hasOption(OPTION_METRICS)) {
+			Metrics metrics = new Metrics();
+			metrics.include("classifier", classifier.metrics());
+			metrics.include("report", report.metrics());
+			metricsDumper = new MetricsDumper(metrics, new File(cmd.getOptionValue(OPTION_METRICS)).toPath(), metricsInterval);
+		}
+		
+		if(cmd.hasOption(OPTION_WATCH)) {
+			// Regions are only submitted once idle, files modified again before the end of the period are kept by the cleaner and submitted again later
+			Region3dWatcher watcher = new Region3dWatcher(region3dPath, watchIdle, shard);
+			CountDownLatch stopped = new CountDownLatch(1);
+			// Stop watching on shutdown, and let the last period and the elevation cache be written before exiting
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				try {
+					watcher.close();
+					stopped.await();
+				} catch(IOException | InterruptedException e) {
+					e.printStackTrace();
+				}
+			}, "Watch mode shutdown"));
+			String action = cmd.hasOption(OPTION_DRY_RUN) ? "Would have cleaned up": cmd.hasOption(OPTION_QUARANTINE) ? "Quarantined": "Deleted";
+			System.out.println(String.format("Watching %s for new and modified regions", region3dPath));
+			watch(watcher, region3dPath, classifier, report, cleaner, toApply, action, watchPeriod);
+			if(elevationStore != null) elevationStore.close();
+			if(metricsDumper != null) metricsDumper.close();
+			classifier.terminate();
+			if(contentClassifier != null) contentClassifier.terminate();
+			stopped.countDown();
+			System.exit(0);
+		}
+		
+		ClassificationJournal journal = null;
+		ExecutorService journalExecutor = null;
+		if(cmd.hasOption(OPTION_JOURNAL)) {
+			File journalFile = new File(cmd.getOptionValue(OPTION_JOURNAL));
+			long fingerprint = ClassificationJournal.fingerprint(elevationSource, sampling, below, above, cmd.hasOption(OPTION_ADAPTIVE_SAMPLING));
+			journal = new ClassificationJournal(journalFile, fingerprint);
+			journalExecutor = Executors.newFixedThreadPool(ioThreads);
+			System.out.println(String.format("Loaded %d classifications from %s", journal.size(), journalFile));
+		}
+		
+		if(cmd.hasOption(OPTION_MERGE_REPORTS)) {
+			// Shards cover disjoint columns, so their reports can simply be concatenated
+			String[] reports = cmd.getOptionValue(OPTION_MERGE_REPORTS).split(",");
+			for(String reportFile: reports) {
+				try {
+					report.addFrom(new File(reportFile.trim()).toPath());
+				} catch(IOException e) {
+					System.err.println(e.getMessage());
+					System.exit(1);
+				}
+			}
+			System.out.println(String.format("Merged %d reports", reports.length));
+		} else {
+			// Files are streamed in batches, each column of a batch being classified by a single task
+			Region3dScanner scanner = new Region3dScanner(region3dPath, Region3dScanner.DEFAULT_BATCH_SIZE, Region3dScanner.DEFAULT_MAX_IN_FLIGHT, shard, regionIndex);
+			// The scan only returns once every region it found is classified and in the report
+			ProgressReporter progress = new ProgressReporter(scanner, report, System.out, 1000);
+			try {
+				// Columns submitted whole are not needed anymore once classified, others may come back in a later batch and stay cached
+				boolean release = scanner.submitsWholeColumns();
+				// When sampling adaptively, only ranges that are already stored can be prefetched
+				Consumer<Region3dColumn> prefetcher = cmd.hasOption(OPTION_ADAPTIVE_SAMPLING) && elevationStore == null ? null: classifier::prefetch;
+				if(journal != null) {
+					ClassificationJournal j = journal;
+					ExecutorService executor = journalExecutor;
+					scanner.scan((column, positions) -> classifyJournaled(column, positions, region3dPath, classifier, j, report, executor).whenComplete((r, t) -> {
+						if(release) classifier.release(column);
+					}));
+				} else {
+					scanner.scan((column, positions) -> classifier.classifyColumn(column, positions).thenAccept(classifications -> {
+						for(int i = 0; i < classifications.length; i++) {
+							report.add(positions.get(i), classifications[i]);
+						}
+						if(release) classifier.release(column);
+					}), prefetcher);
 				}
-				System.out.println();
-				System.out.flush();
+			} catch(IOException e) {
+				System.err.println(region3dFolder.getPath() + " could not be read");
+				e.printStackTrace();
+			} finally {
+				progress.close();
+			}
+			if(journal != null) {
+				journalExecutor.shutdown();
+				journal.close();
 			}
-			Thread.sleep(100);
+			System.out.println(String.format("Found %d files", scanner.foundCount()));
+			if(shard != null) System.out.println(String.format("Skipped %d files that belong to other shards than %s", scanner.skippedCount(), shard));
 		}
 		
 		PrintStream out = System.out;
@@ -154,15 +408,147 @@ public class TerraCleanupHeadless {
 			reportFile.createNewFile();
 			out = new PrintStream(reportFile);
 		}
-		System.out.println();
-		classifier.terminate();
+		if(elevationStore != null) elevationStore.close();
 		
 		report.printTo(out);
-		out.close();
+		if(out != System.out) out.close();
+		
+		// A dry run leaves the 3dr files in place, the region2d cleanup has to know which ones would have been removed
+		ConcurrentLongMap removedRegions = cleaner != null && cmd.hasOption(OPTION_DRY_RUN) && cmd.hasOption(OPTION_REGION2D_CLEANUP) ? new ConcurrentLongMap(): null;
+		if(cleaner != null) {
+			String action = cmd.hasOption(OPTION_DRY_RUN) ? "Would have cleaned up": cmd.hasOption(OPTION_QUARANTINE) ? "Quarantined": "Deleted";
+			printCleanupResult(action, cleaner.apply(report, toApply, removedRegions != null ? position -> removedRegions.put(position, 0): null));
+			if(cmd.hasOption(OPTION_CUBE_CLEANUP)) {
+				Set<ElevationClassification> partial = EnumSet.of(ElevationClassification.UNDERGROUND_DEEP, ElevationClassification.UNDERGROUND, ElevationClassification.SURFACE, ElevationClassification.SKY, ElevationClassification.SKY_HIGH);
+				partial.removeAll(toApply);
+				String cubeAction = cmd.hasOption(OPTION_DRY_RUN) ? "Would have removed cubes from": "Removed cubes from";
+				printCleanupResult(cubeAction, cleaner.applyToCubes(report, partial, toApply, classifier));
+			}
+		}
+		if(cmd.hasOption(OPTION_REGION2D_CLEANUP)) {
+			Path region2dPath = region3dPath.resolveSibling("region2d");
+			if(Files.isDirectory(region2dPath)) {
+				Path quarantine = cmd.hasOption(OPTION_QUARANTINE) ? new File(cmd.getOptionValue(OPTION_QUARANTINE)).toPath(): null;
+				String action = cmd.hasOption(OPTION_DRY_RUN) ? "Would have cleaned up": "Cleaned up";
+				try {
+					if(regionIndex != null && cleaner != null && !cmd.hasOption(OPTION_DRY_RUN)) {
+						// Regions were removed, the index is rebuilt as it has to reflect what remains
+						regionIndex = RegionIndex.loadOrBuild(new File(cmd.getOptionValue(OPTION_REGION_INDEX)), region3dPath);
+					}
+					Region2dCleaner region2dCleaner = new Region2dCleaner(region3dPath, region2dPath, quarantine, ioThreads, cmd.hasOption(OPTION_DRY_RUN), regionIndex, removedRegions != null ? removedRegions::containsKey: null);
+					printCleanupResult(action + " orphaned region2d data in", region2dCleaner.apply());
+				} catch(IllegalArgumentException e) {
+					System.err.println(e.getMessage());
+				}
+			} else {
+				System.err.println(region2dPath + " is not a valid region2d folder, skipping its cleanup");
+			}
+		}
+		if(metricsDumper != null) metricsDumper.close();
+		classifier.terminate();
+		if(contentClassifier != null) contentClassifier.terminate();
+		
+		report.close();
 		System.exit(0);
 		
 	}
 	
+	/**
+	 * Classifies a column of regions, reusing the classifications recorded in a journal for files that did not change
+	 * and recording the new ones.
+	 */
+	private static CompletableFuture<?> classifyJournaled(Region3dColumn column, List<Region3dPosition> positions, Path region3dPath, ElevationClassifier<Region3dColumn, Region3dPosition> classifier, ClassificationJournal journal, Region3dCleanupReport report, ExecutorService executor) {
+		return CompletableFuture.supplyAsync(() -> {
+			List<Region3dPosition> toClassify = new ArrayList<>();
+			List<BasicFileAttributes> attributes = new ArrayList<>();
+			for(Region3dPosition position: positions) {
+				BasicFileAttributes attrs = null;
+				try {
+					attrs = Files.readAttributes(region3dPath.resolve(position.fileName()), BasicFileAttributes.class);
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+				if(attrs != null) {
+					ElevationClassification classification = journal.get(position, attrs.lastModifiedTime().toMillis(), attrs.size());
+					if(classification != null) {
+						report.add(position, classification, attrs.size());
+						continue;
+					}
+				}
+				toClassify.add(position);
+				attributes.add(attrs);
+			}
+			if(toClassify.isEmpty()) return CompletableFuture.completedFuture(null);
+			return classifier.classifyColumn(column, toClassify).thenAccept(classifications -> {
+				for(int i = 0; i < classifications.length; i++) {
+					BasicFileAttributes attrs = attributes.get(i);
+					report.add(toClassify.get(i), classifications[i], attrs != null ? attrs.size(): 0);
+					if(attrs == null) continue;
+					try {
+						journal.record(toClassify.get(i), attrs.lastModifiedTime().toMillis(), attrs.size(), classifications[i]);
+					} catch(IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}, executor).thenCompose(future -> future);
+	}
+	
+	/**
+	 * Classifies regions as they are created or modified until the watcher is closed.
+	 * At the end of each period, the cleanup is applied to the regions classified during the period.
+	 */
+	private static void watch(Region3dWatcher watcher, Path region3dPath, ElevationClassifier<Region3dColumn, Region3dPosition> classifier, Region3dCleanupReport firstReport, Region3dCleaner cleaner, Set<ElevationClassification> toApply, String action, long periodMillis) throws IOException, InterruptedException {
+		// The watcher waits for classifications to complete before ending a period, so reports are never swapped while regions are added to them.
+		// It also ends the last period when it stops, so regions classified since the previous one are still cleaned up
+		AtomicReference<Region3dCleanupReport> report = new AtomicReference<>(firstReport);
+		try {
+			watcher.run((column, positions) -> classifier.classifyColumn(column, positions).thenAccept(classifications -> {
+				Region3dCleanupReport current = report.get();
+				for(int i = 0; i < classifications.length; i++) {
+					current.add(positions.get(i), classifications[i]);
+				}
+			}), () -> {
+				Region3dCleanupReport ended = report.get();
+				try {
+					report.set(new Region3dCleanupReport(region3dPath));
+					long total = 0;
+					StringBuilder classes = new StringBuilder();
+					for(ElevationClassification classification: ElevationClassification.values()) {
+						long count = ended.getCount(classification);
+						total += count;
+						if(count > 0) classes.append(String.format(" | %s: %d", classification, count));
+					}
+					System.out.println(String.format("Classified %d regions (%d since start)%s", total, watcher.submittedCount(), classes));
+					if(cleaner != null) printCleanupResult(action, cleaner.apply(ended, toApply));
+					ended.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}, periodMillis);
+		} finally {
+			report.get().close();
+		}
+	}
+	
+	private static void printCleanupResult(String action, CleanupResult result) {
+		System.out.println(String.format("%s %d files (%s) in %.1fs | %.0f files/s | %s/s | %d already gone | %d failed | %d kept",
+				action,
+				result.files(),
+				Formatting.humanReadableByteCountBin(result.bytes()),
+				result.seconds(),
+				result.files() / Math.max(result.seconds(), 1e-3),
+				Formatting.humanReadableByteCountBin((long)(result.bytes() / Math.max(result.seconds(), 1e-3))),
+				result.missing(),
+				result.failures(),
+				result.kept()));
+	}
+	
+	/** How long watch mode waits after the last change to a region file before processing it, in milliseconds */
+	private static final long DEFAULT_WATCH_IDLE_MILLIS = 600_000;
+	
 	private static final String OPTION_VERBOSE = "v";
 	private static final String OPTION_QUIET = "q";
 	private static final String OPTION_INFO = "i";
@@ -174,6 +560,26 @@ public class TerraCleanupHeadless {
 	private static final String OPTION_WORLD = "w";
 	private static final String OPTION_SAMPLE_STEP = "ss";
 	private static final String OPTION_REPORT = "r";
+	private static final String OPTION_ELEVATION_CACHE = "ec";
+	private static final String OPTION_CACHE_MEMORY = "cm";
+	private static final String OPTION_ADAPTIVE_SAMPLING = "as";
+	private static final String OPTION_APPLY = "a";
+	private static final String OPTION_QUARANTINE = "qf";
+	private static final String OPTION_IO_THREADS = "it";
+	private static final String OPTION_DRY_RUN = "dr";
+	private static final String OPTION_CUBE_CLEANUP = "cc";
+	private static final String OPTION_REGION2D_CLEANUP = "r2";
+	private static final String OPTION_ELEVATION_TILES = "et";
+	private static final String OPTION_METRICS = "m";
+	private static final String OPTION_METRICS_INTERVAL = "mi";
+	private static final String OPTION_JOURNAL = "j";
+	private static final String OPTION_VIRTUAL_THREADS = "vt";
+	private static final String OPTION_SHARD = "sh";
+	private static final String OPTION_MERGE_REPORTS = "mr";
+	private static final String OPTION_REGION_INDEX = "ri";
+	private static final String OPTION_WATCH = "wa";
+	private static final String OPTION_WATCH_IDLE = "wi";
+	private static final String OPTION_KEEP_MODIFIED = "km";
 	
 	public static Options makeOptions() {
 		Options options = new Options();
@@ -217,7 +623,7 @@ public class TerraCleanupHeadless {
 		options.addOption(
 				Option.builder(OPTION_THREADS)
 				.longOpt("threads")
-				.desc("number of threads to use")
+				.desc("number of threads to classify with (defaults to the number of available processors)")
 				.required(false)
 				.hasArg(true)
 				.optionalArg(false)
@@ -261,6 +667,153 @@ public class TerraCleanupHeadless {
 				.hasArg(true)
 				.optionalArg(false)
 			.build());
+		options.addOption(
+				Option.builder(OPTION_ELEVATION_CACHE)
+				.longOpt("elevation-cache")
+				.desc("file to persist column elevations in, so they do not have to be fetched again on subsequent runs with the same world settings and sampling step")
+				.required(false)
+				.hasArg(true)
+				.optionalArg(false)
+			.build());
+		options.addOption(
+				Option.builder(OPTION_CACHE_MEMORY)
+				.longOpt("cache-memory")
+				.desc("approximately how much memory the column elevation cache can use, in MiB (default is 64)")
+				.required(false)
+				.hasArg(true)
+				.optionalArg(false)
+			.build());
+		options.addOption(
+				Option.builder(OPTION_ADAPTIVE_SAMPLING)
+				.longOpt("adaptive-sampling")
+				.desc("sample elevation on a coarse grid first, and only refine it while it could change the outcome. Faster, but may miss narrow terrain features, so it cannot be used to apply a cleanup unless it is a dry run")
+				.required(false)
+				.hasArg(false)
+			.build());
+		options.addOption(
+				Option.builder(OPTION_APPLY)
+				.longOpt("apply")
+				.desc("comma separated list of classifications to cleanup once the report is done (e.g. SKY_HIGH,UNDERGROUND_DEEP)")
+				.required(false)
+				.hasArg(true)
+				.optionalArg(false)
+			.build());
+		options.addOption(
+				Option.builder(OPTION_QUARANTINE)
+				.longOpt("quarantine")
+				.desc("move cleaned up files to this folder instead of deleting them, it has to be on the same file system as the world")
+				.required(false)
+				.hasArg(true)
+				.optionalArg(false)
+			.build());
+		options.addOption(
+				Option.builder(OPTION_IO_THREADS)
+				.longOpt("io-threads")
+				.desc("number of threads to use when cleaning up files (default is 16)")
+				.required(false)
+				.hasArg(true)
+				.optionalArg(false)
+			.build());
+		options.addOption(
+				Option.builder(OPTION_DRY_RUN)
+				.longOpt("dry-run")
+				.desc("do not touch any file when cleaning up, only report what would have been done")
+				.required(false)
+				.hasArg(false)
+			.build());
+		options.addOption(
+				Option.builder(OPTION_CUBE_CLEANUP)
+				.longOpt("cube-cleanup")
+				.desc("also remove individual cubes that fall into the classifications to cleanup from the remaining regions, using chunk level elevation (requires --apply)")
+				.required(false)
+				.hasArg(false)
+			.build());
+		options.addOption(
+				Option.builder(OPTION_REGION2D_CLEANUP)
+				.longOpt("region2d-cleanup")
+				.desc("after the cleanup, remove the region2d data of chunk columns that do not have any 3dr region left (honours --quarantine and --dry-run)")
+				.required(false)
+				.hasArg(false)
+			.build());
+		options.addOption(
+				Option.builder(OPTION_ELEVATION_TILES)
+				.longOpt("elevation-tiles")
+				.desc("read elevation from a local folder of pre-fetched terrarium tiles (zoom/x/y.png, highest zoom level is used) instead of the terra-- heights dataset")
+				.required(false)
+				.hasArg(true)
+			.build());
+		options.addOption(
+				Option.builder(OPTION_METRICS)
+				.longOpt("metrics")
+				.desc("periodically append per stage latency histograms and counters to a file, as CSV if its name ends with .csv and as JSON lines otherwise")
+				.required(false)
+				.hasArg(true)
+			.build());
+		options.addOption(
+				Option.builder(OPTION_METRICS_INTERVAL)
+				.longOpt("metrics-interval")
+				.desc("interval between two metrics snapshots, in seconds (defaults to 10)")
+				.required(false)
+				.hasArg(true)
+			.build());
+		options.addOption(
+				Option.builder(OPTION_JOURNAL)
+				.longOpt("journal")
+				.desc("record classifications in a journal file, so an interrupted run can be resumed and later runs only classify new or modified files")
+				.required(false)
+				.hasArg(true)
+			.build());
+		options.addOption(
+				Option.builder(OPTION_VIRTUAL_THREADS)
+				.longOpt("virtual-threads")
+				.desc("classify on virtual threads instead of a work-stealing pool, requires Java 21 or later")
+				.required(false)
+				.hasArg(false)
+			.build());
+		options.addOption(
+				Option.builder(OPTION_SHARD)
+				.longOpt("shard")
+				.desc("only classify the columns of one shard of the world, given as index/count (e.g. 0/4), so a run can be split across processes or machines that share the world folder")
+				.required(false)
+				.hasArg(true)
+			.build());
+		options.addOption(
+				Option.builder(OPTION_MERGE_REPORTS)
+				.longOpt("merge-reports")
+				.desc("instead of classifying the world, combine the reports written by shard runs (comma separated list of files) into one, which cleanup options then apply to")
+				.required(false)
+				.hasArg(true)
+			.build());
+		options.addOption(
+				Option.builder(OPTION_REGION_INDEX)
+				.longOpt("region-index")
+				.desc("read the regions of the world from an index file instead of listing the region3d folder, the index is built if needed and rebuilt whenever files are added or removed (keep it outside of the world folder)")
+				.required(false)
+				.hasArg(true)
+			.build());
+		options.addOption(
+				Option.builder(OPTION_WATCH)
+				.longOpt("watch")
+				.desc("keep running next to a server: classify region files as they are created or modified, and apply the cleanup to them every given number of seconds (regions that existed before are not processed). "
+						+ "Only files that have not been modified for the watch idle time are cleaned up, the server must have unloaded their regions by then")
+				.required(false)
+				.hasArg(true)
+			.build());
+		options.addOption(
+				Option.builder(OPTION_WATCH_IDLE)
+				.longOpt("watch-idle")
+				.desc("how long, in seconds, a region file has to go unmodified before watch mode processes and cleans it up (default: 600). "
+						+ "It should be well above how long the server keeps regions loaded after players leave them")
+				.required(false)
+				.hasArg(true)
+			.build());
+		options.addOption(
+				Option.builder(OPTION_KEEP_MODIFIED)
+				.longOpt("keep-modified")
+				.desc("read the content of regions before cleaning them up, and keep regions and cubes that have blocks terrain generation does not produce, entities or tile entities (requires --apply)")
+				.required(false)
+				.hasArg(false)
+			.build());
 		return options;
 	}
 	
@@ -17,5 +17,20 @@ public interface ICacheHolder {
 	 * @return the number of objects in the cache
 	 */
 	int cacheCount();
+	
+	/**
+	 * @return the number of lookups that were served from the cache
+	 */
+	long cacheHits();
+	
+	/**
+	 * @return the number of lookups that could not be served from the cache
+	 */
+	long cacheMisses();
+	
+	/**
+	 * @return the number of objects that were removed from the cache to keep it within its limits
+	 */
+	long cacheEvictions();
 
 }
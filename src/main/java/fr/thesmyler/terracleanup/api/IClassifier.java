@@ -1,5 +1,6 @@
 package fr.thesmyler.terracleanup.api;
 
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
 /**
@@ -18,6 +19,15 @@ public interface IClassifier<T, E extends Enum<?>> {
 	 */
 	CompletableFuture<E> classify(T object);
 	
+	/**
+	 * Classifies many objects at once, without the overhead of a future per object.
+	 * 
+	 * @param objects to classify
+	 * @param results where to write the classifications, at the same indices as the objects. It must be at least as long as objects
+	 * @return a {@link CompletableFuture} that is completed once all classifications are written to results
+	 */
+	CompletableFuture<Void> classifyAll(List<? extends T> objects, E[] results);
+	
 	/**
 	 * Forces this classifier to terminate all operations and cleanup used resources.
 	 * Running and awaiting classification tasks are discarded and will not complete.
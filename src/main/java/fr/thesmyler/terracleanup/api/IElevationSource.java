@@ -0,0 +1,29 @@
+package fr.thesmyler.terracleanup.api;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Something that knows the ground elevation of the world, in block coordinates
+ */
+public interface IElevationSource {
+	
+	/**
+	 * Fetches ground elevation on a regular grid.
+	 * 
+	 * @param minX the X coordinate of the first sample, in blocks
+	 * @param minZ the Z coordinate of the first sample, in blocks
+	 * @param sizeX the number of samples along the X axis
+	 * @param sizeZ the number of samples along the Z axis
+	 * @param step the interval between samples, in blocks
+	 * @return a future that will hold the elevations in X major order (index is x * sizeZ + z), with NaN for points out of projection bounds.
+	 * 			It completes exceptionally if elevation data is missing or could not be read
+	 */
+	CompletableFuture<double[]> getElevationGrid(int minX, int minZ, int sizeX, int sizeZ, int step);
+	
+	/**
+	 * @return a description of this source that changes whenever the elevation it returns could change,
+	 * 			used to tell apart elevation data persisted from different sources
+	 */
+	String description();
+
+}
@@ -0,0 +1,17 @@
+package fr.thesmyler.terracleanup.content;
+
+/**
+ * The result of the classification of a region by {@link Region3dContentClassifier}
+ */
+public enum ContentClassification {
+	
+	/** The region could not be read or understood */
+	FAILED,
+	
+	/** The region only contains blocks that terrain generation produces, and no entity or tile entity */
+	UNTOUCHED,
+	
+	/** The region contains something that terrain generation does not produce, it was probably modified by players */
+	MODIFIED;
+
+}
@@ -0,0 +1,201 @@
+package fr.thesmyler.terracleanup.content;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Looks for signs of player modifications in the uncompressed NBT of a cube, without building a tree of tags.
+ * <br>
+ * Tags are walked in place in the buffer, and only a few of them are looked at:
+ * the block ids of sections (Blocks, Add and Add2 arrays, as written for 1.12) and the Entities and TileEntities lists.
+ * Everything else is skipped over.
+ */
+final class CubeNbt {
+	
+	private static final int TAG_END = 0;
+	private static final int TAG_BYTE = 1;
+	private static final int TAG_SHORT = 2;
+	private static final int TAG_INT = 3;
+	private static final int TAG_LONG = 4;
+	private static final int TAG_FLOAT = 5;
+	private static final int TAG_DOUBLE = 6;
+	private static final int TAG_BYTE_ARRAY = 7;
+	private static final int TAG_STRING = 8;
+	private static final int TAG_LIST = 9;
+	private static final int TAG_COMPOUND = 10;
+	private static final int TAG_INT_ARRAY = 11;
+	private static final int TAG_LONG_ARRAY = 12;
+	
+	private static final int MAX_DEPTH = 512;
+	private static final int BLOCKS_PER_SECTION = 4096;
+	
+	private static final byte[] BLOCKS = "Blocks".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] ADD = "Add".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] ADD2 = "Add2".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] ENTITIES = "Entities".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] TILE_ENTITIES = "TileEntities".getBytes(StandardCharsets.UTF_8);
+	
+	private CubeNbt() {}
+	
+	/**
+	 * @param nbt the uncompressed NBT of a cube, from its position to its limit
+	 * @param natural which block ids terrain generation produces, indexed by id
+	 * @return whether the cube has a block that is not natural, an entity or a tile entity
+	 * @throws IOException if the NBT is malformed
+	 */
+	static boolean isModified(ByteBuffer nbt, boolean[] natural) throws IOException {
+		try {
+			if(nbt.get() != TAG_COMPOUND) throw new IOException("Cube NBT does not start with a compound");
+			skipName(nbt);
+			return compound(nbt, natural, 0);
+		} catch(BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+			throw new IOException("Truncated or malformed cube NBT", e);
+		}
+	}
+	
+	private static boolean compound(ByteBuffer nbt, boolean[] natural, int depth) throws IOException {
+		if(depth > MAX_DEPTH) throw new IOException("Cube NBT is nested too deeply");
+		int blocks = -1;
+		int add = -1;
+		while(true) {
+			int type = nbt.get();
+			if(type == TAG_END) break;
+			int nameLength = nbt.getShort() & 0xFFFF;
+			int name = nbt.position();
+			nbt.position(name + nameLength);
+			if(type == TAG_BYTE_ARRAY) {
+				int length = nbt.getInt();
+				int data = nbt.position();
+				if(length < 0) throw new IOException("Negative array length");
+				if(length == BLOCKS_PER_SECTION && nameIs(nbt, name, nameLength, BLOCKS)) {
+					blocks = data;
+				} else if(length == BLOCKS_PER_SECTION / 2 && nameIs(nbt, name, nameLength, ADD)) {
+					add = data;
+				} else if(nameIs(nbt, name, nameLength, ADD2) && !allZero(nbt, data, length)) {
+					return true; // Only used for ids above 4095, which terrain generation never produces
+				}
+				nbt.position(data + length);
+			} else if(type == TAG_LIST && (nameIs(nbt, name, nameLength, ENTITIES) || nameIs(nbt, name, nameLength, TILE_ENTITIES))) {
+				int elementType = nbt.get();
+				int length = nbt.getInt();
+				if(length > 0) return true;
+				if(length < 0 || elementType < TAG_END || elementType > TAG_LONG_ARRAY) throw new IOException("Invalid list");
+			} else if(type == TAG_LIST) {
+				if(list(nbt, natural, depth + 1)) return true;
+			} else if(type == TAG_COMPOUND) {
+				if(compound(nbt, natural, depth + 1)) return true;
+			} else {
+				skip(nbt, type, depth + 1);
+			}
+		}
+		return blocks >= 0 && hasUnnaturalBlock(nbt, blocks, add, natural);
+	}
+	
+	private static boolean list(ByteBuffer nbt, boolean[] natural, int depth) throws IOException {
+		if(depth > MAX_DEPTH) throw new IOException("Cube NBT is nested too deeply");
+		int type = nbt.get();
+		int length = nbt.getInt();
+		if(length < 0) throw new IOException("Negative list length");
+		for(int i = 0; i < length; i++) {
+			if(type == TAG_COMPOUND) {
+				if(compound(nbt, natural, depth + 1)) return true;
+			} else if(type == TAG_LIST) {
+				if(list(nbt, natural, depth + 1)) return true;
+			} else {
+				skip(nbt, type, depth + 1);
+			}
+		}
+		return false;
+	}
+	
+	private static void skip(ByteBuffer nbt, int type, int depth) throws IOException {
+		if(depth > MAX_DEPTH) throw new IOException("Cube NBT is nested too deeply");
+		switch(type) {
+		case TAG_BYTE:
+			nbt.position(nbt.position() + 1);
+			break;
+		case TAG_SHORT:
+			nbt.position(nbt.position() + 2);
+			break;
+		case TAG_INT:
+		case TAG_FLOAT:
+			nbt.position(nbt.position() + 4);
+			break;
+		case TAG_LONG:
+		case TAG_DOUBLE:
+			nbt.position(nbt.position() + 8);
+			break;
+		case TAG_BYTE_ARRAY:
+			skipBytes(nbt, checkLength(nbt.getInt()));
+			break;
+		case TAG_STRING:
+			skipName(nbt);
+			break;
+		case TAG_INT_ARRAY:
+			skipBytes(nbt, checkLength(nbt.getInt()) * 4);
+			break;
+		case TAG_LONG_ARRAY:
+			skipBytes(nbt, checkLength(nbt.getInt()) * 8);
+			break;
+		case TAG_LIST:
+			int elementType = nbt.get();
+			int length = checkLength(nbt.getInt());
+			for(int i = 0; i < length; i++) skip(nbt, elementType, depth + 1);
+			break;
+		case TAG_COMPOUND:
+			while(true) {
+				int child = nbt.get();
+				if(child == TAG_END) break;
+				skipName(nbt);
+				skip(nbt, child, depth + 1);
+			}
+			break;
+		default:
+			throw new IOException("Unknown tag type " + type);
+		}
+	}
+	
+	private static int checkLength(int length) throws IOException {
+		// Anything longer than what is left would fail anyway, this also keeps multiplied lengths from overflowing
+		if(length < 0 || length > 1 << 28) throw new IOException("Invalid array length");
+		return length;
+	}
+	
+	private static void skipName(ByteBuffer nbt) {
+		skipBytes(nbt, nbt.getShort() & 0xFFFF);
+	}
+	
+	/**
+	 * The length has to be read before calling this, as the position is only read here
+	 */
+	private static void skipBytes(ByteBuffer nbt, int length) {
+		nbt.position(nbt.position() + length);
+	}
+	
+	private static boolean nameIs(ByteBuffer nbt, int name, int length, byte[] expected) {
+		if(length != expected.length) return false;
+		for(int i = 0; i < length; i++) {
+			if(nbt.get(name + i) != expected[i]) return false;
+		}
+		return true;
+	}
+	
+	private static boolean allZero(ByteBuffer nbt, int from, int length) {
+		for(int i = from; i < from + length; i++) {
+			if(nbt.get(i) != 0) return false;
+		}
+		return true;
+	}
+	
+	private static boolean hasUnnaturalBlock(ByteBuffer nbt, int blocks, int add, boolean[] natural) {
+		for(int i = 0; i < BLOCKS_PER_SECTION; i++) {
+			int id = nbt.get(blocks + i) & 0xFF;
+			if(add >= 0) id |= (nbt.get(add + (i >> 1)) >> ((i & 1) << 2) & 0xF) << 8;
+			if(!natural[id]) return true;
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,254 @@
+package fr.thesmyler.terracleanup.content;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import fr.thesmyler.terracleanup.api.IClassifier;
+import fr.thesmyler.terracleanup.files.RegionFile;
+import fr.thesmyler.terracleanup.util.WorkerPools;
+import fr.thesmyler.terracleanup.util.coordinates.Region3dPosition;
+
+/**
+ * Classifies 3dr regions based on their content, to tell apart untouched generated terrain from regions players have built in.
+ * <br>
+ * A region is untouched if all of its cubes only have blocks from a set of natural block ids, and no entity or tile entity.
+ * Cubes are read with positional reads in the order they are laid out in the file, decompressed with an inflater that is reused by each thread,
+ * and their NBT is walked in place without building tags. A region is classified as modified as soon as one of its cubes is.
+ * Regions are classified in parallel, either on the workers of this classifier or on the calling threads with the synchronous methods.
+ * <br>
+ * Anything that cannot be understood, such as cubes stored outside of the region file because they are too large, makes the classification fail,
+ * and callers should keep regions that failed.
+ */
+public class Region3dContentClassifier implements IClassifier<Region3dPosition, ContentClassification> {
+	
+	/**
+	 * Block ids (as of 1.12) that terrain generation produces:
+	 * air, stone, grass, dirt, bedrock, water, lava, sand, gravel, ores, logs, leaves, sandstone, plants, snow, ice, clay, hardened clay and roads.
+	 */
+	public static final int[] DEFAULT_NATURAL_BLOCKS = {
+			0, 1, 2, 3, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 21, 24, 31, 32, 37, 38, 39, 40, 56, 73, 74, 78, 79, 80, 81, 82, 83,
+			86, 99, 100, 103, 106, 110, 111, 127, 129, 159, 161, 162, 172, 174, 175, 179, 208, 251
+	};
+	
+	private static final int MAX_BLOCK_ID = 4095;
+	private static final int LENGTH_PREFIX = 4;
+	
+	/** How many chunks {@link #classifyAll(List, ContentClassification[])} gives each worker */
+	private static final int CHUNKS_PER_WORKER = 4;
+	
+	private final Path region3dFolder;
+	private final boolean[] natural = new boolean[MAX_BLOCK_ID + 1];
+	private final ExecutorService workers;
+	private final int workerCount;
+	private final AtomicInteger toProcess = new AtomicInteger();
+	private final LongAdder cubes = new LongAdder();
+	
+	/** Each thread reuses its inflater and buffers, as inflaters hold native memory that is slow to allocate */
+	private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+	
+	/**
+	 * @param region3dFolder the folder the region files are in
+	 * @param naturalBlocks the ids of the blocks terrain generation produces, see {@link #DEFAULT_NATURAL_BLOCKS}
+	 * @param workerCount how many regions can be classified in parallel by {@link #classify(Region3dPosition)} and {@link #classifyAll(List, ContentClassification[])}
+	 */
+	public Region3dContentClassifier(Path region3dFolder, int[] naturalBlocks, int workerCount) {
+		this.region3dFolder = region3dFolder;
+		for(int id: naturalBlocks) {
+			if(id < 0 || id > MAX_BLOCK_ID) throw new IllegalArgumentException("Invalid block id: " + id);
+			this.natural[id] = true;
+		}
+		this.workerCount = workerCount;
+		this.workers = WorkerPools.workStealing(workerCount, "Content classifier");
+	}
+	
+	@Override
+	public CompletableFuture<ContentClassification> classify(Region3dPosition position) {
+		this.toProcess.incrementAndGet();
+		return CompletableFuture.supplyAsync(() -> this.classifyNow(position), this.workers)
+				.whenComplete((c, t) -> this.toProcess.decrementAndGet());
+	}
+	
+	/**
+	 * Splits the regions in a few chunks per worker, each classified inline by a single task,
+	 * so that there is one future per chunk rather than one per region while uneven region sizes still balance out.
+	 */
+	@Override
+	public CompletableFuture<Void> classifyAll(List<? extends Region3dPosition> positions, ContentClassification[] results) {
+		int count = positions.size();
+		int chunkCount = Math.min(count, this.workerCount * CHUNKS_PER_WORKER);
+		CompletableFuture<?>[] tasks = new CompletableFuture<?>[chunkCount];
+		this.toProcess.addAndGet(count);
+		for(int chunk = 0; chunk < chunkCount; chunk++) {
+			int from = (int) ((long) count * chunk / chunkCount);
+			int to = (int) ((long) count * (chunk + 1) / chunkCount);
+			tasks[chunk] = CompletableFuture.runAsync(() -> {
+				for(int i = from; i < to; i++) {
+					results[i] = this.classifyNow(positions.get(i));
+					this.toProcess.decrementAndGet();
+				}
+			}, this.workers);
+		}
+		return CompletableFuture.allOf(tasks);
+	}
+	
+	/**
+	 * Classifies a region on the calling thread
+	 *
+	 * @param position
+	 * @return the classification of the region
+	 */
+	public ContentClassification classifyNow(Region3dPosition position) {
+		boolean[] modified = this.scan(position, true);
+		if(modified == null) return ContentClassification.FAILED;
+		for(boolean cube: modified) {
+			if(cube) return ContentClassification.MODIFIED;
+		}
+		return ContentClassification.UNTOUCHED;
+	}
+	
+	/**
+	 * Finds which cubes of a region are modified, on the calling thread
+	 *
+	 * @param position
+	 * @return whether each cube is modified, indexed with {@link RegionFile#entryIndex3d(int, int, int)}, or null if the region could not be understood
+	 */
+	public boolean[] modifiedCubes(Region3dPosition position) {
+		return this.scan(position, false);
+	}
+	
+	private boolean[] scan(Region3dPosition position, boolean stopAtFirst) {
+		Path file = this.region3dFolder.resolve(position.fileName());
+		boolean[] modified = new boolean[RegionFile.ENTRY_COUNT_3D];
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			int[] entries = RegionFile.readHeader(channel, RegionFile.ENTRY_COUNT_3D);
+			long size = channel.size();
+			// Reading cubes in file order keeps reads sequential
+			long[] order = new long[entries.length];
+			int count = 0;
+			for(int i = 0; i < entries.length; i++) {
+				if(entries[i] == 0) continue;
+				if(RegionFile.sectorCount(entries[i]) == 0) throw new IOException("Cube stored outside of the region file");
+				order[count++] = (long) RegionFile.sectorOffset(entries[i]) << 32 | i;
+			}
+			Arrays.sort(order, 0, count);
+			Buffers buffers = this.buffers.get();
+			for(int i = 0; i < count; i++) {
+				int index = (int) order[i];
+				int entry = entries[index];
+				long offset = (long) RegionFile.sectorOffset(entry) * RegionFile.SECTOR_SIZE;
+				int length = (int) Math.min((long) RegionFile.sectorCount(entry) * RegionFile.SECTOR_SIZE, size - offset);
+				if(length < LENGTH_PREFIX) throw new IOException("Cube outside of the file");
+				ByteBuffer compressed = buffers.compressed(length);
+				while(compressed.hasRemaining()) {
+					if(channel.read(compressed, offset + compressed.position()) < 0) throw new IOException("Truncated cube");
+				}
+				compressed.flip();
+				int dataLength = compressed.getInt();
+				if(dataLength < 0 || dataLength > compressed.remaining()) throw new IOException("Invalid cube length");
+				ByteBuffer nbt = buffers.decompress(compressed.array(), LENGTH_PREFIX, dataLength);
+				this.cubes.increment();
+				modified[index] = CubeNbt.isModified(nbt, this.natural);
+				if(modified[index] && stopAtFirst) break;
+			}
+			return modified;
+		} catch(NoSuchFileException e) {
+			return null;
+		} catch(IOException | DataFormatException e) {
+			System.err.println(String.format("Could not read the content of %s: %s", file, e));
+			return null;
+		}
+	}
+	
+	/**
+	 * @return the number of cubes that were decompressed and inspected so far
+	 */
+	public long cubeCount() {
+		return this.cubes.sum();
+	}
+	
+	@Override
+	public void terminate() {
+		this.workers.shutdownNow();
+	}
+	
+	@Override
+	public int queueSize() {
+		return this.toProcess.get();
+	}
+	
+	/**
+	 * The buffers of a thread, they grow to fit the largest cube seen and are never shrunk
+	 */
+	private static class Buffers {
+		
+		final Inflater gzipInflater = new Inflater(true);
+		final Inflater zlibInflater = new Inflater(false);
+		ByteBuffer compressed = ByteBuffer.allocate(64 << 10);
+		byte[] uncompressed = new byte[256 << 10];
+		
+		ByteBuffer compressed(int length) {
+			if(this.compressed.capacity() < length) this.compressed = ByteBuffer.allocate(Math.max(length, this.compressed.capacity() * 2));
+			this.compressed.clear();
+			this.compressed.limit(length);
+			return this.compressed;
+		}
+		
+		/**
+		 * Decompresses GZIP or zlib data, uncompressed NBT is returned as is
+		 */
+		ByteBuffer decompress(byte[] data, int offset, int length) throws IOException, DataFormatException {
+			if(length < 2) throw new IOException("Empty cube");
+			Inflater inflater;
+			if((data[offset] & 0xFF) == 0x1F && (data[offset + 1] & 0xFF) == 0x8B) {
+				int header = gzipHeaderLength(data, offset, length);
+				inflater = this.gzipInflater;
+				inflater.reset();
+				inflater.setInput(data, offset + header, length - header);
+			} else if((data[offset] & 0x0F) == 8 && ((data[offset] & 0xFF) << 8 | data[offset + 1] & 0xFF) % 31 == 0) {
+				inflater = this.zlibInflater;
+				inflater.reset();
+				inflater.setInput(data, offset, length);
+			} else {
+				return ByteBuffer.wrap(data, offset, length);
+			}
+			int total = 0;
+			while(!inflater.finished()) {
+				if(total == this.uncompressed.length) this.uncompressed = Arrays.copyOf(this.uncompressed, total * 2);
+				int inflated = inflater.inflate(this.uncompressed, total, this.uncompressed.length - total);
+				if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) throw new IOException("Truncated compressed cube");
+				total += inflated;
+			}
+			return ByteBuffer.wrap(this.uncompressed, 0, total);
+		}
+		
+		private static int gzipHeaderLength(byte[] data, int offset, int length) throws IOException {
+			int end = offset + length;
+			if(length < 10 || data[offset + 2] != 8) throw new IOException("Unsupported GZIP header");
+			int flags = data[offset + 3];
+			int position = offset + 10;
+			if((flags & 4) != 0) {
+				if(position + 2 > end) throw new IOException("Truncated GZIP header");
+				position += 2 + ((data[position] & 0xFF) | (data[position + 1] & 0xFF) << 8);
+			}
+			if((flags & 8) != 0) while(position < end && data[position++] != 0);
+			if((flags & 16) != 0) while(position < end && data[position++] != 0);
+			if((flags & 2) != 0) position += 2;
+			if(position >= end) throw new IOException("Truncated GZIP header");
+			return position - offset;
+		}
+	
+	}
+
+}
@@ -0,0 +1,240 @@
+package fr.thesmyler.terracleanup.elevation;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import fr.thesmyler.terracleanup.api.ICacheHolder;
+import fr.thesmyler.terracleanup.util.ConcurrentLongMap;
+import fr.thesmyler.terracleanup.util.IntRange;
+import fr.thesmyler.terracleanup.util.Packing;
+import fr.thesmyler.terracleanup.util.coordinates.IPosition2d;
+
+/**
+ * A bounded cache of column elevation ranges.
+ * <br>
+ * Ranges are kept packed in a {@link ConcurrentLongMap} keyed by packed column positions, so an entry costs a few dozen bytes
+ * and millions of columns fit in a few tens of megabytes.
+ * While the range of a column is being computed, its entry holds an in-flight marker with the index of a slot the future of the computation is kept in,
+ * so concurrent lookups of the same column share a single computation. The future is in its slot before the marker is published, so lookups never wait for it.
+ * In-flight entries are never evicted, so the budget may be temporarily exceeded. Failed computations are not cached.
+ * Columns whose sections are all classified can be released as soon as they are, see {@link #release(IPosition2d)}.
+ * Once over budget, entries are evicted with the CLOCK policy, an approximation of LRU.
+ *
+ * @param <C> the column type
+ */
+public class ColumnElevationCache<C extends IPosition2d> implements ICacheHolder {
+	
+	/** A rough estimate of the heap used by an entry, including the free slots of the hash table */
+	public static final int ESTIMATED_ENTRY_SIZE = 2 * ConcurrentLongMap.BYTES_PER_SLOT;
+	
+	private final ConcurrentLongMap ranges;
+	private final InFlightSlots inFlight = new InFlightSlots();
+	
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	
+	/**
+	 * @param memoryBudget approximately how much heap this cache is allowed to use, in bytes
+	 */
+	public ColumnElevationCache(long memoryBudget) {
+		int maxEntries = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / ESTIMATED_ENTRY_SIZE));
+		this.ranges = new ConcurrentLongMap(maxEntries, value -> !isInFlight(value));
+	}
+	
+	/**
+	 * Gets the elevation range of a column, computing it if needed.
+	 *
+	 * @param column
+	 * @param loader computes the range of the column when it is not cached
+	 * @return the future elevation range of the column
+	 */
+	public CompletableFuture<IntRange> get(C column, Function<C, CompletableFuture<IntRange>> loader) {
+		long key = Packing.packColumn(column.x(), column.z());
+		while(true) {
+			long range = this.ranges.get(key);
+			if(isInFlight(range)) {
+				CompletableFuture<IntRange> future = this.inFlight.get(slotOf(range), key);
+				if(future != null) {
+					this.hits.increment();
+					return future;
+				}
+				// The computation finished and the map was updated since it was read
+			} else if(range != ConcurrentLongMap.MISSING) {
+				this.hits.increment();
+				return CompletableFuture.completedFuture(Packing.unpackRange(range));
+			} else {
+				CompletableFuture<IntRange> future = new CompletableFuture<>();
+				int slot = this.inFlight.register(key, future);
+				if(this.ranges.putIfAbsent(key, inFlightMarker(slot)) == ConcurrentLongMap.MISSING) {
+					this.misses.increment();
+					this.load(column, key, slot, future, loader);
+					return future;
+				}
+				this.inFlight.release(slot);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the elevation range of a column if it is already computed, without allocating anything
+	 *
+	 * @param column
+	 * @return the elevation range of the column packed with {@link Packing#packRange(IntRange)},
+	 * 			or {@link ConcurrentLongMap#MISSING} if it is not cached or still being computed
+	 */
+	public long peek(C column) {
+		long range = this.ranges.get(Packing.packColumn(column.x(), column.z()));
+		if(isInFlight(range)) return ConcurrentLongMap.MISSING;
+		if(range != ConcurrentLongMap.MISSING) this.hits.increment();
+		return range;
+	}
+	
+	private void load(C column, long key, int slot, CompletableFuture<IntRange> future, Function<C, CompletableFuture<IntRange>> loader) {
+		CompletableFuture<IntRange> computation;
+		try {
+			computation = loader.apply(column);
+		} catch(RuntimeException e) {
+			computation = new CompletableFuture<>();
+			computation.completeExceptionally(e);
+		}
+		computation.whenComplete((range, error) -> {
+			// The map is updated before the slot is released, so lookups in between still find one or the other
+			if(error == null) {
+				this.ranges.put(key, Packing.packRange(range));
+			} else {
+				this.ranges.remove(key);
+			}
+			this.inFlight.release(slot);
+			if(error == null) {
+				future.complete(range);
+			} else {
+				future.completeExceptionally(error);
+			}
+		});
+	}
+	
+	/**
+	 * Caches the range of a column that was computed without going through {@link #get(IPosition2d, Function)}.
+	 * Does nothing if the range is being computed, the computation will cache it when done.
+	 *
+	 * @param column
+	 * @param range the elevation range of the column, or null if it is entirely out of projection bounds
+	 */
+	public void put(C column, IntRange range) {
+		long key = Packing.packColumn(column.x(), column.z());
+		long packed = Packing.packRange(range);
+		long previous = this.ranges.putIfAbsent(key, packed);
+		if(previous != ConcurrentLongMap.MISSING && !isInFlight(previous)) this.ranges.put(key, packed);
+	}
+	
+	/**
+	 * Drops the range of a column that will not be looked up anymore, without waiting for it to be evicted.
+	 * Ranges that are still being computed are kept.
+	 *
+	 * @param column
+	 * @return whether the range was cached and dropped
+	 */
+	public boolean release(C column) {
+		return this.ranges.removeEvictable(Packing.packColumn(column.x(), column.z())) != ConcurrentLongMap.MISSING;
+	}
+	
+	/**
+	 * @param column
+	 * @return whether the elevation range of the given column is cached, either computed or being computed
+	 */
+	public boolean contains(C column) {
+		return this.ranges.containsKey(Packing.packColumn(column.x(), column.z()));
+	}
+	
+	/**
+	 * Computations in flight are forgotten, they release their slot once done
+	 */
+	@Override
+	public void clearCache() {
+		this.ranges.clear();
+	}
+	
+	@Override
+	public int cacheCount() {
+		return this.ranges.size();
+	}
+	
+	@Override
+	public long cacheHits() {
+		return this.hits.sum();
+	}
+	
+	@Override
+	public long cacheMisses() {
+		return this.misses.sum();
+	}
+	
+	@Override
+	public long cacheEvictions() {
+		return this.ranges.evictions();
+	}
+	
+	/**
+	 * In-flight markers cannot be mistaken for ranges because their lower bound is greater than their upper bound,
+	 * and they differ from {@link Packing#NO_RANGE} by their upper bound, which holds the slot index
+	 */
+	private static long inFlightMarker(int slot) {
+		return Packing.pack(Integer.MAX_VALUE, Integer.MIN_VALUE + 1 + slot);
+	}
+	
+	private static boolean isInFlight(long value) {
+		return Packing.high(value) == Integer.MAX_VALUE && Packing.low(value) != Integer.MIN_VALUE && Packing.low(value) != Integer.MAX_VALUE;
+	}
+	
+	private static int slotOf(long marker) {
+		return Packing.low(marker) - Integer.MIN_VALUE - 1;
+	}
+	
+	/**
+	 * The futures of the computations in flight, in slots that are reused once they are done.
+	 * Slots are only taken and released on cache misses, which are followed by a costly computation, so they are simply synchronized.
+	 */
+	private static class InFlightSlots {
+		
+		private long[] keys = new long[16];
+		private CompletableFuture<?>[] futures = new CompletableFuture<?>[16];
+		private int[] free = new int[16];
+		private int freeCount = 0;
+		private int used = 0;
+		
+		synchronized int register(long key, CompletableFuture<IntRange> future) {
+			int slot;
+			if(this.freeCount > 0) {
+				slot = this.free[--this.freeCount];
+			} else {
+				if(this.used == this.futures.length) {
+					this.keys = Arrays.copyOf(this.keys, this.used * 2);
+					this.futures = Arrays.copyOf(this.futures, this.used * 2);
+					this.free = Arrays.copyOf(this.free, this.used * 2);
+				}
+				slot = this.used++;
+			}
+			this.keys[slot] = key;
+			this.futures[slot] = future;
+			return slot;
+		}
+		
+		/**
+		 * @return the future in the slot if it is for the given key, or null if the slot was released, and maybe reused for another column
+		 */
+		@SuppressWarnings("unchecked")
+		synchronized CompletableFuture<IntRange> get(int slot, long key) {
+			if(slot >= this.used || this.keys[slot] != key) return null;
+			return (CompletableFuture<IntRange>) this.futures[slot];
+		}
+		
+		synchronized void release(int slot) {
+			this.futures[slot] = null;
+			this.free[this.freeCount++] = slot;
+		}
+	
+	}
+
+}
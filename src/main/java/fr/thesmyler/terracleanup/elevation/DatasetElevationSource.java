@@ -0,0 +1,76 @@
+package fr.thesmyler.terracleanup.elevation;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import fr.thesmyler.terracleanup.api.IElevationSource;
+import net.buildtheearth.terraminusminus.dataset.scalar.MultiresScalarDataset;
+import net.buildtheearth.terraminusminus.generator.EarthGeneratorPipelines;
+import net.buildtheearth.terraminusminus.generator.EarthGeneratorSettings;
+import net.buildtheearth.terraminusminus.projection.GeographicProjection;
+import net.buildtheearth.terraminusminus.projection.OutOfProjectionBoundsException;
+
+/**
+ * Gets elevation from the terra-- heights dataset of a world, the same way the world generator does.
+ * Tiles are fetched from the remote servers configured in terra--, unless they are already in its cache.
+ */
+public class DatasetElevationSource implements IElevationSource {
+	
+	private final EarthGeneratorSettings settings;
+	private final MultiresScalarDataset heights;
+	private final GeographicProjection projection;
+	
+	/**
+	 * @param settings the generation settings of the world
+	 */
+	public DatasetElevationSource(EarthGeneratorSettings settings) {
+		this.settings = settings;
+		this.heights = (MultiresScalarDataset)EarthGeneratorPipelines.datasets(settings).get(EarthGeneratorPipelines.KEY_DATASET_HEIGHTS);
+		this.projection = settings.projection();
+	}
+	
+	/**
+	 * Uses a single bulk request to the heights dataset for the whole grid.
+	 */
+	@Override
+	public CompletableFuture<double[]> getElevationGrid(int minX, int minZ, int sizeX, int sizeZ, int step) {
+		double[] grid = new double[sizeX * sizeZ];
+		Arrays.fill(grid, Double.NaN);
+		double[] points = new double[grid.length * 2];
+		int[] indices = new int[grid.length];
+		int count = 0;
+		for(int i = 0; i < sizeX; i++) {
+			int x = minX + i * step;
+			for(int j = 0; j < sizeZ; j++) {
+				int z = minZ + j * step;
+				try {
+					double[] geo = this.projection.toGeo(x, z);
+					points[count * 2] = geo[0];
+					points[count * 2 + 1] = geo[1];
+					indices[count++] = i * sizeZ + j;
+				} catch (OutOfProjectionBoundsException silenced) {}
+			}
+		}
+		if(count == 0) return CompletableFuture.completedFuture(grid);
+		int found = count;
+		try {
+			return this.heights.getAsync(points, count).thenApply(elevations -> {
+				for(int k = 0; k < found; k++) grid[indices[k]] = elevations[k];
+				return grid;
+			});
+		} catch (Exception e) {
+			CompletableFuture<double[]> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
+	
+	/**
+	 * @return the JSON world settings, so persisted elevation data stays valid as long as the settings do not change
+	 */
+	@Override
+	public String description() {
+		return this.settings.toString();
+	}
+
+}
@@ -1,24 +1,28 @@
 package fr.thesmyler.terracleanup.elevation;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
 import fr.thesmyler.terracleanup.api.ICacheHolder;
+import fr.thesmyler.terracleanup.api.IElevationSource;
 import fr.thesmyler.terracleanup.api.IClassifier;
+import fr.thesmyler.terracleanup.util.ConcurrentLongMap;
 import fr.thesmyler.terracleanup.util.IntRange;
+import fr.thesmyler.terracleanup.util.Packing;
+import fr.thesmyler.terracleanup.util.WorkerPools;
 import fr.thesmyler.terracleanup.util.coordinates.IPosition2d;
 import fr.thesmyler.terracleanup.util.coordinates.IPosition3d;
-import net.buildtheearth.terraminusminus.dataset.scalar.MultiresScalarDataset;
-import net.buildtheearth.terraminusminus.generator.EarthGeneratorPipelines;
+import fr.thesmyler.terracleanup.util.metrics.LatencyHistogram;
+import fr.thesmyler.terracleanup.util.metrics.Metrics;
 import net.buildtheearth.terraminusminus.generator.EarthGeneratorSettings;
-import net.buildtheearth.terraminusminus.projection.GeographicProjection;
-import net.buildtheearth.terraminusminus.projection.OutOfProjectionBoundsException;
 
 /**
  * Classifies 3D world sections based on their altitude relative to ground elevation.
@@ -30,20 +34,39 @@ import net.buildtheearth.terraminusminus.projection.OutOfProjectionBoundsExcepti
  */
 public class ElevationClassifier<C extends IPosition2d, P extends IPosition3d<C>> implements IClassifier<P, ElevationClassification>, ICacheHolder {
 	
-	private final ExecutorService lookupPool;
-	private final ExecutorService elevationComputePool;
+	private final ExecutorService workers;
 	
-	private final ConcurrentMap<C, Future<IntRange>> cache = new ConcurrentHashMap<>();
+	/** Default value for the memory budget of the column cache, in bytes */
+	public static final long DEFAULT_CACHE_BUDGET = 64L << 20;
 	
-	private final MultiresScalarDataset heights;
-	private final GeographicProjection projection;
+	private final ColumnElevationCache<C> cache;
+	
+	private final ElevationRangeStore store;
+	
+	private final IElevationSource source;
 	
 	private final int highSkyStart;
 	private final int deepStart;
 	private final int stepSize;
 	
+	private final boolean adaptiveSampling;
+	
 	private final AtomicInteger toProcess = new AtomicInteger(0);
 	
+	private final Metrics metrics = new Metrics();
+	private final LatencyHistogram queueWait = this.metrics.histogram("worker_queue_wait");
+	private final LatencyHistogram columnWait = this.metrics.histogram("column_wait");
+	private final LatencyHistogram computeTime = this.metrics.histogram("elevation_compute");
+	private final LatencyHistogram fetchTime = this.metrics.histogram("elevation_fetch");
+	private final LongAdder classified = this.metrics.counter("classified");
+	private final LongAdder failed = this.metrics.counter("failed");
+	
+	/** The minimum number of samples along each axis of the first grid when sampling adaptively */
+	private static final int ADAPTIVE_COARSE_SAMPLES = 4;
+	
+	/** The slope, in blocks of elevation per block, terrain between samples is assumed to reach when sampling adaptively, even if samples look flatter */
+	private static final double ADAPTIVE_ASSUMED_SLOPE = 1;
+	
 	/**
 	 * Default constructor
 	 * 
@@ -51,16 +74,76 @@ public class ElevationClassifier<C extends IPosition2d, P extends IPosition3d<C>
 	 * @param stepSize the interval at which to sample ground elevation for, in blocks
 	 * @param deepBelow depth under which a section will be classified as {@link ElevationClassification#UNDERGROUND_DEEP}
 	 * @param highAbove height above which a section will be classified as {@link ElevationClassification#SKY_HIGH}
-	 * @param workerCount number of threads to use when classification. This probably shouldn't be more than 4
+	 * @param workerCount number of threads to classify with, typically the number of cores as workers never wait on each other
 	 */
 	public ElevationClassifier(EarthGeneratorSettings settings, int stepSize, int deepBelow, int highAbove, int workerCount) {
+		this(settings, stepSize, deepBelow, highAbove, workerCount, null, DEFAULT_CACHE_BUDGET, false);
+	}
+	
+	/**
+	 * Full constructor
+	 * 
+	 * @param settings the generation settings of the world to classify for
+	 * @param stepSize the interval at which to sample ground elevation for, in blocks
+	 * @param deepBelow depth under which a section will be classified as {@link ElevationClassification#UNDERGROUND_DEEP}
+	 * @param highAbove height above which a section will be classified as {@link ElevationClassification#SKY_HIGH}
+	 * @param workerCount number of threads to classify with, typically the number of cores as workers never wait on each other
+	 * @param store a store to read known column elevation ranges from and write newly computed ones to, may be null.
+	 * 				It must have been opened with a fingerprint of the same settings and step size, and is not closed by {@link #terminate()}
+	 * @param cacheBudget approximately how much heap the in-memory column cache is allowed to use, in bytes
+	 * @param adaptiveSampling whether {@link #classifyColumn(IPosition2d, List)} should start from a coarse sampling grid and only refine it
+	 * 				as long as the classification of the sections could still change, instead of always sampling at stepSize
+	 */
+	public ElevationClassifier(EarthGeneratorSettings settings, int stepSize, int deepBelow, int highAbove, int workerCount, ElevationRangeStore store, long cacheBudget, boolean adaptiveSampling) {
+		this(new DatasetElevationSource(settings), stepSize, deepBelow, highAbove, workerCount, store, cacheBudget, adaptiveSampling);
+	}
+	
+	/**
+	 * Constructor for an arbitrary elevation source
+	 * 
+	 * @param source where to get ground elevation from
+	 * @param stepSize the interval at which to sample ground elevation for, in blocks
+	 * @param deepBelow depth under which a section will be classified as {@link ElevationClassification#UNDERGROUND_DEEP}
+	 * @param highAbove height above which a section will be classified as {@link ElevationClassification#SKY_HIGH}
+	 * @param workerCount number of threads to classify with, typically the number of cores as workers never wait on each other
+	 * @param store a store to read known column elevation ranges from and write newly computed ones to, may be null.
+	 * 				It must have been opened with a fingerprint of the same source and step size, and is not closed by {@link #terminate()}
+	 * @param cacheBudget approximately how much heap the in-memory column cache is allowed to use, in bytes
+	 * @param adaptiveSampling whether {@link #classifyColumn(IPosition2d, List)} should start from a coarse sampling grid and only refine it
+	 * 				as long as the classification of the sections could still change, instead of always sampling at stepSize
+	 */
+	public ElevationClassifier(IElevationSource source, int stepSize, int deepBelow, int highAbove, int workerCount, ElevationRangeStore store, long cacheBudget, boolean adaptiveSampling) {
+		this(source, stepSize, deepBelow, highAbove, WorkerPools.workStealing(workerCount, "Elevation classifier"), store, cacheBudget, adaptiveSampling);
+	}
+	
+	/**
+	 * Constructor for an arbitrary elevation source and executor
+	 * 
+	 * @param source where to get ground elevation from
+	 * @param stepSize the interval at which to sample ground elevation for, in blocks
+	 * @param deepBelow depth under which a section will be classified as {@link ElevationClassification#UNDERGROUND_DEEP}
+	 * @param highAbove height above which a section will be classified as {@link ElevationClassification#SKY_HIGH}
+	 * @param workers the executor to classify on, see {@link WorkerPools}. It is shut down by {@link #terminate()}
+	 * @param store a store to read known column elevation ranges from and write newly computed ones to, may be null.
+	 * 				It must have been opened with a fingerprint of the same source and step size, and is not closed by {@link #terminate()}
+	 * @param cacheBudget approximately how much heap the in-memory column cache is allowed to use, in bytes
+	 * @param adaptiveSampling whether {@link #classifyColumn(IPosition2d, List)} should start from a coarse sampling grid and only refine it
+	 * 				as long as the classification of the sections could still change, instead of always sampling at stepSize
+	 */
+	public ElevationClassifier(IElevationSource source, int stepSize, int deepBelow, int highAbove, ExecutorService workers, ElevationRangeStore store, long cacheBudget, boolean adaptiveSampling) {
+		this.source = source;
+		this.store = store;
+		this.adaptiveSampling = adaptiveSampling;
+		this.cache = new ColumnElevationCache<>(cacheBudget);
 		this.highSkyStart = highAbove;
-		this.deepStart = highAbove;
+		this.deepStart = deepBelow;
 		this.stepSize = stepSize;
-		this.lookupPool = Executors.newFixedThreadPool(workerCount);
-		this.elevationComputePool = Executors.newFixedThreadPool(workerCount);
-		this.heights = (MultiresScalarDataset)EarthGeneratorPipelines.datasets(settings).get(EarthGeneratorPipelines.KEY_DATASET_HEIGHTS);
-		this.projection = settings.projection();
+		this.workers = workers;
+		this.metrics.gauge("cache_hits", this.cache::cacheHits);
+		this.metrics.gauge("cache_misses", this.cache::cacheMisses);
+		this.metrics.gauge("cache_evictions", this.cache::cacheEvictions);
+		this.metrics.gauge("cache_count", this.cache::cacheCount);
+		this.metrics.gauge("queue_size", this.toProcess::get);
 	}
 	
 	/**
@@ -69,85 +152,477 @@ public class ElevationClassifier<C extends IPosition2d, P extends IPosition3d<C>
 	 * @param position a 3d world section position of type {@link P}
 	 * @return a {@link CompletableFuture} than will hold a {@link ElevationClassification} once completed
 	 */
-	public synchronized CompletableFuture<ElevationClassification> classify(P position){
-		this.toProcess.incrementAndGet();
-		return CompletableFuture.completedFuture(position).thenApplyAsync(p -> {
-			try {
-				return this.classifyFromRange(p.rangeY(), this.getElevationRange(p.column()));
-			} catch (Exception e) {
-				e.printStackTrace();
-				return ElevationClassification.FAILED;
-			} finally {
-				this.toProcess.decrementAndGet();
+	public CompletableFuture<ElevationClassification> classify(P position){
+		ElevationClassification[] classification = new ElevationClassification[1];
+		return this.classifyGroup(position.column(), Collections.singletonList(position), null, 0, 1, classification).thenApply(v -> classification[0]);
+	}
+	
+	/**
+	 * Submits a classification task for multiple sections of the same column.
+	 * The elevation range of the column is only looked up once, and all sections are classified by the same task.
+	 * 
+	 * @param column the column all the sections belong to
+	 * @param sections the sections to classify, they must all be in column
+	 * @return a {@link CompletableFuture} that will hold the classifications of the sections, in the same order
+	 */
+	public CompletableFuture<ElevationClassification[]> classifyColumn(C column, List<P> sections) {
+		ElevationClassification[] classifications = new ElevationClassification[sections.size()];
+		return this.classifyGroup(column, sections, null, 0, sections.size(), classifications).thenApply(v -> classifications);
+	}
+	
+	/**
+	 * Classifies sections from any number of columns.
+	 * Sections are grouped by column, and each column is classified by a single task that looks its elevation range up once.
+	 */
+	@Override
+	public CompletableFuture<Void> classifyAll(List<? extends P> sections, ElevationClassification[] results) {
+		int count = sections.size();
+		if(count == 0) return CompletableFuture.completedFuture(null);
+		
+		// Counting sort of the section indices by column, keyed by packed column positions so no column object is created per section.
+		// Group ids are found with a local open addressing table at most half full, as the batch is only ever seen by this thread
+		int mask = Integer.highestOneBit(count) * 4 - 1;
+		long[] keys = new long[mask + 1];
+		int[] ids = new int[mask + 1];
+		Arrays.fill(ids, -1);
+		int[] groups = new int[count];
+		int[] starts = new int[count + 1];
+		int groupCount = 0;
+		for(int i = 0; i < count; i++) {
+			P section = sections.get(i);
+			long key = Packing.packColumn(section.x(), section.z());
+			int slot = slot(key, mask);
+			while(ids[slot] != -1 && keys[slot] != key) slot = (slot + 1) & mask;
+			if(ids[slot] == -1) {
+				keys[slot] = key;
+				ids[slot] = groupCount++;
 			}
-		}, this.lookupPool);
+			groups[i] = ids[slot];
+			starts[ids[slot] + 1]++;
+		}
+		for(int group = 0; group < groupCount; group++) starts[group + 1] += starts[group];
+		int[] order = new int[count];
+		int[] next = Arrays.copyOf(starts, groupCount);
+		for(int i = 0; i < count; i++) order[next[groups[i]]++] = i;
 		
+		CompletableFuture<?>[] tasks = new CompletableFuture<?>[groupCount];
+		for(int group = 0; group < groupCount; group++) {
+			C column = sections.get(order[starts[group]]).column();
+			tasks[group] = this.classifyGroup(column, sections, order, starts[group], starts[group + 1], results);
+		}
+		return CompletableFuture.allOf(tasks);
+	}
+	
+	private static int slot(long key, int mask) {
+		int hash = (int) (key ^ key >>> 32) * 0x9E3779B9;
+		return (hash ^ hash >>> 16) & mask;
+	}
+	
+	/**
+	 * Starts computing the elevation range of a column that is about to be classified, so the dataset tiles it needs are being fetched
+	 * while other columns are classified. Does nothing if the range is already cached or being computed.
+	 * When sampling adaptively, columns with an unknown range are not prefetched, as that would sample them at full resolution.
+	 * 
+	 * @param column
+	 */
+	public void prefetch(C column) {
+		if(this.cache.contains(column) || this.adaptiveSampling && !this.isElevationRangeKnown(column)) return;
+		// Failures are not cached, they are reported when the column is classified
+		this.workers.execute(() -> this.cache.get(column, this::loadElevationRange));
+	}
+	
+	/**
+	 * Drops the cached elevation range of a column once every one of its sections is classified,
+	 * so the cache does not fill with columns that will not be looked up again.
+	 * Only call this when no other section of the column will be submitted, e.g. when columns are read from a complete index.
+	 * 
+	 * @param column
+	 */
+	public void release(C column) {
+		this.cache.release(column);
 	}
 	
-	private IntRange getElevationRange(C column) throws InterruptedException, ExecutionException {
-		Future<IntRange> future;
-		synchronized(this.cache) {
-			if(this.cache.containsKey(column)) {
-				future = this.cache.get(column);
+	/**
+	 * Submits a task that classifies sections of a single column
+	 * 
+	 * @param column the column all the sections belong to
+	 * @param sections a list the sections are taken from
+	 * @param order the indices of the sections in the list, or null to use [from, to) directly
+	 * @param from the first index in order
+	 * @param to after the last index in order
+	 * @param results where to write the classifications, at the same indices as the sections
+	 * @return a future completed once the classifications are written
+	 */
+	private CompletableFuture<Void> classifyGroup(C column, List<? extends P> sections, int[] order, int from, int to, ElevationClassification[] results) {
+		int count = to - from;
+		this.toProcess.addAndGet(count);
+		long submitted = System.nanoTime();
+		// Nothing in here waits: tasks that need elevation that is not computed yet continue once it is, instead of holding a worker
+		CompletableFuture<Void> classification = CompletableFuture.supplyAsync(() -> {
+			this.queueWait.recordSince(submitted);
+			long waitStart = System.nanoTime();
+			if(this.adaptiveSampling && !this.isElevationRangeKnown(column)) {
+				List<P> group = new ArrayList<>(count);
+				for(int i = from; i < to; i++) group.add(sections.get(order != null ? order[i]: i));
+				return this.classifyAdaptively(column, group).thenAccept(classifications -> {
+					this.columnWait.recordSince(waitStart);
+					for(int i = from; i < to; i++) results[order != null ? order[i]: i] = classifications[i - from];
+				});
+			}
+			long elevation = this.cache.peek(column);
+			if(elevation != ConcurrentLongMap.MISSING) {
+				this.columnWait.recordSince(waitStart);
+				this.classifyGroupFromRange(sections, order, from, to, elevation, results);
+				return CompletableFuture.<Void>completedFuture(null);
 			}
-			else {
-				future = this.elevationComputePool.submit(() -> computeElevationRange(column));
-				this.cache.put(column, future);
+			// Continue on a worker rather than on whichever thread completes the range, which may belong to the elevation source
+			return this.cache.get(column, this::loadElevationRange).thenAcceptAsync(range -> {
+				this.columnWait.recordSince(waitStart);
+				this.classifyGroupFromRange(sections, order, from, to, Packing.packRange(range), results);
+			}, this.workers);
+		}, this.workers).thenCompose(Function.identity());
+		return classification.handle((v, error) -> {
+			if(error != null) {
+				error.printStackTrace();
+				for(int i = from; i < to; i++) results[order != null ? order[i]: i] = ElevationClassification.FAILED;
+				this.failed.add(count);
+			} else {
+				this.classified.add(count);
 			}
+			this.toProcess.addAndGet(-count);
+			return null;
+		});
+	}
+	
+	private void classifyGroupFromRange(List<? extends P> sections, int[] order, int from, int to, long elevationRange, ElevationClassification[] results) {
+		for(int i = from; i < to; i++) {
+			int index = order != null ? order[i]: i;
+			P section = sections.get(index);
+			int minY = section.minY();
+			results[index] = this.classifyFromPackedRange(minY, minY + section.size() - 1, elevationRange);
 		}
-		return future.get();
 	}
 	
-	private IntRange computeElevationRange(C column) throws InterruptedException, ExecutionException {
-		int sampleStep = this.stepSize;
+	/**
+	 * Classifies sections that all have the same ground elevation range. This is the per section hot path, it does not allocate.
+	 * 
+	 * @param sections
+	 * @param elevationRange the ground elevation range below the sections, packed with {@link Packing#packRange(IntRange)}
+	 * @param classifications where to write the classifications of the sections, in the same order
+	 */
+	void classifySections(List<P> sections, long elevationRange, ElevationClassification[] classifications) {
+		this.classifyGroupFromRange(sections, null, 0, classifications.length, elevationRange, classifications);
+	}
+	
+	private boolean isElevationRangeKnown(C column) {
+		if(this.cache.contains(column)) return true;
+		return this.store != null && this.store.get(Packing.packColumn(column.x(), column.z())) != ElevationRangeStore.MISSING;
+	}
+	
+	/**
+	 * Classifies sections of a column by sampling elevation on increasingly fine grids,
+	 * stopping as soon as none of the classifications can change anymore.
+	 * Each grid only fetches the points the previous one did not have, so a column that is refined down to the finest grid
+	 * costs as much as sampling it at full resolution directly.
+	 * The whole column is refined at once, as its classification only depends on its overall range and the elevation source is queried by grids.
+	 * <br>
+	 * The samples seen so far give a lower estimate of the elevation range of the column.
+	 * Elevation between samples is assumed not to differ from them by more than one grid step times the steepest slope,
+	 * either observed between two neighboring samples or {@link #ADAPTIVE_ASSUMED_SLOPE} if the samples are flatter,
+	 * so classifications are settled once widening the range by that margin does not change them.
+	 * This is only an assumption: features narrower than a coarse grid step and steeper than that slope can be missed,
+	 * which is why adaptive results should not be used to delete anything.
+	 * If the finest grid is reached, the resulting range is exact and is recorded in the cache and in the persistent store.
+	 * 
+	 * @param column
+	 * @param sections
+	 * @return a future that will hold the classifications of the sections, in the same order
+	 */
+	private CompletableFuture<ElevationClassification[]> classifyAdaptively(C column, List<P> sections) {
+		int step = this.stepSize;
+		while(step * 2 * ADAPTIVE_COARSE_SAMPLES <= column.size()) step *= 2;
+		return this.refine(column, sections, step, null);
+	}
+	
+	private CompletableFuture<ElevationClassification[]> refine(C column, List<P> sections, int step, double[] coarser) {
+		// All grids are subsets of the finest one, so the final range is the same as without adaptive sampling
 		IntRange xs = column.rangeX();
 		IntRange zs = column.rangeZ();
-		double minElevation = Integer.MAX_VALUE;
-		double maxElevation = Integer.MIN_VALUE;
-		for(int x = xs.lowerBound() + sampleStep / 2; x <= xs.upperBound(); x += sampleStep) {
-			for(int z = zs.lowerBound() + sampleStep / 2; z <= zs.upperBound(); z += sampleStep) {
-				try {
-					double[] geo = this.projection.toGeo(x, z);
-					double elevation = this.heights.getAsync(geo[0], geo[1]).get();
+		int first = this.stepSize / 2;
+		int sizeX = gridSize(xs.size() - first, step);
+		int sizeZ = gridSize(zs.size() - first, step);
+		CompletableFuture<double[]> fetched = coarser == null ?
+				this.fetchElevationGrid(xs.lowerBound() + first, zs.lowerBound() + first, sizeX, sizeZ, step):
+				this.fetchRefinedGrid(xs.lowerBound() + first, zs.lowerBound() + first, xs.size() - first, zs.size() - first, step, coarser);
+		return fetched.thenCompose(grid -> {
+			double minElevation = Double.POSITIVE_INFINITY;
+			double maxElevation = Double.NEGATIVE_INFINITY;
+			double maxDelta = 0;
+			boolean partial = false;
+			for(int i = 0; i < sizeX; i++) {
+				for(int j = 0; j < sizeZ; j++) {
+					double elevation = grid[i * sizeZ + j];
+					if(Double.isNaN(elevation)) {
+						partial = true;
+						continue;
+					}
 					minElevation = Math.min(minElevation, elevation);
 					maxElevation = Math.max(maxElevation, elevation);
-				} catch (OutOfProjectionBoundsException silenced) {}
+					if(i > 0 && !Double.isNaN(grid[(i - 1) * sizeZ + j])) maxDelta = Math.max(maxDelta, Math.abs(elevation - grid[(i - 1) * sizeZ + j]));
+					if(j > 0 && !Double.isNaN(grid[i * sizeZ + j - 1])) maxDelta = Math.max(maxDelta, Math.abs(elevation - grid[i * sizeZ + j - 1]));
+				}
+			}
+			IntRange observed = minElevation <= maxElevation ? new IntRange((int)Math.round(minElevation), (int)Math.round(maxElevation)): null;
+			ElevationClassification[] classifications = new ElevationClassification[sections.size()];
+			this.classifySections(sections, Packing.packRange(observed), classifications);
+			if(step <= this.stepSize) {
+				// Other sections of the column may be submitted later, they should not sample it again
+				this.cache.put(column, observed);
+				this.storeElevationRange(column, observed);
+				return CompletableFuture.completedFuture(classifications);
+			}
+			if(!partial && observed != null) {
+				int margin = (int)Math.ceil(Math.max(maxDelta, step * ADAPTIVE_ASSUMED_SLOPE));
+				int widenedMin = observed.lowerBound() - margin;
+				int widenedMax = observed.upperBound() + margin;
+				boolean settled = true;
+				for(int i = 0; i < classifications.length && settled; i++) {
+					P section = sections.get(i);
+					settled = this.classifyFromBounds(section.minY(), section.minY() + section.size() - 1, widenedMin, widenedMax) == classifications[i];
+				}
+				if(settled) return CompletableFuture.completedFuture(classifications);
+			}
+			return this.refine(column, sections, step / 2, grid);
+		});
+	}
+	
+	/**
+	 * Fetches a grid from a grid twice as coarse, which holds its points with even indices along both axes.
+	 * Only the new points are fetched, as three grids of the coarser step offset by half of it along X, Z, or both.
+	 * 
+	 * @param minX the X coordinate of the first sample, in blocks
+	 * @param minZ the Z coordinate of the first sample, in blocks
+	 * @param lengthX how far samples can go along X from the first one, in blocks
+	 * @param lengthZ how far samples can go along Z from the first one, in blocks
+	 * @param step the step of the new grid
+	 * @param coarser the grid at twice the step, in X major order
+	 * @return a future that will hold the new grid, in X major order
+	 */
+	private CompletableFuture<double[]> fetchRefinedGrid(int minX, int minZ, int lengthX, int lengthZ, int step, double[] coarser) {
+		int sizeX = gridSize(lengthX, step);
+		int sizeZ = gridSize(lengthZ, step);
+		int evenX = gridSize(lengthX, 2 * step);
+		int evenZ = gridSize(lengthZ, 2 * step);
+		int oddX = gridSize(lengthX - step, 2 * step);
+		int oddZ = gridSize(lengthZ - step, 2 * step);
+		CompletableFuture<double[]> oddEven = this.fetchElevationGridIfAny(minX + step, minZ, oddX, evenZ, 2 * step);
+		CompletableFuture<double[]> evenOdd = this.fetchElevationGridIfAny(minX, minZ + step, evenX, oddZ, 2 * step);
+		CompletableFuture<double[]> oddOdd = this.fetchElevationGridIfAny(minX + step, minZ + step, oddX, oddZ, 2 * step);
+		return oddEven.thenCombine(evenOdd, (a, b) -> new double[][] {a, b}).thenCombine(oddOdd, (ab, c) -> {
+			double[] grid = new double[sizeX * sizeZ];
+			for(int i = 0; i < sizeX; i++) {
+				for(int j = 0; j < sizeZ; j++) {
+					double elevation;
+					if(i % 2 == 0 && j % 2 == 0) elevation = coarser[i / 2 * evenZ + j / 2];
+					else if(j % 2 == 0) elevation = ab[0][i / 2 * evenZ + j / 2];
+					else if(i % 2 == 0) elevation = ab[1][i / 2 * oddZ + j / 2];
+					else elevation = c[i / 2 * oddZ + j / 2];
+					grid[i * sizeZ + j] = elevation;
+				}
+			}
+			return grid;
+		});
+	}
+	
+	private CompletableFuture<double[]> fetchElevationGridIfAny(int minX, int minZ, int sizeX, int sizeZ, int step) {
+		if(sizeX == 0 || sizeZ == 0) return CompletableFuture.completedFuture(new double[0]);
+		return this.fetchElevationGrid(minX, minZ, sizeX, sizeZ, step);
+	}
+	
+	private CompletableFuture<IntRange> loadElevationRange(C column) {
+		long stored = this.store != null ? this.store.get(Packing.packColumn(column.x(), column.z())): ElevationRangeStore.MISSING;
+		if(stored != ElevationRangeStore.MISSING) return CompletableFuture.completedFuture(Packing.unpackRange(stored));
+		return this.computeElevationRange(column).thenApply(range -> this.storeElevationRange(column, range));
+	}
+	
+	private IntRange storeElevationRange(C column, IntRange range) {
+		if(this.store != null) {
+			try {
+				this.store.put(Packing.packColumn(column.x(), column.z()), Packing.packRange(range));
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
 		}
-		if(minElevation == Integer.MAX_VALUE || maxElevation == Integer.MIN_VALUE) return null;
-		return new IntRange((int)Math.round(minElevation), (int)Math.round(maxElevation));
+		return range;
+	}
+	
+	/**
+	 * Requests the elevation of a whole column in a single request to the elevation source and reduces it to a range,
+	 * so the calling thread is not held while the source loads data.
+	 * 
+	 * @param column
+	 * @return a future that will hold the elevation range of the column, or null if it is entirely out of projection bounds
+	 */
+	CompletableFuture<IntRange> computeElevationRange(C column) {
+		long start = System.nanoTime();
+		IntRange xs = column.rangeX();
+		IntRange zs = column.rangeZ();
+		int first = this.stepSize / 2;
+		int sizeX = gridSize(xs.size() - first, this.stepSize);
+		int sizeZ = gridSize(zs.size() - first, this.stepSize);
+		return this.fetchElevationGrid(xs.lowerBound() + first, zs.lowerBound() + first, sizeX, sizeZ, this.stepSize).thenApply(elevations -> {
+			double minElevation = Double.POSITIVE_INFINITY;
+			double maxElevation = Double.NEGATIVE_INFINITY;
+			for(double elevation: elevations) {
+				if(Double.isNaN(elevation)) continue;
+				minElevation = Math.min(minElevation, elevation);
+				maxElevation = Math.max(maxElevation, elevation);
+			}
+			this.computeTime.recordSince(start);
+			if(minElevation > maxElevation) return null;
+			return new IntRange((int)Math.round(minElevation), (int)Math.round(maxElevation));
+		});
+	}
+	
+	/**
+	 * Computes the elevation ranges of square cells that subdivide a column, e.g. the chunk columns of a region column.
+	 * Cells are sampled at the step size of this classifier, or at their center if they are smaller than it.
+	 * 
+	 * @param column the column to subdivide
+	 * @param cellSize the size of a cell, in blocks, it should divide the size of the column
+	 * @return a future that will hold the elevation range of each cell in X major order (index is x * cellsPerAxis + z), null for cells out of projection bounds
+	 */
+	public CompletableFuture<IntRange[]> getCellElevationRanges(C column, int cellSize) {
+		int step = Math.min(this.stepSize, cellSize);
+		int cells = column.size() / cellSize;
+		IntRange xs = column.rangeX();
+		IntRange zs = column.rangeZ();
+		int first = step / 2;
+		int sizeX = gridSize(xs.size() - first, step);
+		int sizeZ = gridSize(zs.size() - first, step);
+		return this.fetchElevationGrid(xs.lowerBound() + first, zs.lowerBound() + first, sizeX, sizeZ, step).thenApply(grid -> {
+			double[] minElevations = new double[cells * cells];
+			double[] maxElevations = new double[cells * cells];
+			Arrays.fill(minElevations, Double.POSITIVE_INFINITY);
+			Arrays.fill(maxElevations, Double.NEGATIVE_INFINITY);
+			for(int i = 0; i < sizeX; i++) {
+				int cellX = Math.min((first + i * step) / cellSize, cells - 1);
+				for(int j = 0; j < sizeZ; j++) {
+					double elevation = grid[i * sizeZ + j];
+					if(Double.isNaN(elevation)) continue;
+					int cell = cellX * cells + Math.min((first + j * step) / cellSize, cells - 1);
+					minElevations[cell] = Math.min(minElevations[cell], elevation);
+					maxElevations[cell] = Math.max(maxElevations[cell], elevation);
+				}
+			}
+			IntRange[] ranges = new IntRange[cells * cells];
+			for(int cell = 0; cell < ranges.length; cell++) {
+				if(minElevations[cell] <= maxElevations[cell]) ranges[cell] = new IntRange((int)Math.round(minElevations[cell]), (int)Math.round(maxElevations[cell]));
+			}
+			return ranges;
+		});
 	}
 	
-	private ElevationClassification classifyFromRange(IntRange yRange, IntRange elevationRange) {
+	/**
+	 * Requests elevation from the source, recording how long it takes
+	 */
+	private CompletableFuture<double[]> fetchElevationGrid(int minX, int minZ, int sizeX, int sizeZ, int step) {
+		return this.fetchTime.time(this.source.getElevationGrid(minX, minZ, sizeX, sizeZ, step));
+	}
+	
+	/**
+	 * @param length the distance available after the first sample, in blocks
+	 * @param step the interval between samples
+	 * @return how many samples fit
+	 */
+	private static int gridSize(int length, int step) {
+		if(length < 0) return 0;
+		return length / step + 1;
+	}
+	
+	/**
+	 * Classifies a vertical range against a ground elevation range, using this classifier's thresholds
+	 * 
+	 * @param yRange the vertical range of the section to classify, in blocks
+	 * @param elevationRange the ground elevation range below the section, or null if out of projection bounds
+	 * @return the classification of the section
+	 */
+	public ElevationClassification classifyFromRange(IntRange yRange, IntRange elevationRange) {
 		if(elevationRange == null) return ElevationClassification.OUT_OF_BOUNDS;
-		if(elevationRange.above(0)) elevationRange = new IntRange(0, 0); // Special case for oceans: we care about the surface, not the floor
-		if(elevationRange.intersects(yRange)) return ElevationClassification.SURFACE;
-		IntRange sky = elevationRange.extendUp(this.highSkyStart);
-		if(sky.intersects(yRange)) return ElevationClassification.SKY;
-		if(sky.above(yRange)) return ElevationClassification.SKY_HIGH;
-		IntRange underground = elevationRange.extendDown(this.deepStart);
-		if(underground.intersects(yRange)) return ElevationClassification.UNDERGROUND;
-		return ElevationClassification.UNDERGROUND_DEEP;
+		return this.classifyFromBounds(yRange.lowerBound(), yRange.upperBound(), elevationRange.lowerBound(), elevationRange.upperBound());
 	}
-
+	
+	/**
+	 * Same as {@link #classifyFromRange(IntRange, IntRange)}, with a packed elevation range
+	 * 
+	 * @param minY the lowest block of the section to classify
+	 * @param maxY the highest block of the section to classify
+	 * @param elevationRange the ground elevation range below the section packed with {@link Packing#packRange(IntRange)}, {@link Packing#NO_RANGE} if out of projection bounds
+	 * @return the classification of the section
+	 */
+	public ElevationClassification classifyFromPackedRange(int minY, int maxY, long elevationRange) {
+		if(elevationRange == Packing.NO_RANGE) return ElevationClassification.OUT_OF_BOUNDS;
+		return this.classifyFromBounds(minY, maxY, Packing.high(elevationRange), Packing.low(elevationRange));
+	}
+	
+	/**
+	 * Same as {@link #classifyFromRange(IntRange, IntRange)}, working on bounds directly so it never allocates
+	 * 
+	 * @param minY the lowest block of the section to classify
+	 * @param maxY the highest block of the section to classify
+	 * @param minElevation the lowest ground elevation below the section
+	 * @param maxElevation the highest ground elevation below the section
+	 * @return the classification of the section
+	 */
+	public ElevationClassification classifyFromBounds(int minY, int maxY, int minElevation, int maxElevation) {
+		if(maxElevation < 0) minElevation = maxElevation = 0; // Special case for oceans: we care about the surface, not the floor
+		if(minY <= maxElevation && maxY >= minElevation) return ElevationClassification.SURFACE;
+		// Long arithmetic so large thresholds cannot overflow
+		if(minY > maxElevation) return minY <= (long) maxElevation + this.highSkyStart ? ElevationClassification.SKY: ElevationClassification.SKY_HIGH;
+		return maxY >= (long) minElevation - this.deepStart ? ElevationClassification.UNDERGROUND: ElevationClassification.UNDERGROUND_DEEP;
+	}
+	
+	/**
+	 * @return the instrumentation of this classifier: how long tasks wait in queue, wait for their column elevation,
+	 * 			how long computing column elevation and fetching elevation takes, and cache and queue state
+	 */
+	public Metrics metrics() {
+		return this.metrics;
+	}
+	
 	@Override
 	public void clearCache() {
-		this.cache.clear();
+		this.cache.clearCache();
 	}
 	
 	@Override
 	public int cacheCount() {
-		return this.cache.size();
+		return this.cache.cacheCount();
+	}
+	
+	@Override
+	public long cacheHits() {
+		return this.cache.cacheHits();
+	}
+	
+	@Override
+	public long cacheMisses() {
+		return this.cache.cacheMisses();
+	}
+	
+	@Override
+	public long cacheEvictions() {
+		return this.cache.cacheEvictions();
 	}
 	
 	@Override
-	public synchronized int queueSize() {
+	public int queueSize() {
 		return this.toProcess.get();
 	}
 	
 	@Override
 	public synchronized void terminate() {
-		this.elevationComputePool.shutdownNow();
+		this.workers.shutdownNow();
 		this.clearCache();
 	}
 
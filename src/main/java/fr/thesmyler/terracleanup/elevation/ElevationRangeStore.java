@@ -0,0 +1,155 @@
+package fr.thesmyler.terracleanup.elevation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import fr.thesmyler.terracleanup.api.IElevationSource;
+import fr.thesmyler.terracleanup.util.ConcurrentLongMap;
+import fr.thesmyler.terracleanup.util.Hashing;
+import fr.thesmyler.terracleanup.util.Packing;
+
+/**
+ * A persistent store of column elevation ranges, so ground elevation does not have to be fetched again when running on the same world multiple times.
+ * <br>
+ * The file consists of a small header followed by fixed size records of a packed (x, z) column position and a packed (min, max) elevation range.
+ * Records are only ever appended, if a column appears more than once the last record wins.
+ * The header holds a fingerprint of the elevation source and sampling step the ranges were computed with,
+ * if it does not match the one the store is opened with, the file is discarded.
+ */
+public class ElevationRangeStore implements Closeable {
+	
+	/** Returned by {@link #get(long)} when a column is not in the store */
+	public static final long MISSING = ConcurrentLongMap.MISSING;
+	
+	private static final int MAGIC = 0x54434552; // TCER
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = 4 + 4 + 8;
+	private static final int RECORD_SIZE = 8 + 8;
+	private static final long FLUSH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+	
+	private final File file;
+	private final long fingerprint;
+	private final ConcurrentLongMap ranges = new ConcurrentLongMap();
+	private final DataOutputStream out;
+	private long lastFlush = System.nanoTime();
+	
+	/**
+	 * Opens a store, loading existing records if the file exists and has a matching fingerprint.
+	 *
+	 * @param file the file to store ranges in
+	 * @param fingerprint a fingerprint of the parameters the ranges are computed with, see {@link #fingerprint(IElevationSource, int)}
+	 * @throws IOException
+	 */
+	public ElevationRangeStore(File file, long fingerprint) throws IOException {
+		this.file = file;
+		this.fingerprint = fingerprint;
+		boolean valid = file.isFile() && this.load();
+		this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, valid)));
+		if(!valid) {
+			this.out.writeInt(MAGIC);
+			this.out.writeInt(FORMAT_VERSION);
+			this.out.writeLong(fingerprint);
+			this.out.flush();
+		}
+	}
+	
+	private boolean load() throws IOException {
+		long validLength = HEADER_SIZE;
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)))) {
+			if(in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+				System.err.println(String.format("%s is not a valid elevation cache, it will be overwritten", this.file));
+				return false;
+			}
+			if(in.readLong() != this.fingerprint) {
+				System.err.println(String.format("%s was computed with a different elevation source or step, it will be overwritten", this.file));
+				return false;
+			}
+			while(true) {
+				long column;
+				long range;
+				try {
+					column = in.readLong();
+					range = in.readLong();
+				} catch(EOFException e) {
+					break; // Either a clean end of file or a truncated record from an interrupted run
+				}
+				if(column != MISSING && range != MISSING) this.ranges.put(column, range);
+				validLength += RECORD_SIZE;
+			}
+		} catch(EOFException e) {
+			return false; // Truncated header
+		}
+		if(this.file.length() > validLength) {
+			// Drop the partial record so that new ones are appended at the right offset
+			try(RandomAccessFile raf = new RandomAccessFile(this.file, "rw")) {
+				raf.setLength(validLength);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @param column a column position packed with {@link Packing#packColumn(int, int)}
+	 * @return the elevation range of the column packed with {@link Packing#packRange(fr.thesmyler.terracleanup.util.IntRange)}, or {@link #MISSING}
+	 */
+	public long get(long column) {
+		return this.ranges.get(column);
+	}
+	
+	/**
+	 * Records the elevation range of a column
+	 *
+	 * @param column a column position packed with {@link Packing#packColumn(int, int)}
+	 * @param range the elevation range of the column packed with {@link Packing#packRange(fr.thesmyler.terracleanup.util.IntRange)}
+	 * @throws IOException
+	 */
+	public synchronized void put(long column, long range) throws IOException {
+		this.out.writeLong(column);
+		this.out.writeLong(range);
+		if(System.nanoTime() - this.lastFlush > FLUSH_INTERVAL_NANOS) this.flush();
+	}
+	
+	/**
+	 * Writes buffered records to disk, which {@link #put(long, long)} also does every few seconds
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		this.out.flush();
+		this.lastFlush = System.nanoTime();
+	}
+	
+	/**
+	 * @return the number of columns that were loaded from disk
+	 */
+	public int size() {
+		return this.ranges.size();
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		this.out.close();
+	}
+	
+	/**
+	 * Computes a fingerprint of everything that has an impact on the elevation ranges of columns
+	 *
+	 * @param source the elevation source, identified by its {@link IElevationSource#description()}
+	 * @param stepSize the elevation sampling step
+	 * @return a fingerprint for the given parameters
+	 */
+	public static long fingerprint(IElevationSource source, int stepSize) {
+		return Hashing.fingerprint(source.description(), Integer.toString(stepSize));
+	}
+
+}
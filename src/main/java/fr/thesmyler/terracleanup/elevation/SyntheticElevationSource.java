@@ -0,0 +1,69 @@
+package fr.thesmyler.terracleanup.elevation;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.DoubleBinaryOperator;
+
+import fr.thesmyler.terracleanup.api.IElevationSource;
+
+/**
+ * Computes elevation from a function of block coordinates.
+ * It is deterministic and does not need any data, which makes it suitable for tests and benchmarks.
+ */
+public class SyntheticElevationSource implements IElevationSource {
+	
+	private final String name;
+	private final DoubleBinaryOperator elevation;
+	
+	/**
+	 * @param name a name for the function, used as the description of this source
+	 * @param elevation a function from block X and Z coordinates to ground elevation, NaN means out of bounds
+	 */
+	public SyntheticElevationSource(String name, DoubleBinaryOperator elevation) {
+		this.name = name;
+		this.elevation = elevation;
+	}
+	
+	/**
+	 * @return a source with hills, mountains a few hundred blocks high and oceans, at a continental scale
+	 */
+	public static SyntheticElevationSource hills() {
+		return new SyntheticElevationSource("hills", (x, z) ->
+				800d * Math.sin(x / 40000d) * Math.cos(z / 52000d)
+				+ 120d * Math.sin(x / 1700d + z / 2300d)
+				+ 15d * Math.cos(x / 97d - z / 131d));
+	}
+	
+	/**
+	 * @param elevation
+	 * @return a source with the same elevation everywhere
+	 */
+	public static SyntheticElevationSource flat(double elevation) {
+		return new SyntheticElevationSource("flat " + elevation, (x, z) -> elevation);
+	}
+	
+	/**
+	 * @param x
+	 * @param z
+	 * @return the elevation at the given block coordinates
+	 */
+	public double elevation(double x, double z) {
+		return this.elevation.applyAsDouble(x, z);
+	}
+	
+	@Override
+	public CompletableFuture<double[]> getElevationGrid(int minX, int minZ, int sizeX, int sizeZ, int step) {
+		double[] grid = new double[sizeX * sizeZ];
+		for(int i = 0; i < sizeX; i++) {
+			for(int j = 0; j < sizeZ; j++) {
+				grid[i * sizeZ + j] = this.elevation.applyAsDouble(minX + i * step, minZ + j * step);
+			}
+		}
+		return CompletableFuture.completedFuture(grid);
+	}
+	
+	@Override
+	public String description() {
+		return "synthetic:" + this.name;
+	}
+
+}
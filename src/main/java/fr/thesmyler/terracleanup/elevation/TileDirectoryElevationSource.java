@@ -0,0 +1,249 @@
+package fr.thesmyler.terracleanup.elevation;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+import fr.thesmyler.terracleanup.api.IElevationSource;
+import fr.thesmyler.terracleanup.util.Hashing;
+import fr.thesmyler.terracleanup.util.Packing;
+import net.buildtheearth.terraminusminus.projection.GeographicProjection;
+import net.buildtheearth.terraminusminus.projection.OutOfProjectionBoundsException;
+
+/**
+ * Reads elevation from a local directory of pre-fetched Terrarium PNG tiles,
+ * laid out as <code>zoom/x/y.png</code> in the web mercator tiling scheme, like the AWS terrain tiles terra-- uses.
+ * <br>
+ * Elevation is interpolated bilinearly between pixels, and does not go through the post-processing of the terra-- heights pipeline,
+ * so results may slightly differ from {@link DatasetElevationSource}.
+ * A missing tile makes the whole request fail, instead of being taken as out of bounds.
+ * <br>
+ * Tiles are read from disk through {@link ForkJoinPool#managedBlock(ForkJoinPool.ManagedBlocker)},
+ * so the pool elevation is requested from can make up for workers waiting on the disk.
+ */
+public class TileDirectoryElevationSource implements IElevationSource {
+	
+	public static final int TILE_SIZE = 256;
+	
+	/** Highest zoom level global pixel coordinates still fit in an int at */
+	private static final int MAX_ZOOM = 22;
+	
+	/** How many decoded tiles to keep in memory, a tile takes 256KiB */
+	private static final int TILE_CACHE_SIZE = 256;
+	
+	private final Path folder;
+	private final int zoom;
+	private final GeographicProjection projection;
+	private final long contentFingerprint;
+	private final Map<Long, float[]> tiles = Collections.synchronizedMap(new LinkedHashMap<Long, float[]>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, float[]> eldest) {
+			return this.size() > TILE_CACHE_SIZE;
+		}
+	});
+	
+	/**
+	 * Uses tiles from the highest zoom level available in the folder
+	 *
+	 * @param folder the tile folder
+	 * @param projection the projection of the world, to convert block coordinates to geographic coordinates
+	 * @throws IOException if the folder cannot be read
+	 * @throws IllegalArgumentException if there is no zoom level folder in it
+	 */
+	public TileDirectoryElevationSource(Path folder, GeographicProjection projection) throws IOException {
+		this(folder, highestZoom(folder), projection);
+	}
+	
+	/**
+	 * @param folder the tile folder
+	 * @param zoom the zoom level to use tiles from
+	 * @param projection the projection of the world, to convert block coordinates to geographic coordinates
+	 * @throws IOException if the zoom level folder cannot be listed
+	 */
+	public TileDirectoryElevationSource(Path folder, int zoom, GeographicProjection projection) throws IOException {
+		if(zoom < 0 || zoom > MAX_ZOOM) throw new IllegalArgumentException("Unsupported zoom level: " + zoom);
+		this.folder = folder;
+		this.zoom = zoom;
+		this.projection = projection;
+		this.contentFingerprint = contentFingerprint(folder.resolve(Integer.toString(zoom)));
+	}
+	
+	/**
+	 * Fingerprints the path, size and modification time of every tile in a zoom level folder,
+	 * so that replacing tiles invalidates what was computed from them
+	 */
+	private static long contentFingerprint(Path level) throws IOException {
+		if(!Files.isDirectory(level)) return Hashing.fingerprint();
+		List<Path> tiles;
+		try(Stream<Path> stream = Files.walk(level)) {
+			tiles = stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+		} catch(UncheckedIOException e) {
+			throw e.getCause();
+		}
+		String[] parts = new String[tiles.size()];
+		for(int i = 0; i < parts.length; i++) {
+			Path tile = tiles.get(i);
+			BasicFileAttributes attributes = Files.readAttributes(tile, BasicFileAttributes.class);
+			parts[i] = level.relativize(tile) + ":" + attributes.size() + ":" + attributes.lastModifiedTime().toMillis();
+		}
+		return Hashing.fingerprint(parts);
+	}
+	
+	private static int highestZoom(Path folder) throws IOException {
+		int zoom = -1;
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(folder, Files::isDirectory)) {
+			for(Path level: stream) {
+				try {
+					zoom = Math.max(zoom, Integer.parseInt(level.getFileName().toString()));
+				} catch(NumberFormatException ignored) {}
+			}
+		}
+		if(zoom < 0) throw new IllegalArgumentException(folder + " does not contain any zoom level folder");
+		return Math.min(zoom, MAX_ZOOM);
+	}
+	
+	@Override
+	public CompletableFuture<double[]> getElevationGrid(int minX, int minZ, int sizeX, int sizeZ, int step) {
+		double[] grid = new double[sizeX * sizeZ];
+		try {
+			for(int i = 0; i < sizeX; i++) {
+				int x = minX + i * step;
+				for(int j = 0; j < sizeZ; j++) {
+					int z = minZ + j * step;
+					double elevation = Double.NaN;
+					try {
+						double[] geo = this.projection.toGeo(x, z);
+						elevation = this.elevationAt(geo[0], geo[1]);
+					} catch (OutOfProjectionBoundsException silenced) {}
+					grid[i * sizeZ + j] = elevation;
+				}
+			}
+		} catch(IOException e) {
+			CompletableFuture<double[]> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		return CompletableFuture.completedFuture(grid);
+	}
+	
+	/**
+	 * @param lon
+	 * @param lat
+	 * @return the elevation at the given geographic coordinates
+	 * @throws IOException if a tile is missing or cannot be read
+	 */
+	double elevationAt(double lon, double lat) throws IOException {
+		double scale = (double)TILE_SIZE * (1 << this.zoom);
+		double sinLat = Math.sin(Math.toRadians(lat));
+		// Pixel centers are at half integer coordinates
+		double px = (lon + 180d) / 360d * scale - 0.5d;
+		double py = (0.5d - Math.log((1d + sinLat) / (1d - sinLat)) / (4d * Math.PI)) * scale - 0.5d;
+		py = Math.max(0, Math.min(scale - 1, py));
+		int x0 = (int)Math.floor(px);
+		int y0 = (int)Math.floor(py);
+		double fx = px - x0;
+		double fy = py - y0;
+		double top = this.pixel(x0, y0) * (1 - fx) + this.pixel(x0 + 1, y0) * fx;
+		double bottom = this.pixel(x0, y0 + 1) * (1 - fx) + this.pixel(x0 + 1, y0 + 1) * fx;
+		return top * (1 - fy) + bottom * fy;
+	}
+	
+	private float pixel(int x, int y) throws IOException {
+		int size = TILE_SIZE << this.zoom;
+		x = Math.floorMod(x, size); // Wraps around the antimeridian
+		y = Math.max(0, Math.min(size - 1, y));
+		return this.tile(x / TILE_SIZE, y / TILE_SIZE)[(y % TILE_SIZE) * TILE_SIZE + x % TILE_SIZE];
+	}
+	
+	private float[] tile(int x, int y) throws IOException {
+		long key = Packing.pack(x, y);
+		float[] tile = this.tiles.get(key);
+		if(tile == null) {
+			// Loaded outside of the lock, a tile requested concurrently by two threads may be read twice
+			TileLoader loader = new TileLoader(x, y);
+			try {
+				ForkJoinPool.managedBlock(loader);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while reading an elevation tile");
+			}
+			tile = loader.get();
+			this.tiles.put(key, tile);
+		}
+		return tile;
+	}
+	
+	private float[] load(int x, int y) throws IOException {
+		Path file = this.folder.resolve(Integer.toString(this.zoom)).resolve(Integer.toString(x)).resolve(y + ".png");
+		if(!Files.isRegularFile(file)) throw new NoSuchFileException(file.toString(), null, "missing elevation tile");
+		BufferedImage image = ImageIO.read(file.toFile());
+		if(image == null || image.getWidth() != TILE_SIZE || image.getHeight() != TILE_SIZE) throw new IOException(file + " is not a valid elevation tile");
+		int[] rgb = image.getRGB(0, 0, TILE_SIZE, TILE_SIZE, null, 0, TILE_SIZE);
+		float[] elevations = new float[rgb.length];
+		for(int i = 0; i < rgb.length; i++) {
+			int color = rgb[i];
+			// Terrarium encoding: (red * 256 + green + blue / 256) - 32768
+			elevations[i] = ((color >> 16) & 0xFF) * 256f + ((color >> 8) & 0xFF) + (color & 0xFF) / 256f - 32768f;
+		}
+		return elevations;
+	}
+	
+	@Override
+	public String description() {
+		return "tiles:" + this.folder.toAbsolutePath() + ":" + this.zoom + ":" + Long.toHexString(this.contentFingerprint);
+	}
+	
+	/**
+	 * Reads a tile as a blocking operation, the failure is kept for the caller to rethrow
+	 */
+	private class TileLoader implements ForkJoinPool.ManagedBlocker {
+		
+		private final int x, y;
+		private float[] tile;
+		private IOException failure;
+		
+		TileLoader(int x, int y) {
+			this.x = x;
+			this.y = y;
+		}
+		
+		@Override
+		public boolean block() {
+			try {
+				this.tile = TileDirectoryElevationSource.this.load(this.x, this.y);
+			} catch(IOException e) {
+				this.failure = e;
+			}
+			return true;
+		}
+		
+		@Override
+		public boolean isReleasable() {
+			return this.tile != null || this.failure != null;
+		}
+		
+		float[] get() throws IOException {
+			if(this.failure != null) throw this.failure;
+			return this.tile;
+		}
+	
+	}
+
+}
@@ -0,0 +1,204 @@
+package fr.thesmyler.terracleanup.files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import fr.thesmyler.terracleanup.api.IElevationSource;
+import fr.thesmyler.terracleanup.elevation.ElevationClassification;
+import fr.thesmyler.terracleanup.util.ConcurrentLongMap;
+import fr.thesmyler.terracleanup.util.Hashing;
+import fr.thesmyler.terracleanup.util.Packing;
+import fr.thesmyler.terracleanup.util.coordinates.Region3dPosition;
+
+/**
+ * An append-only journal of the classification of region files, so interrupted runs can be resumed
+ * and later runs only classify files that are new or changed.
+ * <br>
+ * Each record holds a region position packed with {@link Packing#packPosition(int, int, int)}, the modification time and size of its file
+ * when it was classified, and its classification. A recorded classification is only reused if the file still has the same modification time and size.
+ * Failed classifications are never recorded, so they are retried.
+ * The header holds a fingerprint of the classification parameters, if it does not match the one the journal is opened with, the file is discarded.
+ * <br>
+ * Loaded records are kept in flat arrays indexed from a {@link ConcurrentLongMap}, about 50 bytes per region, so journals of tens of millions of regions fit in memory.
+ * New records are flushed to disk every few seconds, so an interrupted run loses little progress.
+ */
+public class ClassificationJournal implements Closeable {
+	
+	private static final int MAGIC = 0x5443434A; // TCCJ
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = 4 + 4 + 8;
+	private static final int RECORD_SIZE = 8 + 8 + 8 + 1;
+	
+	private static final ElevationClassification[] CLASSIFICATIONS = ElevationClassification.values();
+	
+	private static final long FLUSH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+	
+	private final File file;
+	private final long fingerprint;
+	/** Index of the last record of each packed position in the arrays below */
+	private final ConcurrentLongMap entries = new ConcurrentLongMap();
+	private long[] modified = new long[0];
+	private long[] sizes = new long[0];
+	private byte[] classifications = new byte[0];
+	private final DataOutputStream out;
+	private long lastFlush = System.nanoTime();
+	
+	/**
+	 * Opens a journal, loading existing records if the file exists and has a matching fingerprint.
+	 *
+	 * @param file the file to journal classifications in
+	 * @param fingerprint a fingerprint of everything classifications depend on (elevation source, sampling, thresholds...)
+	 * @throws IOException
+	 */
+	public ClassificationJournal(File file, long fingerprint) throws IOException {
+		this.file = file;
+		this.fingerprint = fingerprint;
+		boolean valid = file.isFile() && this.load();
+		this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, valid)));
+		if(!valid) {
+			this.out.writeInt(MAGIC);
+			this.out.writeInt(FORMAT_VERSION);
+			this.out.writeLong(fingerprint);
+			this.out.flush();
+		}
+	}
+	
+	private boolean load() throws IOException {
+		long validLength = HEADER_SIZE;
+		int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(0, (this.file.length() - HEADER_SIZE) / RECORD_SIZE));
+		this.modified = new long[capacity];
+		this.sizes = new long[capacity];
+		this.classifications = new byte[capacity];
+		int count = 0;
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)))) {
+			if(in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+				System.err.println(String.format("%s is not a valid classification journal, it will be overwritten", this.file));
+				return false;
+			}
+			if(in.readLong() != this.fingerprint) {
+				System.err.println(String.format("%s was written with different classification parameters, it will be overwritten", this.file));
+				return false;
+			}
+			while(true) {
+				long position, modified, size;
+				int classification;
+				try {
+					position = in.readLong();
+					modified = in.readLong();
+					size = in.readLong();
+					classification = in.readUnsignedByte();
+				} catch(EOFException e) {
+					break; // Either a clean end of file or a truncated record from an interrupted run
+				}
+				if(classification < CLASSIFICATIONS.length && position != ConcurrentLongMap.MISSING && count < capacity) {
+					// Later records of the same region replace earlier ones
+					this.modified[count] = modified;
+					this.sizes[count] = size;
+					this.classifications[count] = (byte) classification;
+					this.entries.put(position, count++);
+				}
+				validLength += RECORD_SIZE;
+			}
+		} catch(EOFException e) {
+			this.entries.clear();
+			return false; // Truncated header
+		}
+		if(count < capacity / 2) {
+			this.modified = Arrays.copyOf(this.modified, count);
+			this.sizes = Arrays.copyOf(this.sizes, count);
+			this.classifications = Arrays.copyOf(this.classifications, count);
+		}
+		if(this.file.length() > validLength) {
+			// Drop the partial record so that new ones are appended at the right offset
+			try(RandomAccessFile raf = new RandomAccessFile(this.file, "rw")) {
+				raf.setLength(validLength);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @param position the position of a region
+	 * @param modified the current modification time of its file, in milliseconds since the epoch
+	 * @param size the current size of its file, in bytes
+	 * @return the recorded classification of the region, or null if it was never recorded or its file changed since
+	 */
+	public ElevationClassification get(Region3dPosition position, long modified, long size) {
+		if(!Packing.canPackPosition(position.x(), position.y(), position.z())) return null;
+		long index = this.entries.get(Packing.packPosition(position.x(), position.y(), position.z()));
+		if(index == ConcurrentLongMap.MISSING) return null;
+		int i = (int) index;
+		if(this.modified[i] != modified || this.sizes[i] != size) return null;
+		return CLASSIFICATIONS[this.classifications[i]];
+	}
+	
+	/**
+	 * Records the classification of a region. This can safely be called from multiple threads.
+	 *
+	 * @param position the position of the region
+	 * @param modified the modification time of its file when it was classified, in milliseconds since the epoch
+	 * @param size the size of its file when it was classified, in bytes
+	 * @param classification the classification of the region, {@link ElevationClassification#FAILED} is ignored
+	 * @throws IOException
+	 */
+	public void record(Region3dPosition position, long modified, long size, ElevationClassification classification) throws IOException {
+		if(classification == ElevationClassification.FAILED) return;
+		if(!Packing.canPackPosition(position.x(), position.y(), position.z())) return;
+		long packed = Packing.packPosition(position.x(), position.y(), position.z());
+		synchronized(this) {
+			this.out.writeLong(packed);
+			this.out.writeLong(modified);
+			this.out.writeLong(size);
+			this.out.writeByte(classification.ordinal());
+			if(System.nanoTime() - this.lastFlush > FLUSH_INTERVAL_NANOS) this.flush();
+		}
+	}
+	
+	/**
+	 * @return the number of regions that were loaded from disk
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+	
+	/**
+	 * Writes buffered records to disk, which {@link #record(Region3dPosition, long, long, ElevationClassification)} also does every few seconds
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		this.out.flush();
+		this.lastFlush = System.nanoTime();
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		this.out.close();
+	}
+	
+	/**
+	 * Computes a fingerprint of the parameters elevation classifications depend on
+	 *
+	 * @param source the elevation source
+	 * @param stepSize the sampling step, in blocks
+	 * @param deepBelow
+	 * @param highAbove
+	 * @param adaptive whether adaptive sampling is used
+	 * @return a fingerprint to open a journal with
+	 */
+	public static long fingerprint(IElevationSource source, int stepSize, int deepBelow, int highAbove, boolean adaptive) {
+		return Hashing.fingerprint(source.description(), Integer.toString(stepSize), Integer.toString(deepBelow), Integer.toString(highAbove), Boolean.toString(adaptive));
+	}
+
+}
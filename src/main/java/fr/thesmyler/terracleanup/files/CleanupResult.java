@@ -0,0 +1,60 @@
+package fr.thesmyler.terracleanup.files;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The outcome of a cleanup.
+ * Counters can be updated from multiple threads while the cleanup is running.
+ */
+public class CleanupResult {
+	
+	final LongAdder files = new LongAdder();
+	final LongAdder bytes = new LongAdder();
+	final LongAdder missing = new LongAdder();
+	final LongAdder failures = new LongAdder();
+	final LongAdder kept = new LongAdder();
+	volatile long nanos;
+	
+	/**
+	 * @return the number of files that were cleaned up
+	 */
+	public long files() {
+		return this.files.sum();
+	}
+	
+	/**
+	 * @return the number of bytes that were reclaimed
+	 */
+	public long bytes() {
+		return this.bytes.sum();
+	}
+	
+	/**
+	 * @return the number of files that no longer existed
+	 */
+	public long missing() {
+		return this.missing.sum();
+	}
+	
+	/**
+	 * @return the number of files that could not be cleaned up
+	 */
+	public long failures() {
+		return this.failures.sum();
+	}
+	
+	/**
+	 * @return the number of files that were kept, entirely or partially, because their content was modified
+	 */
+	public long kept() {
+		return this.kept.sum();
+	}
+	
+	/**
+	 * @return how long the cleanup took, in seconds
+	 */
+	public double seconds() {
+		return this.nanos / 1e9d;
+	}
+
+}
@@ -0,0 +1,254 @@
+package fr.thesmyler.terracleanup.files;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongPredicate;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import fr.thesmyler.terracleanup.util.Packing;
+import fr.thesmyler.terracleanup.util.coordinates.Region2dPosition;
+import fr.thesmyler.terracleanup.util.coordinates.Region3dPosition;
+
+/**
+ * Removes the 2D data (heightmaps, biomes...) of chunk columns that no longer have any 3dr region file.
+ * <br>
+ * A 2dr region covers 2x2 region3d columns. 2dr files that do not cover any remaining region3d column are deleted (or moved to a quarantine folder),
+ * and files that only partially do are rewritten without the orphaned chunk columns.
+ * Each folder is listed once, and 2dr files are processed in parallel.
+ * Remaining columns are found with a parallel listing of the region3d folder, or looked up in an up to date {@link RegionIndex} of it if one is given.
+ * Regions can be considered removed while their files are still there, so a dry run can preview what a real cleanup of both folders would do.
+ */
+public class Region2dCleaner {
+	
+	private static final Pattern PATTERN_2DR = Pattern.compile("^-?\\d+\\.-?\\d+\\.2dr$");
+	
+	/** How many file operations can be queued per worker before the folder is read further */
+	private static final int QUEUED_PER_WORKER = 1024;
+	
+	/** Number of region3d columns along each axis of a 2dr region */
+	private static final int COLUMNS_3D_PER_AXIS = Region2dPosition.SIZE / Region3dPosition.SIZE;
+	
+	private final Path region3dFolder;
+	private final Path region2dFolder;
+	private final Path quarantineFolder;
+	private final int workerCount;
+	private final boolean dryRun;
+	private final RegionIndex index;
+	private final LongPredicate removedRegions;
+	
+	/**
+	 * @param region3dFolder the folder the 3dr files are in, only used to know which columns remain
+	 * @param region2dFolder the folder the 2dr files are in
+	 * @param quarantineFolder a folder to move files to instead of deleting them, or null to delete them.
+	 * 			It has to be on the same file system as region2dFolder, so files can be moved with an atomic rename
+	 * @param workerCount how many files can be processed in parallel
+	 * @param dryRun if true, files are not touched and the cleaner only reports what it would have done
+	 * @throws IOException if the quarantine folder cannot be created
+	 * @throws IllegalArgumentException if the quarantine folder is not on the same file system as the region2d folder
+	 */
+	public Region2dCleaner(Path region3dFolder, Path region2dFolder, Path quarantineFolder, int workerCount, boolean dryRun) throws IOException {
+		this(region3dFolder, region2dFolder, quarantineFolder, workerCount, dryRun, null);
+	}
+	
+	/**
+	 * @param region3dFolder the folder the 3dr files are in, only used to know which columns remain
+	 * @param region2dFolder the folder the 2dr files are in
+	 * @param quarantineFolder a folder to move files to instead of deleting them, or null to delete them.
+	 * 			It has to be on the same file system as region2dFolder, so files can be moved with an atomic rename
+	 * @param workerCount how many files can be processed in parallel
+	 * @param dryRun if true, files are not touched and the cleaner only reports what it would have done
+	 * @param index an index of the region3d folder built after its cleanup, or null to list the folder
+	 * @throws IOException if the quarantine folder cannot be created
+	 * @throws IllegalArgumentException if the quarantine folder is not on the same file system as the region2d folder
+	 */
+	public Region2dCleaner(Path region3dFolder, Path region2dFolder, Path quarantineFolder, int workerCount, boolean dryRun, RegionIndex index) throws IOException {
+		this(region3dFolder, region2dFolder, quarantineFolder, workerCount, dryRun, index, null);
+	}
+	
+	/**
+	 * @param region3dFolder the folder the 3dr files are in, only used to know which columns remain
+	 * @param region2dFolder the folder the 2dr files are in
+	 * @param quarantineFolder a folder to move files to instead of deleting them, or null to delete them.
+	 * 			It has to be on the same file system as region2dFolder, so files can be moved with an atomic rename
+	 * @param workerCount how many files can be processed in parallel
+	 * @param dryRun if true, files are not touched and the cleaner only reports what it would have done
+	 * @param index an index of the region3d folder, or null to list the folder
+	 * @param removedRegions tells whether a region, given as a position packed with {@link Packing#packPosition(int, int, int)}, is to be considered gone even if its file is still there,
+	 * 			e.g. because the cleanup of the region3d folder was a dry run. May be null
+	 * @throws IOException if the quarantine folder cannot be created
+	 * @throws IllegalArgumentException if the quarantine folder is not on the same file system as the region2d folder
+	 */
+	public Region2dCleaner(Path region3dFolder, Path region2dFolder, Path quarantineFolder, int workerCount, boolean dryRun, RegionIndex index, LongPredicate removedRegions) throws IOException {
+		this.index = index;
+		this.removedRegions = removedRegions;
+		this.region3dFolder = region3dFolder;
+		this.region2dFolder = region2dFolder;
+		this.quarantineFolder = quarantineFolder;
+		this.workerCount = workerCount;
+		this.dryRun = dryRun;
+		if(quarantineFolder != null) {
+			if(!dryRun) Files.createDirectories(quarantineFolder);
+			if(Files.exists(quarantineFolder) && !Files.getFileStore(quarantineFolder).equals(Files.getFileStore(region2dFolder))) {
+				throw new IllegalArgumentException(String.format("%s is not on the same file system as %s", quarantineFolder, region2dFolder));
+			}
+		}
+	}
+	
+	/**
+	 * Cleans up orphaned 2D data, blocking until done.
+	 * This should be run once the 3dr files have been cleaned up.
+	 *
+	 * @return the outcome of the cleanup, where files are the deleted or rewritten 2dr files
+	 * @throws IOException if one of the folders cannot be read
+	 * @throws InterruptedException
+	 */
+	public CleanupResult apply() throws IOException, InterruptedException {
+		CleanupResult result = new CleanupResult();
+		long start = System.nanoTime();
+		LongPredicate columns = this.remainingColumns();
+		ExecutorService workers = Executors.newFixedThreadPool(this.workerCount);
+		Semaphore queued = new Semaphore(this.workerCount * QUEUED_PER_WORKER);
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(this.region2dFolder)) {
+			for(Path file: stream) {
+				if(!PATTERN_2DR.matcher(file.getFileName().toString()).matches()) continue;
+				queued.acquire();
+				workers.execute(() -> {
+					try {
+						this.process(file, columns, result);
+					} finally {
+						queued.release();
+					}
+				});
+			}
+		} finally {
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			result.nanos = System.nanoTime() - start;
+		}
+		return result;
+	}
+	
+	/**
+	 * @return tells whether a region3d column, given as a packed position, has at least one 3dr file that is not removed
+	 * @throws IOException
+	 */
+	private LongPredicate remainingColumns() throws IOException {
+		if(this.index != null && this.removedRegions == null) return column -> this.index.containsColumn(Packing.high(column), Packing.low(column));
+		long[] columns = this.index != null ? this.indexedColumns(): this.listColumns();
+		return column -> Arrays.binarySearch(columns, column) >= 0;
+	}
+	
+	/**
+	 * Lists the region3d folder with a parallel sweep
+	 * 
+	 * @return the sorted packed positions of the region3d columns that have at least one 3dr file that is not removed
+	 * @throws IOException
+	 */
+	private long[] listColumns() throws IOException {
+		long[] columns;
+		try(Stream<Path> files = Files.list(this.region3dFolder)) {
+			columns = files.parallel()
+					.filter(path -> Region3dFilenameClassifier.isValidFileName(path.getFileName().toString()))
+					.map(Region2dCleaner::parse)
+					.filter(position -> position != null && !this.isRemoved(position.x(), position.y(), position.z()))
+					.mapToLong(position -> Packing.packColumn(position.x(), position.z()))
+					.toArray();
+		}
+		return sortedDistinct(columns);
+	}
+	
+	/**
+	 * @return the sorted packed positions of the columns of the index that have at least one region that is not removed
+	 */
+	private long[] indexedColumns() {
+		long[] columns = new long[this.index.columnCount()];
+		int count = 0;
+		for(int column = 0; column < columns.length; column++) {
+			int x = this.index.columnX(column);
+			int z = this.index.columnZ(column);
+			boolean[] remains = new boolean[1];
+			this.index.forEachRegion(column, y -> remains[0] |= !this.isRemoved(x, y, z));
+			if(remains[0]) columns[count++] = Packing.packColumn(x, z);
+		}
+		return sortedDistinct(Arrays.copyOf(columns, count));
+	}
+	
+	private boolean isRemoved(int x, int y, int z) {
+		return this.removedRegions != null && Packing.canPackPosition(x, y, z) && this.removedRegions.test(Packing.packPosition(x, y, z));
+	}
+	
+	private static Region3dPosition parse(Path path) {
+		try {
+			return new Region3dPosition(path);
+		} catch(NumberFormatException e) {
+			return null; // Out of int range, Region3dScanner already ignores those
+		}
+	}
+	
+	private static long[] sortedDistinct(long[] values) {
+		Arrays.parallelSort(values);
+		int count = 0;
+		for(int i = 0; i < values.length; i++) {
+			if(i == 0 || values[i] != values[i - 1]) values[count++] = values[i];
+		}
+		return Arrays.copyOf(values, count);
+	}
+	
+	private void process(Path file, LongPredicate columns, CleanupResult result) {
+		Region2dPosition position;
+		try {
+			position = new Region2dPosition(file);
+		} catch(NumberFormatException e) {
+			return;
+		}
+		int baseX = position.x() * COLUMNS_3D_PER_AXIS;
+		int baseZ = position.z() * COLUMNS_3D_PER_AXIS;
+		boolean[] remaining = new boolean[COLUMNS_3D_PER_AXIS * COLUMNS_3D_PER_AXIS];
+		int remainingCount = 0;
+		for(int x = 0; x < COLUMNS_3D_PER_AXIS; x++) {
+			for(int z = 0; z < COLUMNS_3D_PER_AXIS; z++) {
+				if(columns.test(Packing.packColumn(baseX + x, baseZ + z))) {
+					remaining[x * COLUMNS_3D_PER_AXIS + z] = true;
+					remainingCount++;
+				}
+			}
+		}
+		if(remainingCount == remaining.length) return;
+		if(remainingCount == 0) {
+			Region3dCleaner.removeFile(file, this.quarantineFolder, this.dryRun, result);
+			return;
+		}
+		int chunksPer3dColumn = Region3dPosition.SIZE / RegionFile.COLUMN_SIZE;
+		boolean[] remove = new boolean[RegionFile.ENTRY_COUNT_2D];
+		for(int x = 0; x < RegionFile.COLUMNS_PER_AXIS; x++) {
+			for(int z = 0; z < RegionFile.COLUMNS_PER_AXIS; z++) {
+				remove[RegionFile.entryIndex2d(x, z)] = !remaining[x / chunksPer3dColumn * COLUMNS_3D_PER_AXIS + z / chunksPer3dColumn];
+			}
+		}
+		try {
+			long reclaimed = RegionFile.removeEntries(file, remove, this.dryRun);
+			if(reclaimed < 0) {
+				System.err.println(String.format("Skipping %s, its header could not be understood", file));
+				result.failures.increment();
+			} else if(reclaimed > 0) {
+				result.files.increment();
+				result.bytes.add(reclaimed);
+			}
+		} catch(NoSuchFileException e) {
+			result.missing.increment();
+		} catch(IOException e) {
+			System.err.println(String.format("Failed to cleanup chunk columns of %s: %s", file, e));
+			result.failures.increment();
+		}
+	}
+
+}
@@ -0,0 +1,314 @@
+package fr.thesmyler.terracleanup.files;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.LongConsumer;
+
+import fr.thesmyler.terracleanup.Region3dCleanupReport;
+import fr.thesmyler.terracleanup.content.ContentClassification;
+import fr.thesmyler.terracleanup.content.Region3dContentClassifier;
+import fr.thesmyler.terracleanup.elevation.ElevationClassification;
+import fr.thesmyler.terracleanup.elevation.ElevationClassifier;
+import fr.thesmyler.terracleanup.util.IntRange;
+import fr.thesmyler.terracleanup.util.Packing;
+import fr.thesmyler.terracleanup.util.coordinates.Region3dColumn;
+import fr.thesmyler.terracleanup.util.coordinates.Region3dPosition;
+
+/**
+ * Deletes, or moves to a quarantine folder, the region files of a report that fall into given classifications.
+ * File operations are spread over multiple threads, as they are mostly bound by file system latency.
+ * <br>
+ * If a {@link Region3dContentClassifier} is given, regions and cubes that look modified by players are kept, as well as regions whose content cannot be read.
+ * Files that were modified too recently can also be kept, when a server may still have their region loaded.
+ */
+public class Region3dCleaner {
+	
+	/** How many file operations can be queued per worker before the report is read further */
+	private static final int QUEUED_PER_WORKER = 1024;
+	
+	/** How many region columns to keep chunk elevation ranges for, regions of a same column are mostly next to each other in reports */
+	private static final int CHUNK_RANGE_CACHE_SIZE = 256;
+	
+	private final Path region3dFolder;
+	private final Path quarantineFolder;
+	private final int workerCount;
+	private final boolean dryRun;
+	private final Region3dContentClassifier content;
+	private final long minIdleMillis;
+	
+	/**
+	 * @param region3dFolder the folder the region files are in
+	 * @param quarantineFolder a folder to move files to instead of deleting them, or null to delete them.
+	 * 			It has to be on the same file system as region3dFolder, so files can be moved with an atomic rename
+	 * @param workerCount how many files can be processed in parallel
+	 * @param dryRun if true, files are not touched and the cleaner only reports what it would have done
+	 * @throws IOException if the quarantine folder cannot be created
+	 * @throws IllegalArgumentException if the quarantine folder is not on the same file system as the region3d folder
+	 */
+	public Region3dCleaner(Path region3dFolder, Path quarantineFolder, int workerCount, boolean dryRun) throws IOException {
+		this(region3dFolder, quarantineFolder, workerCount, dryRun, null);
+	}
+	
+	/**
+	 * @param region3dFolder the folder the region files are in
+	 * @param quarantineFolder a folder to move files to instead of deleting them, or null to delete them.
+	 * 			It has to be on the same file system as region3dFolder, so files can be moved with an atomic rename
+	 * @param workerCount how many files can be processed in parallel
+	 * @param dryRun if true, files are not touched and the cleaner only reports what it would have done
+	 * @param content a classifier to check the content of regions with before cleaning them up, or null to only rely on their classification
+	 * @throws IOException if the quarantine folder cannot be created
+	 * @throws IllegalArgumentException if the quarantine folder is not on the same file system as the region3d folder
+	 */
+	public Region3dCleaner(Path region3dFolder, Path quarantineFolder, int workerCount, boolean dryRun, Region3dContentClassifier content) throws IOException {
+		this(region3dFolder, quarantineFolder, workerCount, dryRun, content, 0);
+	}
+	
+	/**
+	 * @param region3dFolder the folder the region files are in
+	 * @param quarantineFolder a folder to move files to instead of deleting them, or null to delete them.
+	 * 			It has to be on the same file system as region3dFolder, so files can be moved with an atomic rename
+	 * @param workerCount how many files can be processed in parallel
+	 * @param dryRun if true, files are not touched and the cleaner only reports what it would have done
+	 * @param content a classifier to check the content of regions with before cleaning them up, or null to only rely on their classification
+	 * @param minIdleMillis how long a file must have gone unmodified to be cleaned up, in milliseconds, files modified more recently are kept.
+	 * 			This is meant for worlds a server is running on, which must have unloaded a region by then
+	 * @throws IOException if the quarantine folder cannot be created
+	 * @throws IllegalArgumentException if the quarantine folder is not on the same file system as the region3d folder
+	 */
+	public Region3dCleaner(Path region3dFolder, Path quarantineFolder, int workerCount, boolean dryRun, Region3dContentClassifier content, long minIdleMillis) throws IOException {
+		this.content = content;
+		this.minIdleMillis = minIdleMillis;
+		this.region3dFolder = region3dFolder;
+		this.quarantineFolder = quarantineFolder;
+		this.workerCount = workerCount;
+		this.dryRun = dryRun;
+		if(quarantineFolder != null) {
+			if(!dryRun) Files.createDirectories(quarantineFolder);
+			if(Files.exists(quarantineFolder) && !Files.getFileStore(quarantineFolder).equals(Files.getFileStore(region3dFolder))) {
+				throw new IllegalArgumentException(String.format("%s is not on the same file system as %s", quarantineFolder, region3dFolder));
+			}
+		}
+	}
+	
+	/**
+	 * Cleans up the regions of the given report that have one of the given classifications, blocking until done.
+	 *
+	 * @param report a complete report
+	 * @param classifications the classifications to cleanup
+	 * @return the outcome of the cleanup
+	 * @throws IOException if the report cannot be read
+	 * @throws InterruptedException
+	 */
+	public CleanupResult apply(Region3dCleanupReport report, Set<ElevationClassification> classifications) throws IOException, InterruptedException {
+		return this.apply(report, classifications, null);
+	}
+	
+	/**
+	 * Cleans up the regions of the given report that have one of the given classifications, blocking until done.
+	 *
+	 * @param report a complete report
+	 * @param classifications the classifications to cleanup
+	 * @param removed called from the workers with the packed position (see {@link Packing#packPosition(int, int, int)}) of each region that was removed,
+	 * 			or would have been in a dry run, may be null. Regions whose position cannot be packed are not reported
+	 * @return the outcome of the cleanup
+	 * @throws IOException if the report cannot be read
+	 * @throws InterruptedException
+	 */
+	public CleanupResult apply(Region3dCleanupReport report, Set<ElevationClassification> classifications, LongConsumer removed) throws IOException, InterruptedException {
+		return this.run(report, classifications, (position, result) -> {
+			if(this.process(position, result) && removed != null && Packing.canPackPosition(position.x(), position.y(), position.z())) {
+				removed.accept(Packing.packPosition(position.x(), position.y(), position.z()));
+			}
+		});
+	}
+	
+	/**
+	 * Removes individual cubes from the regions that have one of the given classifications, when the cubes themselves fall into one of the classifications to cleanup.
+	 * Cubes are classified against the elevation range of their 16x16 chunk column, instead of that of their whole region column.
+	 * Region files are rewritten without the removed cubes, or deleted if no cube is left, blocking until done.
+	 * 
+	 * @param report a complete report
+	 * @param regionClassifications the classifications of the regions to look into
+	 * @param cubeClassifications the classifications of the cubes to remove
+	 * @param classifier the classifier to get chunk elevation from and classify cubes with
+	 * @return the outcome of the cleanup, where files are the rewritten files
+	 * @throws IOException if the report cannot be read
+	 * @throws InterruptedException
+	 */
+	public CleanupResult applyToCubes(Region3dCleanupReport report, Set<ElevationClassification> regionClassifications, Set<ElevationClassification> cubeClassifications, ElevationClassifier<Region3dColumn, Region3dPosition> classifier) throws IOException, InterruptedException {
+		Map<Region3dColumn, CompletableFuture<IntRange[]>> chunkRanges = Collections.synchronizedMap(new LinkedHashMap<Region3dColumn, CompletableFuture<IntRange[]>>() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Region3dColumn, CompletableFuture<IntRange[]>> eldest) {
+				return this.size() > CHUNK_RANGE_CACHE_SIZE;
+			}
+		});
+		return this.run(report, regionClassifications, (position, result) -> {
+			CompletableFuture<IntRange[]> ranges = chunkRanges.computeIfAbsent(position.column(), c -> classifier.getCellElevationRanges(c, RegionFile.CUBE_SIZE));
+			this.processCubes(position, ranges, cubeClassifications, classifier, result);
+		});
+	}
+	
+	private CleanupResult run(Region3dCleanupReport report, Set<ElevationClassification> classifications, BiConsumer<Region3dPosition, CleanupResult> processor) throws IOException, InterruptedException {
+		CleanupResult result = new CleanupResult();
+		ExecutorService workers = Executors.newFixedThreadPool(this.workerCount);
+		Semaphore queued = new Semaphore(this.workerCount * QUEUED_PER_WORKER);
+		long start = System.nanoTime();
+		try {
+			for(ElevationClassification classification: classifications) {
+				report.forEach(classification, position -> {
+					queued.acquireUninterruptibly();
+					workers.execute(() -> {
+						try {
+							processor.accept(position, result);
+						} finally {
+							queued.release();
+						}
+					});
+				});
+			}
+		} finally {
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			result.nanos = System.nanoTime() - start;
+		}
+		return result;
+	}
+	
+	private boolean process(Region3dPosition position, CleanupResult result) {
+		if(this.minIdleMillis > 0 && !this.isIdle(this.region3dFolder.resolve(position.fileName()))) {
+			result.kept.increment();
+			return false;
+		}
+		if(this.content != null) {
+			ContentClassification classification = this.content.classifyNow(position);
+			// Missing files fail too, they are counted as such by removeFile
+			if(classification == ContentClassification.MODIFIED || classification == ContentClassification.FAILED && Files.exists(this.region3dFolder.resolve(position.fileName()))) {
+				result.kept.increment();
+				return false;
+			}
+		}
+		return removeFile(this.region3dFolder.resolve(position.fileName()), this.quarantineFolder, this.dryRun, result);
+	}
+	
+	/**
+	 * @param file
+	 * @return whether the file was not modified for at least the minimum idle time, missing files are idle
+	 */
+	private boolean isIdle(Path file) {
+		try {
+			return Files.getLastModifiedTime(file).toMillis() <= System.currentTimeMillis() - this.minIdleMillis;
+		} catch(NoSuchFileException e) {
+			return true; // Counted as missing by removeFile
+		} catch(IOException e) {
+			System.err.println(String.format("Could not tell when %s was last modified, keeping it: %s", file, e));
+			return false;
+		}
+	}
+	
+	/**
+	 * Deletes a file, or moves it to a quarantine folder, and records it in a result
+	 * 
+	 * @param file
+	 * @param quarantineFolder a folder on the same file system to move the file to, or null to delete it.
+	 * 			Files that are already in the quarantine folder are never replaced, the file is left in place and counted as a failure instead
+	 * @param dryRun if true, the file is only recorded
+	 * @param result
+	 * @return whether the file was removed, or would have been in a dry run
+	 */
+	static boolean removeFile(Path file, Path quarantineFolder, boolean dryRun, CleanupResult result) {
+		try {
+			long size = Files.size(file);
+			if(!dryRun) {
+				if(quarantineFolder != null) {
+					// An atomic move replaces existing files, which would lose what an earlier run quarantined
+					Path target = quarantineFolder.resolve(file.getFileName());
+					if(Files.exists(target)) throw new FileAlreadyExistsException(target.toString(), null, "already quarantined");
+					Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+				} else {
+					Files.delete(file);
+				}
+			}
+			result.files.increment();
+			result.bytes.add(size);
+			return true;
+		} catch(NoSuchFileException e) {
+			result.missing.increment();
+		} catch(IOException e) {
+			System.err.println(String.format("Failed to cleanup %s: %s", file, e));
+			result.failures.increment();
+		}
+		return false;
+	}
+	
+	/**
+	 * Unmarks the cubes that were modified by players
+	 * 
+	 * @return false if the content of the region could not be read, in which case it should be left untouched
+	 */
+	private boolean spareModifiedCubes(Region3dPosition position, boolean[] remove, CleanupResult result) {
+		boolean[] modified = this.content.modifiedCubes(position);
+		if(modified == null) {
+			result.kept.increment();
+			return false;
+		}
+		boolean spared = false;
+		for(int i = 0; i < remove.length; i++) {
+			if(remove[i] && modified[i]) {
+				remove[i] = false;
+				spared = true;
+			}
+		}
+		if(spared) result.kept.increment();
+		return true;
+	}
+	
+	private void processCubes(Region3dPosition position, CompletableFuture<IntRange[]> chunkRanges, Set<ElevationClassification> cubeClassifications, ElevationClassifier<Region3dColumn, Region3dPosition> classifier, CleanupResult result) {
+		Path file = this.region3dFolder.resolve(position.fileName());
+		try {
+			IntRange[] elevations = chunkRanges.get();
+			boolean[] remove = new boolean[RegionFile.ENTRY_COUNT_3D];
+			int baseY = position.minY();
+			for(int x = 0; x < RegionFile.CUBES_PER_AXIS; x++) {
+				for(int z = 0; z < RegionFile.CUBES_PER_AXIS; z++) {
+					long elevation = Packing.packRange(elevations[x * RegionFile.CUBES_PER_AXIS + z]);
+					for(int y = 0; y < RegionFile.CUBES_PER_AXIS; y++) {
+						int minY = baseY + y * RegionFile.CUBE_SIZE;
+						ElevationClassification classification = classifier.classifyFromPackedRange(minY, minY + RegionFile.CUBE_SIZE - 1, elevation);
+						remove[RegionFile.entryIndex3d(x, y, z)] = cubeClassifications.contains(classification);
+					}
+				}
+			}
+			if(this.content != null && !this.spareModifiedCubes(position, remove, result)) return;
+			long reclaimed = RegionFile.removeEntries(file, remove, this.dryRun);
+			if(reclaimed < 0) {
+				System.err.println(String.format("Skipping %s, its header could not be understood", file));
+				result.failures.increment();
+			} else if(reclaimed > 0) {
+				result.files.increment();
+				result.bytes.add(reclaimed);
+			}
+		} catch(NoSuchFileException e) {
+			result.missing.increment();
+		} catch(IOException | InterruptedException | ExecutionException e) {
+			System.err.println(String.format("Failed to cleanup cubes of %s: %s", file, e));
+			result.failures.increment();
+		}
+	}
+	
+}
@@ -1,6 +1,7 @@
 package fr.thesmyler.terracleanup.files;
 
 import java.nio.file.Path;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.regex.Pattern;
 
@@ -11,12 +12,27 @@ public class Region3dFilenameClassifier implements IClassifier<Path, FilenameCla
 	private static final Pattern PATTERN_3DR = Pattern.compile("(-?[0-9]+\\.){3}3dr"); //TODO make sure no edge cases can exist
 
 	@Override
-	public synchronized CompletableFuture<FilenameClassification> classify(Path path) {
+	public CompletableFuture<FilenameClassification> classify(Path path) {
 		return CompletableFuture.completedFuture(this.isValid(path) ? FilenameClassification.VALID: FilenameClassification.INVALID);
 	}
 	
+	@Override
+	public CompletableFuture<Void> classifyAll(List<? extends Path> paths, FilenameClassification[] results) {
+		for(int i = 0; i < paths.size(); i++) {
+			results[i] = this.isValid(paths.get(i)) ? FilenameClassification.VALID: FilenameClassification.INVALID;
+		}
+		return CompletableFuture.completedFuture(null);
+	}
+	
 	private boolean isValid(Path path) {
-		String fname = path.getFileName().toString();
+		return isValidFileName(path.getFileName().toString());
+	}
+	
+	/**
+	 * @param fname a file name
+	 * @return whether the given file name is the name of a 3dr region file
+	 */
+	public static boolean isValidFileName(String fname) {
 		return PATTERN_3DR.matcher(fname).matches();
 	}
 
@@ -24,7 +40,7 @@ public class Region3dFilenameClassifier implements IClassifier<Path, FilenameCla
 	public void terminate() {}
 
 	@Override
-	public synchronized int queueSize() {
+	public int queueSize() {
 		return 0;
 	}
 
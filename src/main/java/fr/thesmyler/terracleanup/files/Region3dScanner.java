@@ -0,0 +1,291 @@
+package fr.thesmyler.terracleanup.files;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+import fr.thesmyler.terracleanup.util.HilbertCurve;
+import fr.thesmyler.terracleanup.util.coordinates.Region3dColumn;
+import fr.thesmyler.terracleanup.util.coordinates.Region3dPosition;
+
+/**
+ * Reads a region3d folder incrementally and submits its regions for processing in batches, grouped by column.
+ * <br>
+ * The number of regions submitted but not processed yet is bounded, the scan blocks until some of them are done when that limit is reached.
+ * This keeps memory usage independent of the number of files in the folder.
+ * Regions of a same column that are far apart in the directory listing end up in different batches,
+ * and are therefore submitted more than once.
+ * <br>
+ * Directory listings are in no particular order, so the columns of a batch are submitted along a {@link HilbertCurve}:
+ * neighboring columns are processed close in time and elevation data they share is still cached when needed.
+ * A prefetcher can be given to start loading what the next columns along the curve will need before they are submitted,
+ * it looks further ahead while the scan is blocked on regions being processed.
+ * <br>
+ * A scan can be restricted to a {@link Shard} of the world, regions of columns outside of it are skipped.
+ * <br>
+ * Regions can be read from a {@link RegionIndex} instead of listing the folder. Columns are then always complete and only submitted once.
+ * <br>
+ * A scan only returns once all the regions it submitted are processed.
+ */
+public class Region3dScanner {
+	
+	public static final int DEFAULT_BATCH_SIZE = 1 << 16;
+	public static final int DEFAULT_MAX_IN_FLIGHT = 1 << 18;
+	
+	/** How many columns ahead of the one being submitted the prefetcher is called for, twice as many while waiting for submitted regions to be processed */
+	public static final int PREFETCH_DISTANCE = 32;
+	
+	private final Path folder;
+	private final int batchSize;
+	private final int maxInFlight;
+	private final Semaphore inFlight;
+	private final Shard shard;
+	private final RegionIndex index;
+	
+	private final AtomicLong found = new AtomicLong();
+	private final AtomicLong ignored = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final LongAdder processed = new LongAdder();
+	private volatile boolean listed = false;
+	
+	/**
+	 * @param folder the region3d folder to scan
+	 * @param batchSize how many files are read before they are grouped by column and submitted
+	 * @param maxInFlight how many regions can be submitted and not processed yet, must be at least batchSize
+	 */
+	public Region3dScanner(Path folder, int batchSize, int maxInFlight) {
+		this(folder, batchSize, maxInFlight, null);
+	}
+	
+	/**
+	 * @param folder the region3d folder to scan
+	 * @param batchSize how many files are read before they are grouped by column and submitted
+	 * @param maxInFlight how many regions can be submitted and not processed yet, must be at least batchSize
+	 * @param shard the shard to restrict the scan to, or null to scan all regions
+	 */
+	public Region3dScanner(Path folder, int batchSize, int maxInFlight, Shard shard) {
+		this(folder, batchSize, maxInFlight, shard, null);
+	}
+	
+	/**
+	 * @param folder the region3d folder to scan
+	 * @param batchSize how many files are read before they are grouped by column and submitted
+	 * @param maxInFlight how many regions can be submitted and not processed yet, must be at least batchSize
+	 * @param shard the shard to restrict the scan to, or null to scan all regions
+	 * @param index an index of the folder to read regions from instead of listing it, or null
+	 */
+	public Region3dScanner(Path folder, int batchSize, int maxInFlight, Shard shard, RegionIndex index) {
+		if(maxInFlight < batchSize) throw new IllegalArgumentException("maxInFlight < batchSize");
+		this.folder = folder;
+		this.batchSize = batchSize;
+		this.maxInFlight = maxInFlight;
+		this.inFlight = new Semaphore(maxInFlight);
+		this.shard = shard;
+		this.index = index;
+	}
+	
+	/**
+	 * Scans the folder, blocking until all regions have been submitted and processed.
+	 * Files that are not 3dr region files are ignored.
+	 * 
+	 * @param submitter called with each column and the regions found in it for the current batch,
+	 * 			it returns a {@link CompletableFuture} that is completed once the regions are processed, including anything done with their results
+	 * @throws IOException if the folder cannot be read
+	 * @throws InterruptedException if interrupted while waiting for submitted regions to be processed
+	 */
+	public void scan(BiFunction<Region3dColumn, List<Region3dPosition>, CompletableFuture<?>> submitter) throws IOException, InterruptedException {
+		this.scan(submitter, null);
+	}
+	
+	/**
+	 * Scans the folder, blocking until all regions have been submitted and processed.
+	 * Files that are not 3dr region files are ignored.
+	 * 
+	 * @param submitter called with each column and the regions found in it for the current batch,
+	 * 			it returns a {@link CompletableFuture} that is completed once the regions are processed, including anything done with their results
+	 * @param prefetcher called with each column at least {@link #PREFETCH_DISTANCE} columns before it is submitted, may be null
+	 * @throws IOException if the folder cannot be read
+	 * @throws InterruptedException if interrupted while waiting for submitted regions to be processed
+	 */
+	public void scan(BiFunction<Region3dColumn, List<Region3dPosition>, CompletableFuture<?>> submitter, Consumer<Region3dColumn> prefetcher) throws IOException, InterruptedException {
+		if(this.index != null) {
+			this.scanIndex(submitter, prefetcher);
+			return;
+		}
+		Map<Region3dColumn, List<Region3dPosition>> batch = new HashMap<>();
+		int batchCount = 0;
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(this.folder)) {
+			for(Path path: stream) {
+				Region3dPosition position;
+				try {
+					if(!Region3dFilenameClassifier.isValidFileName(path.getFileName().toString())) throw new IllegalArgumentException();
+					position = new Region3dPosition(path);
+				} catch(IllegalArgumentException e) {
+					this.ignored.incrementAndGet();
+					System.out.println(String.format("Ignoring %s", path));
+					continue;
+				}
+				if(this.shard != null && !this.shard.contains(position.x(), position.z())) {
+					this.skipped.incrementAndGet();
+					continue;
+				}
+				batch.computeIfAbsent(position.column(), c -> new ArrayList<>()).add(position);
+				this.found.incrementAndGet();
+				if(++batchCount >= this.batchSize) {
+					this.submit(batch, submitter, prefetcher);
+					batch = new HashMap<>();
+					batchCount = 0;
+				}
+			}
+		}
+		this.submit(batch, submitter, prefetcher);
+		this.listed = true;
+		this.awaitCompletion();
+	}
+	
+	private void scanIndex(BiFunction<Region3dColumn, List<Region3dPosition>, CompletableFuture<?>> submitter, Consumer<Region3dColumn> prefetcher) throws InterruptedException {
+		Map<Region3dColumn, List<Region3dPosition>> batch = new HashMap<>();
+		int batchCount = 0;
+		for(int column = 0; column < this.index.columnCount(); column++) {
+			int x = this.index.columnX(column);
+			int z = this.index.columnZ(column);
+			int count = this.index.regionCount(column);
+			if(this.shard != null && !this.shard.contains(x, z)) {
+				this.skipped.addAndGet(count);
+				continue;
+			}
+			// Columns are not split across batches, so a batch is submitted before it would grow too large
+			if(batchCount > 0 && batchCount + count > this.batchSize) {
+				this.submit(batch, submitter, prefetcher);
+				batch = new HashMap<>();
+				batchCount = 0;
+			}
+			List<Region3dPosition> positions = new ArrayList<>(count);
+			this.index.forEachRegion(column, y -> positions.add(new Region3dPosition(x, y, z)));
+			batch.put(new Region3dColumn(x, z), positions);
+			this.found.addAndGet(count);
+			batchCount += count;
+		}
+		this.submit(batch, submitter, prefetcher);
+		this.listed = true;
+		this.awaitCompletion();
+	}
+	
+	private void awaitCompletion() throws InterruptedException {
+		// Every permit is back once everything that was submitted has completed
+		this.inFlight.acquire(this.maxInFlight);
+		this.inFlight.release(this.maxInFlight);
+	}
+	
+	private void submit(Map<Region3dColumn, List<Region3dPosition>> batch, BiFunction<Region3dColumn, List<Region3dPosition>, CompletableFuture<?>> submitter, Consumer<Region3dColumn> prefetcher) throws InterruptedException {
+		Region3dColumn[] columns = sortAlongCurve(batch.keySet());
+		int prefetched = 0;
+		for(int i = 0; i < columns.length; i++) {
+			List<Region3dPosition> positions = batch.get(columns[i]);
+			int size = positions.size();
+			// Permits are taken column by column, so columns are only prefetched once the ones before them could be submitted
+			if(prefetcher == null) {
+				this.inFlight.acquire(size);
+			} else {
+				prefetched = prefetch(columns, prefetched, i + PREFETCH_DISTANCE, prefetcher);
+				if(!this.inFlight.tryAcquire(size)) {
+					// Processing is behind, the columns submitted once it catches up can start loading in the meantime
+					prefetched = prefetch(columns, prefetched, i + 2 * PREFETCH_DISTANCE, prefetcher);
+					this.inFlight.acquire(size);
+				}
+			}
+			submitter.apply(columns[i], positions).whenComplete((r, t) -> {
+				this.processed.add(size);
+				this.inFlight.release(size);
+			});
+		}
+	}
+	
+	/**
+	 * Prefetches columns from the first one that was not prefetched yet, up to the given index or the end of the batch
+	 *
+	 * @return the index of the next column to prefetch
+	 */
+	private static int prefetch(Region3dColumn[] columns, int from, int to, Consumer<Region3dColumn> prefetcher) {
+		int end = Math.min(to, columns.length);
+		for(int i = from; i < end; i++) prefetcher.accept(columns[i]);
+		return Math.max(from, end);
+	}
+	
+	/**
+	 * @param columns
+	 * @return the columns, sorted by their index along a {@link HilbertCurve}
+	 */
+	static Region3dColumn[] sortAlongCurve(Collection<Region3dColumn> columns) {
+		// Sorting packed (index, position in array) pairs avoids boxing indices in a comparator, indices use 48 bits and batches are far smaller than 2^16 columns
+		Region3dColumn[] unsorted = columns.toArray(new Region3dColumn[0]);
+		if(unsorted.length > 1 << 16) {
+			Arrays.sort(unsorted, Comparator.comparingLong(column -> HilbertCurve.index(column.x(), column.z())));
+			return unsorted;
+		}
+		long[] keys = new long[unsorted.length];
+		// Indices fill the sign bit once shifted, flipping it makes signed order match their unsigned order
+		for(int i = 0; i < unsorted.length; i++) keys[i] = (HilbertCurve.index(unsorted[i].x(), unsorted[i].z()) << 16 | i) ^ Long.MIN_VALUE;
+		Arrays.sort(keys);
+		Region3dColumn[] sorted = new Region3dColumn[unsorted.length];
+		for(int i = 0; i < keys.length; i++) sorted[i] = unsorted[(int) (keys[i] & 0xFFFF)];
+		return sorted;
+	}
+	
+	/**
+	 * @return whether each column is submitted once with all of its regions, which is the case when reading from an index
+	 */
+	public boolean submitsWholeColumns() {
+		return this.index != null;
+	}
+	
+	/**
+	 * @return the number of region files found so far
+	 */
+	public long foundCount() {
+		return this.found.get();
+	}
+	
+	/**
+	 * @return the number of regions that were processed so far
+	 */
+	public long processedCount() {
+		return this.processed.sum();
+	}
+	
+	/**
+	 * @return whether the whole folder has been listed, in which case {@link #foundCount()} is final
+	 */
+	public boolean isListingDone() {
+		return this.listed;
+	}
+	
+	/**
+	 * @return the number of files that were ignored so far because they are not region files
+	 */
+	public long ignoredCount() {
+		return this.ignored.get();
+	}
+	
+	/**
+	 * @return the number of region files that were skipped so far because they belong to another shard
+	 */
+	public long skippedCount() {
+		return this.skipped.get();
+	}
+
+}
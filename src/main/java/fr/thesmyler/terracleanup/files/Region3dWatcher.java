@@ -0,0 +1,227 @@
+package fr.thesmyler.terracleanup.files;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+import fr.thesmyler.terracleanup.util.coordinates.Region3dColumn;
+import fr.thesmyler.terracleanup.util.coordinates.Region3dPosition;
+
+/**
+ * Watches a region3d folder and submits the regions that are created or modified in it, so a world can be processed while a server is generating it.
+ * <br>
+ * A region is only submitted once its file has not changed for a settle delay, as a server writes to it repeatedly while generating it.
+ * If regions are to be deleted, that delay should be long enough for the server to have unloaded them, as it could otherwise write them again.
+ * Time is split in periods: a region is submitted at most once per period, and at the end of each period the watcher waits for everything it submitted
+ * to be processed before notifying a listener, e.g. to clean up the regions that were classified during the period.
+ * The work done is therefore proportional to the number of regions that change, not to the size of the world.
+ * <br>
+ * If the file system drops events, the folder is listed again and every region modified since the watcher started is submitted.
+ */
+public class Region3dWatcher implements Closeable {
+	
+	/** Default delay after the last change to a file before its region is submitted, in milliseconds */
+	public static final long DEFAULT_SETTLE_MILLIS = 10_000;
+	
+	/** How long to wait for events at once, which is also the resolution of the settle delay, in milliseconds */
+	private static final long POLL_MILLIS = 500;
+	
+	private final Path folder;
+	private final long settleMillis;
+	private final Shard shard;
+	private final WatchService watchService;
+	private final long startMillis = System.currentTimeMillis();
+	
+	/** Regions that changed and are not submitted yet, with the time of their last change */
+	private final Map<Region3dPosition, Long> pending = new HashMap<>();
+	/** Regions already submitted during the current period */
+	private final Set<Region3dPosition> submitted = new HashSet<>();
+	private final List<CompletableFuture<?>> inFlight = new ArrayList<>();
+	
+	private final LongAdder submittedCount = new LongAdder();
+	private final LongAdder overflows = new LongAdder();
+	private volatile boolean closed = false;
+	
+	/**
+	 * Starts watching a folder. Changes are recorded from now on, but nothing is submitted until {@link #run(BiFunction, Runnable, long)} is called.
+	 *
+	 * @param folder the region3d folder to watch
+	 * @param settleMillis how long a file has to stay unchanged before its region is submitted, in milliseconds
+	 * @param shard the shard to restrict the regions to, or null to watch all regions
+	 * @throws IOException if the folder cannot be watched
+	 */
+	public Region3dWatcher(Path folder, long settleMillis, Shard shard) throws IOException {
+		this.folder = folder;
+		this.settleMillis = settleMillis;
+		this.shard = shard;
+		this.watchService = folder.getFileSystem().newWatchService();
+		folder.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+	}
+	
+	/**
+	 * Submits changed regions until this watcher is closed or the thread is interrupted.
+	 * The last period is cut short when that happens, and still ends normally once what was submitted during it has been processed.
+	 * If the thread was interrupted, it is interrupted again before returning.
+	 *
+	 * @param submitter called with each column and the changed regions found in it,
+	 * 			it returns a {@link CompletableFuture} that is completed once the regions are processed, including anything done with their results
+	 * @param onPeriodEnd called at the end of each period, once everything submitted during the period has been processed and before anything else is submitted
+	 * @param periodMillis the length of a period, in milliseconds
+	 * @throws IOException if the folder cannot be watched anymore
+	 * @throws InterruptedException if interrupted while waiting for a period that was not the last one to be processed
+	 */
+	public void run(BiFunction<Region3dColumn, List<Region3dPosition>, CompletableFuture<?>> submitter, Runnable onPeriodEnd, long periodMillis) throws IOException, InterruptedException {
+		long periodEnd = System.currentTimeMillis() + periodMillis;
+		boolean interrupted = false;
+		while(!Thread.currentThread().isInterrupted()) {
+			WatchKey key;
+			try {
+				key = this.watchService.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			} catch(ClosedWatchServiceException e) {
+				break;
+			} catch(InterruptedException e) {
+				interrupted = true;
+				break;
+			}
+			long now = System.currentTimeMillis();
+			if(key != null) {
+				this.handleEvents(key, now);
+				if(!key.reset() && !this.closed) throw new IOException(this.folder + " cannot be watched anymore");
+			}
+			this.submitSettled(now, submitter);
+			if(now >= periodEnd) {
+				this.awaitInFlight();
+				this.submitted.clear();
+				onPeriodEnd.run();
+				periodEnd = System.currentTimeMillis() + periodMillis;
+			}
+		}
+		// Waiting for the last period must not be cut short by the interruption that ended it
+		interrupted |= Thread.interrupted();
+		try {
+			this.awaitInFlight();
+			this.submitted.clear();
+			onPeriodEnd.run();
+		} finally {
+			if(interrupted) Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void handleEvents(WatchKey key, long now) throws IOException {
+		for(WatchEvent<?> event: key.pollEvents()) {
+			if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				this.overflows.increment();
+				this.relist(now);
+				continue;
+			}
+			Region3dPosition position = this.parse((Path) event.context());
+			if(position == null) continue;
+			if(event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+				this.pending.remove(position);
+			} else {
+				this.pending.put(position, now);
+			}
+		}
+	}
+	
+	/**
+	 * Lists the folder again after events were lost, queuing every region that changed since the watcher started
+	 */
+	private void relist(long now) throws IOException {
+		System.err.println(String.format("Events were lost while watching %s, listing it again", this.folder));
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(this.folder)) {
+			for(Path path: stream) {
+				Region3dPosition position = this.parse(path.getFileName());
+				if(position == null) continue;
+				try {
+					if(Files.getLastModifiedTime(path).toMillis() >= this.startMillis) this.pending.put(position, now);
+				} catch(IOException e) {
+					// Deleted since it was listed
+				}
+			}
+		}
+	}
+	
+	private Region3dPosition parse(Path fileName) {
+		if(!Region3dFilenameClassifier.isValidFileName(fileName.toString())) return null;
+		try {
+			Region3dPosition position = new Region3dPosition(fileName);
+			if(this.shard != null && !this.shard.contains(position.x(), position.z())) return null;
+			return position;
+		} catch(NumberFormatException e) {
+			return null; // Out of int range, Region3dScanner already ignores those
+		}
+	}
+	
+	private void submitSettled(long now, BiFunction<Region3dColumn, List<Region3dPosition>, CompletableFuture<?>> submitter) {
+		Map<Region3dColumn, List<Region3dPosition>> columns = new HashMap<>();
+		for(Iterator<Map.Entry<Region3dPosition, Long>> iterator = this.pending.entrySet().iterator(); iterator.hasNext();) {
+			Map.Entry<Region3dPosition, Long> entry = iterator.next();
+			if(entry.getValue() + this.settleMillis > now) continue;
+			iterator.remove();
+			// Classifications only depend on positions, a region that changes again during the same period does not need to be classified again
+			if(!this.submitted.add(entry.getKey())) continue;
+			columns.computeIfAbsent(entry.getKey().column(), c -> new ArrayList<>()).add(entry.getKey());
+		}
+		this.inFlight.removeIf(CompletableFuture::isDone);
+		for(Region3dColumn column: Region3dScanner.sortAlongCurve(columns.keySet())) {
+			List<Region3dPosition> positions = columns.get(column);
+			this.inFlight.add(submitter.apply(column, positions));
+			this.submittedCount.add(positions.size());
+		}
+	}
+	
+	private void awaitInFlight() throws InterruptedException {
+		for(CompletableFuture<?> future: this.inFlight) {
+			try {
+				future.get();
+			} catch(ExecutionException e) {
+				// Reported by whoever processes the regions
+			}
+		}
+		this.inFlight.clear();
+	}
+	
+	/**
+	 * @return the number of regions submitted so far
+	 */
+	public long submittedCount() {
+		return this.submittedCount.sum();
+	}
+	
+	/**
+	 * @return how many times events were lost and the folder had to be listed again
+	 */
+	public long overflowCount() {
+		return this.overflows.sum();
+	}
+	
+	/**
+	 * Stops watching, {@link #run(BiFunction, Runnable, long)} returns once everything it submitted is processed
+	 */
+	@Override
+	public void close() throws IOException {
+		this.closed = true;
+		this.watchService.close();
+	}
+
+}
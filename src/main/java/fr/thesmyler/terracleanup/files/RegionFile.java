@@ -0,0 +1,163 @@
+package fr.thesmyler.terracleanup.files;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Low level access to the header of CubicChunks region files, as written by regionlib.
+ * <br>
+ * A 3dr file holds 16x16x16 cubes, and a 2dr file holds 32x32 chunk columns.
+ * Both start with a header of big endian ints, one per entry,
+ * each packing the offset of the entry data in 512 bytes sectors (upper 24 bits) and its length in sectors (lower 8 bits).
+ * A zero entry means the entry is not saved.
+ * The entry data itself is never decoded here.
+ */
+public class RegionFile {
+	
+	/** Number of cubes along each axis of a 3dr region */
+	public static final int CUBES_PER_AXIS = 16;
+	
+	/** Size of a cube along each axis, in blocks */
+	public static final int CUBE_SIZE = 16;
+	
+	/** Number of chunk columns along each horizontal axis of a 2dr region */
+	public static final int COLUMNS_PER_AXIS = 32;
+	
+	/** Size of a chunk column along each horizontal axis, in blocks */
+	public static final int COLUMN_SIZE = 16;
+	
+	public static final int ENTRY_COUNT_3D = CUBES_PER_AXIS * CUBES_PER_AXIS * CUBES_PER_AXIS;
+	public static final int ENTRY_COUNT_2D = COLUMNS_PER_AXIS * COLUMNS_PER_AXIS;
+	public static final int SECTOR_SIZE = 512;
+	
+	/**
+	 * @param localX cube X coordinate within the region, from 0 to 15
+	 * @param localY cube Y coordinate within the region, from 0 to 15
+	 * @param localZ cube Z coordinate within the region, from 0 to 15
+	 * @return the index of the cube in the 3dr region header
+	 */
+	public static int entryIndex3d(int localX, int localY, int localZ) {
+		return localX << 8 | localY << 4 | localZ;
+	}
+	
+	/**
+	 * @param localX chunk column X coordinate within the region, from 0 to 31
+	 * @param localZ chunk column Z coordinate within the region, from 0 to 31
+	 * @return the index of the chunk column in the 2dr region header
+	 */
+	public static int entryIndex2d(int localX, int localZ) {
+		return localX << 5 | localZ;
+	}
+	
+	public static int sectorOffset(int entry) {
+		return entry >>> 8;
+	}
+	
+	public static int sectorCount(int entry) {
+		return entry & 0xFF;
+	}
+	
+	private static int headerSectors(int entryCount) {
+		return entryCount * 4 / SECTOR_SIZE;
+	}
+	
+	/**
+	 * Reads the header of a region file
+	 *
+	 * @param channel
+	 * @param entryCount the number of entries in the header, {@link #ENTRY_COUNT_3D} or {@link #ENTRY_COUNT_2D}
+	 * @return the header entries, indexed with {@link #entryIndex3d(int, int, int)} or {@link #entryIndex2d(int, int)}
+	 * @throws IOException if the file is shorter than a header
+	 */
+	public static int[] readHeader(FileChannel channel, int entryCount) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(entryCount * 4);
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer, buffer.position()) < 0) throw new IOException("Truncated region header");
+		}
+		buffer.flip();
+		int[] entries = new int[entryCount];
+		buffer.asIntBuffer().get(entries);
+		return entries;
+	}
+	
+	/**
+	 * Removes entries from a region file, rewriting it with only the remaining entries, or deleting it if none are left.
+	 * The new file is written next to the old one and atomically renamed over it.
+	 * Files with entries this does not understand (e.g. pointing outside of the file) are left untouched.
+	 *
+	 * @param file the region file
+	 * @param remove which entries to remove, its length is the number of entries in the header of the file
+	 * @param dryRun if true, the file is not modified
+	 * @return the number of bytes that were (or would have been) reclaimed, or -1 if the file was left untouched because it could not be understood
+	 * @throws IOException
+	 */
+	public static long removeEntries(Path file, boolean[] remove, boolean dryRun) throws IOException {
+		int entryCount = remove.length;
+		int headerSectors = headerSectors(entryCount);
+		int[] entries;
+		int removed = 0;
+		int kept = 0;
+		long keptSectors = 0;
+		long reclaimed;
+		Path temp = null;
+		try(FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+			entries = readHeader(in, entryCount);
+			long sectors = (in.size() + SECTOR_SIZE - 1) / SECTOR_SIZE; // The last sector may not be padded
+			for(int i = 0; i < entryCount; i++) {
+				int entry = entries[i];
+				if(entry == 0) continue;
+				int offset = sectorOffset(entry);
+				int count = sectorCount(entry);
+				if(offset < headerSectors || count == 0 || offset + count > sectors) return -1;
+				if(remove[i]) {
+					removed++;
+				} else {
+					kept++;
+					keptSectors += count;
+				}
+			}
+			if(removed == 0) return 0;
+			reclaimed = kept > 0 ? Math.max(0, in.size() - (headerSectors + keptSectors) * SECTOR_SIZE): in.size();
+			if(dryRun) return reclaimed;
+			if(kept > 0) {
+				temp = file.resolveSibling(file.getFileName() + ".tmp");
+				try(FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+					ByteBuffer header = ByteBuffer.allocate(entryCount * 4);
+					int nextSector = headerSectors;
+					for(int i = 0; i < entryCount; i++) {
+						int entry = entries[i];
+						if(entry == 0 || remove[i]) {
+							header.putInt(0);
+							continue;
+						}
+						int count = sectorCount(entry);
+						long position = (long) sectorOffset(entry) * SECTOR_SIZE;
+						long length = (long) count * SECTOR_SIZE;
+						long target = (long) nextSector * SECTOR_SIZE;
+						while(length > 0) {
+							long copied = in.transferTo(position, length, out.position(target));
+							if(copied <= 0) break; // End of a last sector that was not padded
+							position += copied;
+							target += copied;
+							length -= copied;
+						}
+						header.putInt(nextSector << 8 | count);
+						nextSector += count;
+					}
+					header.flip();
+					while(header.hasRemaining()) out.write(header, header.position());
+				}
+			}
+		}
+		// The old file is only replaced once it has been closed
+		if(temp != null) Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		else Files.delete(file);
+		return reclaimed;
+	}
+
+}
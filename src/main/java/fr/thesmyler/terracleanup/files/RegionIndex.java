@@ -0,0 +1,342 @@
+package fr.thesmyler.terracleanup.files;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
+
+import fr.thesmyler.terracleanup.util.IntRange;
+import fr.thesmyler.terracleanup.util.Packing;
+import fr.thesmyler.terracleanup.util.coordinates.Region3dPosition;
+
+/**
+ * An immutable index of the 3dr region files of a world, to know which regions exist without listing the region3d folder.
+ * <br>
+ * Each populated column has a sparse bitmap of the regions it has along the Y axis, made of 64 bit words.
+ * Columns are sorted and looked up with a binary search, and a typical column costs about 22 bytes.
+ * The index is built with a single parallel listing of the folder and can be saved to a file that is loaded back with a single read.
+ * It records the modification time of the folder it was built from, which changes whenever a file is added or removed, so stale indices can be detected.
+ * <br>
+ * Only regions whose position can be packed with {@link Packing#packPosition(int, int, int)} are indexed.
+ */
+public class RegionIndex {
+	
+	private static final int MAGIC = 0x54435249; // TCRI
+	private static final int FORMAT_VERSION = 1;
+	
+	private static final int Y_BIAS = 1 << 15;
+	private static final int Z_BIAS = 1 << 23;
+	
+	private final long folderModified;
+	/** Sorted column keys, see {@link #columnKey(int, int)} */
+	private final long[] columns;
+	/** Index of the first word of each column, followed by the total number of words */
+	private final int[] firstWord;
+	/** Y index of each word, a word covers regions from 64 * wordY to 64 * wordY + 63 */
+	private final short[] wordY;
+	private final long[] words;
+	private final long regionCount;
+	
+	private RegionIndex(long folderModified, long[] columns, int[] firstWord, short[] wordY, long[] words) {
+		this.folderModified = folderModified;
+		this.columns = columns;
+		this.firstWord = firstWord;
+		this.wordY = wordY;
+		this.words = words;
+		long count = 0;
+		for(long word: words) count += Long.bitCount(word);
+		this.regionCount = count;
+	}
+	
+	/**
+	 * Lists a region3d folder and indexes the region files in it
+	 *
+	 * @param folder
+	 * @return a new index of the folder
+	 * @throws IOException if the folder cannot be read
+	 */
+	public static RegionIndex build(Path folder) throws IOException {
+		// Read first, so that files added while listing make the index look stale
+		long modified = Files.getLastModifiedTime(folder).toMillis();
+		long[] keys;
+		try(Stream<Path> files = Files.list(folder)) {
+			keys = files.parallel()
+					.filter(path -> Region3dFilenameClassifier.isValidFileName(path.getFileName().toString()))
+					.map(RegionIndex::parse)
+					.filter(position -> position != null && Packing.canPackPosition(position.x(), position.y(), position.z()))
+					.mapToLong(position -> regionKey(position.x(), position.y(), position.z()))
+					.toArray();
+		}
+		Arrays.parallelSort(keys);
+		
+		int columnCount = 0;
+		int wordCount = 0;
+		for(int i = 0; i < keys.length; i++) {
+			if(i == 0 || keys[i] >> 16 != keys[i - 1] >> 16) {
+				columnCount++;
+				wordCount++;
+			} else if(wordOf(keys[i]) != wordOf(keys[i - 1])) {
+				wordCount++;
+			}
+		}
+		long[] columns = new long[columnCount];
+		int[] firstWord = new int[columnCount + 1];
+		short[] wordY = new short[wordCount];
+		long[] words = new long[wordCount];
+		int column = -1;
+		int word = -1;
+		for(int i = 0; i < keys.length; i++) {
+			if(i == 0 || keys[i] >> 16 != keys[i - 1] >> 16) {
+				columns[++column] = keys[i] >> 16;
+				firstWord[column] = ++word;
+				wordY[word] = (short) wordOf(keys[i]);
+			} else if(wordOf(keys[i]) != wordOf(keys[i - 1])) {
+				wordY[++word] = (short) wordOf(keys[i]);
+			}
+			words[word] |= 1L << Math.floorMod(yOf(keys[i]), 64);
+		}
+		firstWord[columnCount] = wordCount;
+		return new RegionIndex(modified, columns, firstWord, wordY, words);
+	}
+	
+	/**
+	 * Loads an index from a file
+	 *
+	 * @param file a file written by {@link #save(File)}
+	 * @param folder the folder the index is for
+	 * @return the index, or null if the file is not a valid index or the folder changed since it was built
+	 * @throws IOException if the file cannot be read
+	 */
+	public static RegionIndex load(File file, Path folder) throws IOException {
+		// Read to the heap rather than mapped, as a mapping is only released when garbage collected and would prevent saving over the file on Windows
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if(size > Integer.MAX_VALUE) {
+				System.err.println(String.format("%s is too large to be a region index, it will be rebuilt", file));
+				return null;
+			}
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			while(buffer.hasRemaining()) {
+				if(channel.read(buffer) < 0) break;
+			}
+			buffer.flip();
+			if(buffer.remaining() < 4 + 4 + 8 + 4 + 4 || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+				System.err.println(String.format("%s is not a valid region index, it will be rebuilt", file));
+				return null;
+			}
+			long modified = buffer.getLong();
+			if(modified != Files.getLastModifiedTime(folder).toMillis()) {
+				System.err.println(String.format("%s changed since %s was built, it will be rebuilt", folder, file));
+				return null;
+			}
+			int columnCount = buffer.getInt();
+			int wordCount = buffer.getInt();
+			if(columnCount < 0 || wordCount < 0 || buffer.remaining() != columnCount * 8L + (columnCount + 1) * 4L + wordCount * 2L + wordCount * 8L) {
+				System.err.println(String.format("%s is truncated, it will be rebuilt", file));
+				return null;
+			}
+			long[] columns = new long[columnCount];
+			int[] firstWord = new int[columnCount + 1];
+			short[] wordY = new short[wordCount];
+			long[] words = new long[wordCount];
+			buffer.asLongBuffer().get(columns);
+			buffer.position(buffer.position() + columnCount * 8);
+			buffer.asIntBuffer().get(firstWord);
+			buffer.position(buffer.position() + (columnCount + 1) * 4);
+			buffer.asShortBuffer().get(wordY);
+			buffer.position(buffer.position() + wordCount * 2);
+			buffer.asLongBuffer().get(words);
+			return new RegionIndex(modified, columns, firstWord, wordY, words);
+		}
+	}
+	
+	/**
+	 * Loads an index from a file, or builds it and saves it if the file does not exist or is not valid for the folder anymore
+	 *
+	 * @param file
+	 * @param folder
+	 * @return an up to date index of the folder
+	 * @throws IOException if the folder cannot be read or the index cannot be saved
+	 */
+	public static RegionIndex loadOrBuild(File file, Path folder) throws IOException {
+		RegionIndex index = file.isFile() ? load(file, folder): null;
+		if(index == null) {
+			index = build(folder);
+			index.save(file);
+		}
+		return index;
+	}
+	
+	/**
+	 * Writes this index to a file, replacing it.
+	 * It is written to a temporary file next to it first, so an interrupted save never leaves a truncated index behind.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void save(File file) throws IOException {
+		Path target = file.toPath();
+		Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeLong(this.folderModified);
+			out.writeInt(this.columns.length);
+			out.writeInt(this.words.length);
+			for(long column: this.columns) out.writeLong(column);
+			for(int first: this.firstWord) out.writeInt(first);
+			for(short y: this.wordY) out.writeShort(y);
+			for(long word: this.words) out.writeLong(word);
+		} catch(IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	/**
+	 * @return the number of populated columns
+	 */
+	public int columnCount() {
+		return this.columns.length;
+	}
+	
+	/**
+	 * @return the number of regions in this index
+	 */
+	public long regionCount() {
+		return this.regionCount;
+	}
+	
+	/**
+	 * @param column the index of a column, from 0 to {@link #columnCount()} - 1
+	 * @return the X coordinate of the column
+	 */
+	public int columnX(int column) {
+		return (int) (this.columns[column] >> 24);
+	}
+	
+	/**
+	 * @param column the index of a column, from 0 to {@link #columnCount()} - 1
+	 * @return the Z coordinate of the column
+	 */
+	public int columnZ(int column) {
+		return (int) (this.columns[column] & 0xFFFFFF) - Z_BIAS;
+	}
+	
+	/**
+	 * @param column the index of a column, from 0 to {@link #columnCount()} - 1
+	 * @return the number of regions in the column
+	 */
+	public int regionCount(int column) {
+		int count = 0;
+		for(int word = this.firstWord[column]; word < this.firstWord[column + 1]; word++) count += Long.bitCount(this.words[word]);
+		return count;
+	}
+	
+	/**
+	 * Calls an action with the Y coordinate of each region of a column, from bottom to top
+	 *
+	 * @param column the index of a column, from 0 to {@link #columnCount()} - 1
+	 * @param action
+	 */
+	public void forEachRegion(int column, IntConsumer action) {
+		for(int word = this.firstWord[column]; word < this.firstWord[column + 1]; word++) {
+			long bits = this.words[word];
+			while(bits != 0) {
+				action.accept(this.wordY[word] * 64 + Long.numberOfTrailingZeros(bits));
+				bits &= bits - 1;
+			}
+		}
+	}
+	
+	/**
+	 * @param x
+	 * @param z
+	 * @return the index of the column at the given position, or a negative value if it has no region
+	 */
+	public int indexOf(int x, int z) {
+		if(!Packing.canPackPosition(x, 0, z)) return -1;
+		return Arrays.binarySearch(this.columns, columnKey(x, z));
+	}
+	
+	/**
+	 * @param x
+	 * @param z
+	 * @return whether the column at the given position has at least one region
+	 */
+	public boolean containsColumn(int x, int z) {
+		return this.indexOf(x, z) >= 0;
+	}
+	
+	/**
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return whether the region at the given position exists
+	 */
+	public boolean contains(int x, int y, int z) {
+		int column = this.indexOf(x, z);
+		if(column < 0 || y < Short.MIN_VALUE || y > Short.MAX_VALUE) return false;
+		short wordY = (short) Math.floorDiv(y, 64);
+		for(int word = this.firstWord[column]; word < this.firstWord[column + 1]; word++) {
+			if(this.wordY[word] == wordY) return (this.words[word] & 1L << Math.floorMod(y, 64)) != 0;
+		}
+		return false;
+	}
+	
+	/**
+	 * @param x
+	 * @param z
+	 * @return the range of the Y coordinates of the regions of a column, or null if it has none
+	 */
+	public IntRange yRange(int x, int z) {
+		int column = this.indexOf(x, z);
+		if(column < 0) return null;
+		int first = this.firstWord[column];
+		int last = this.firstWord[column + 1] - 1;
+		int min = this.wordY[first] * 64 + Long.numberOfTrailingZeros(this.words[first]);
+		int max = this.wordY[last] * 64 + 63 - Long.numberOfLeadingZeros(this.words[last]);
+		return new IntRange(min, max);
+	}
+	
+	/**
+	 * Keys sort columns by X, then by Z, so they can be compared as signed longs
+	 */
+	private static long columnKey(int x, int z) {
+		return (long) x << 24 | (z + Z_BIAS) & 0xFFFFFF;
+	}
+	
+	/**
+	 * Keys sort regions by column and then by Y
+	 */
+	private static long regionKey(int x, int y, int z) {
+		return columnKey(x, z) << 16 | (y + Y_BIAS) & 0xFFFF;
+	}
+	
+	private static Region3dPosition parse(Path path) {
+		try {
+			return new Region3dPosition(path);
+		} catch(NumberFormatException e) {
+			return null; // Out of int range, Region3dScanner already ignores those
+		}
+	}
+	
+	private static int yOf(long regionKey) {
+		return (int) (regionKey & 0xFFFF) - Y_BIAS;
+	}
+	
+	private static int wordOf(long regionKey) {
+		return Math.floorDiv(yOf(regionKey), 64);
+	}
+
+}
@@ -0,0 +1,85 @@
+package fr.thesmyler.terracleanup.files;
+
+/**
+ * One of several disjoint parts of a world, so that it can be processed by multiple processes or machines.
+ * <br>
+ * Whole columns are assigned to a shard, so no two shards ever need the elevation range of the same column.
+ * Columns are assigned by blocks of {@link #BLOCK_SIZE} by {@link #BLOCK_SIZE}, as neighboring columns usually need the same elevation tiles.
+ * The assignment only depends on the position of a column and on the number of shards, it is the same on every machine and every run.
+ */
+public class Shard {
+	
+	/** The width of the square blocks of columns that are assigned to the same shard, in columns */
+	public static final int BLOCK_SIZE = 4;
+	
+	private final int index;
+	private final int count;
+	
+	/**
+	 * @param index the index of this shard, from 0 to count - 1
+	 * @param count the total number of shards
+	 */
+	public Shard(int index, int count) {
+		if(count < 1) throw new IllegalArgumentException("There needs to be at least one shard");
+		if(index < 0 || index >= count) throw new IllegalArgumentException(String.format("Shard index must be between 0 and %d", count - 1));
+		this.index = index;
+		this.count = count;
+	}
+	
+	/**
+	 * @param x coordinate of a column
+	 * @param z coordinate of a column
+	 * @return whether the column is part of this shard
+	 */
+	public boolean contains(int x, int z) {
+		return of(x, z, this.count) == this.index;
+	}
+	
+	public int index() {
+		return this.index;
+	}
+	
+	public int count() {
+		return this.count;
+	}
+	
+	/**
+	 * @param x coordinate of a column
+	 * @param z coordinate of a column
+	 * @param count the total number of shards
+	 * @return the index of the shard the column belongs to
+	 */
+	public static int of(int x, int z, int count) {
+		long block = (long) Math.floorDiv(x, BLOCK_SIZE) << 32 | Math.floorDiv(z, BLOCK_SIZE) & 0xFFFFFFFFL;
+		// MurmurHash3 finalizer, so that neighboring blocks are spread evenly
+		block ^= block >>> 33;
+		block *= 0xff51afd7ed558ccdL;
+		block ^= block >>> 33;
+		block *= 0xc4ceb9fe1a85ec53L;
+		block ^= block >>> 33;
+		return (int) Long.remainderUnsigned(block, count);
+	}
+	
+	/**
+	 * Parses a shard from its index and the number of shards, separated by a slash (e.g. 0/4)
+	 *
+	 * @param shard
+	 * @return the shard
+	 * @throws IllegalArgumentException if the string is not a valid shard
+	 */
+	public static Shard parse(String shard) {
+		String[] parts = shard.split("/");
+		if(parts.length != 2) throw new IllegalArgumentException("Shards are specified as index/count, e.g. 0/4");
+		try {
+			return new Shard(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Shards are specified as index/count, e.g. 0/4");
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return this.index + "/" + this.count;
+	}
+
+}
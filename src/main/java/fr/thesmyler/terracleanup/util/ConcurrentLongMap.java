@@ -0,0 +1,345 @@
+package fr.thesmyler.terracleanup.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongPredicate;
+
+/**
+ * A concurrent hash map from long keys to long values, that does not allocate any object per entry.
+ * <br>
+ * Entries are stored in flat arrays with open addressing and linear probing, which costs 17 bytes per slot.
+ * The map is split into segments that each have their own lock, lookups are optimistic and usually do not lock at all.
+ * <br>
+ * The map can be bounded, in which case it evicts entries with the CLOCK policy (an approximation of LRU) once it is full.
+ * Entries whose value is not evictable are kept even if that means going over the bound, e.g. placeholders for values that are still being computed.
+ * <br>
+ * {@link #MISSING} is used as the absent value and cannot be stored, neither can it be used as a key.
+ */
+public class ConcurrentLongMap {
+	
+	/** Returned when a key is not in the map */
+	public static final long MISSING = Long.MIN_VALUE;
+	
+	/** How much memory a slot uses, there are between 1.33 and 2.66 slots per entry when the map is full */
+	public static final int BYTES_PER_SLOT = 8 + 8 + 1;
+	
+	private static final long FREE = MISSING;
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int MAX_SEGMENTS = 64;
+	private static final int MIN_ENTRIES_PER_SEGMENT = 256;
+	
+	private final Segment[] segments;
+	private final LongPredicate evictable;
+	private final LongAdder evictions = new LongAdder();
+	
+	/**
+	 * Creates an unbounded map
+	 */
+	public ConcurrentLongMap() {
+		this(Integer.MAX_VALUE, v -> false);
+	}
+	
+	/**
+	 * Creates a bounded map
+	 *
+	 * @param maxEntries how many entries this map can hold before it starts evicting
+	 * @param evictable tells whether an entry can be evicted given its value
+	 */
+	public ConcurrentLongMap(int maxEntries, LongPredicate evictable) {
+		if(maxEntries < 1) throw new IllegalArgumentException("A map needs to be able to hold at least one entry");
+		int segmentCount = Integer.highestOneBit(Math.max(1, Math.min(MAX_SEGMENTS, maxEntries / MIN_ENTRIES_PER_SEGMENT)));
+		this.segments = new Segment[segmentCount];
+		int perSegment = (int) Math.max(1, ((long) maxEntries + segmentCount - 1) / segmentCount);
+		for(int i = 0; i < segmentCount; i++) this.segments[i] = new Segment(perSegment);
+		this.evictable = evictable;
+	}
+	
+	/**
+	 * @param key
+	 * @return the value associated with the key, or {@link #MISSING}
+	 */
+	public long get(long key) {
+		if(key == FREE) return MISSING;
+		long hash = hash(key);
+		return this.segment(hash).get(key, hash);
+	}
+	
+	/**
+	 * @param key
+	 * @return whether the key is in this map
+	 */
+	public boolean containsKey(long key) {
+		return this.get(key) != MISSING;
+	}
+	
+	/**
+	 * Associates a value with a key, replacing any previous value
+	 *
+	 * @param key
+	 * @param value
+	 * @return the previous value, or {@link #MISSING}
+	 */
+	public long put(long key, long value) {
+		checkEntry(key, value);
+		long hash = hash(key);
+		return this.segment(hash).put(key, hash, value, false);
+	}
+	
+	/**
+	 * Associates a value with a key if it is not already in the map
+	 *
+	 * @param key
+	 * @param value
+	 * @return the current value if the key was already in the map, or {@link #MISSING} if the value was inserted
+	 */
+	public long putIfAbsent(long key, long value) {
+		checkEntry(key, value);
+		long hash = hash(key);
+		return this.segment(hash).put(key, hash, value, true);
+	}
+	
+	/**
+	 * @param key
+	 * @return the value that was associated with the key, or {@link #MISSING}
+	 */
+	public long remove(long key) {
+		if(key == FREE) return MISSING;
+		long hash = hash(key);
+		return this.segment(hash).remove(key, hash, false);
+	}
+	
+	/**
+	 * Removes a key only if its value is evictable, e.g. so that placeholders for values being computed are kept
+	 *
+	 * @param key
+	 * @return the value that was removed, or {@link #MISSING} if the key was not in the map or its value is not evictable
+	 */
+	public long removeEvictable(long key) {
+		if(key == FREE) return MISSING;
+		long hash = hash(key);
+		return this.segment(hash).remove(key, hash, true);
+	}
+	
+	/**
+	 * @return the number of entries in this map
+	 */
+	public int size() {
+		int size = 0;
+		for(Segment segment: this.segments) size += segment.size;
+		return size;
+	}
+	
+	/**
+	 * @return the number of entries that were evicted to keep this map within its bound
+	 */
+	public long evictions() {
+		return this.evictions.sum();
+	}
+	
+	/**
+	 * Removes all entries and frees the memory used by them
+	 */
+	public void clear() {
+		for(Segment segment: this.segments) segment.clear();
+	}
+	
+	private Segment segment(long hash) {
+		return this.segments[(int)(hash >>> 32) & (this.segments.length - 1)];
+	}
+	
+	private static void checkEntry(long key, long value) {
+		if(key == FREE) throw new IllegalArgumentException("Long.MIN_VALUE cannot be used as a key");
+		if(value == MISSING) throw new IllegalArgumentException("Long.MIN_VALUE cannot be used as a value");
+	}
+	
+	/**
+	 * Mixes the bits of a key, as packed keys are often close to each other (MurmurHash3 finalizer)
+	 */
+	private static long hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+	
+	private class Segment {
+		
+		final StampedLock lock = new StampedLock();
+		final int maxEntries;
+		Table table = new Table(INITIAL_CAPACITY);
+		volatile int size;
+		int hand;
+		
+		Segment(int maxEntries) {
+			this.maxEntries = maxEntries;
+		}
+		
+		long get(long key, long hash) {
+			long stamp = this.lock.tryOptimisticRead();
+			Table table = this.table;
+			int index = table.find(key, hash);
+			long value = index >= 0 ? table.values[index]: MISSING;
+			if(!this.lock.validate(stamp)) {
+				stamp = this.lock.readLock();
+				try {
+					table = this.table;
+					index = table.find(key, hash);
+					value = index >= 0 ? table.values[index]: MISSING;
+				} finally {
+					this.lock.unlockRead(stamp);
+				}
+			}
+			// Racy, but the worst that can happen is marking the wrong entry as recently used
+			if(index >= 0) table.referenced[index] = true;
+			return value;
+		}
+		
+		long put(long key, long hash, long value, boolean onlyIfAbsent) {
+			long stamp = this.lock.writeLock();
+			try {
+				int index = this.table.find(key, hash);
+				if(index >= 0) {
+					long previous = this.table.values[index];
+					if(!onlyIfAbsent) this.table.values[index] = value;
+					this.table.referenced[index] = true;
+					return previous;
+				}
+				if(this.size >= this.maxEntries) this.evict();
+				if((this.size + 1) * 4L > this.table.keys.length * 3L) this.table = this.table.grow();
+				this.table.insert(key, hash, value);
+				this.size++;
+				return MISSING;
+			} finally {
+				this.lock.unlockWrite(stamp);
+			}
+		}
+		
+		long remove(long key, long hash, boolean onlyIfEvictable) {
+			long stamp = this.lock.writeLock();
+			try {
+				int index = this.table.find(key, hash);
+				if(index < 0) return MISSING;
+				long previous = this.table.values[index];
+				if(onlyIfEvictable && !ConcurrentLongMap.this.evictable.test(previous)) return MISSING;
+				this.table.delete(index);
+				this.size--;
+				return previous;
+			} finally {
+				this.lock.unlockWrite(stamp);
+			}
+		}
+		
+		void clear() {
+			long stamp = this.lock.writeLock();
+			try {
+				this.table = new Table(INITIAL_CAPACITY);
+				this.size = 0;
+				this.hand = 0;
+			} finally {
+				this.lock.unlockWrite(stamp);
+			}
+		}
+		
+		/**
+		 * Moves the clock hand until it finds an entry that was not used since the last time the hand went over it.
+		 * Gives up after two full turns, if nothing is evictable.
+		 */
+		private void evict() {
+			Table table = this.table;
+			int mask = table.keys.length - 1;
+			for(int i = 0; i < 2 * table.keys.length; i++) {
+				int index = this.hand;
+				this.hand = (this.hand + 1) & mask;
+				if(table.keys[index] == FREE || !ConcurrentLongMap.this.evictable.test(table.values[index])) continue;
+				if(table.referenced[index]) {
+					table.referenced[index] = false;
+					continue;
+				}
+				table.delete(index);
+				this.size--;
+				ConcurrentLongMap.this.evictions.increment();
+				return;
+			}
+		}
+	
+	}
+	
+	/**
+	 * The arrays of a segment, they are replaced all at once when growing so that optimistic readers always see consistent arrays
+	 */
+	private static class Table {
+		
+		final long[] keys;
+		final long[] values;
+		final boolean[] referenced;
+		
+		Table(int capacity) {
+			this.keys = new long[capacity];
+			this.values = new long[capacity];
+			this.referenced = new boolean[capacity];
+			Arrays.fill(this.keys, FREE);
+		}
+		
+		int find(long key, long hash) {
+			int mask = this.keys.length - 1;
+			int index = (int) hash & mask;
+			// Bounded so that an optimistic reader racing with a writer cannot loop forever
+			for(int probes = 0; probes < this.keys.length; probes++) {
+				long candidate = this.keys[index];
+				if(candidate == key) return index;
+				if(candidate == FREE) return -1;
+				index = (index + 1) & mask;
+			}
+			return -1;
+		}
+		
+		void insert(long key, long hash, long value) {
+			int mask = this.keys.length - 1;
+			int index = (int) hash & mask;
+			while(this.keys[index] != FREE) index = (index + 1) & mask;
+			this.keys[index] = key;
+			this.values[index] = value;
+			this.referenced[index] = false;
+		}
+		
+		/**
+		 * Empties a slot, shifting back the entries that follow so that no probe sequence is broken
+		 */
+		void delete(int index) {
+			int mask = this.keys.length - 1;
+			int hole = index;
+			int next = index;
+			while(true) {
+				next = (next + 1) & mask;
+				long key = this.keys[next];
+				if(key == FREE) break;
+				int home = (int) hash(key) & mask;
+				// The entry can fill the hole if its home slot is not cyclically within (hole, next]
+				boolean canMove = hole <= next ? home <= hole || home > next: home <= hole && home > next;
+				if(canMove) {
+					this.keys[hole] = key;
+					this.values[hole] = this.values[next];
+					this.referenced[hole] = this.referenced[next];
+					hole = next;
+				}
+			}
+			this.keys[hole] = FREE;
+			this.referenced[hole] = false;
+		}
+		
+		Table grow() {
+			Table grown = new Table(this.keys.length * 2);
+			for(int i = 0; i < this.keys.length; i++) {
+				long key = this.keys[i];
+				if(key == FREE) continue;
+				grown.insert(key, hash(key), this.values[i]);
+			}
+			return grown;
+		}
+	
+	}
+
+}
@@ -0,0 +1,32 @@
+package fr.thesmyler.terracleanup.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Utility methods to fingerprint the parameters persisted data depends on, so data computed with other parameters can be detected
+ */
+public class Hashing {
+	
+	/**
+	 * @param parts the parameters to fingerprint, in a fixed order
+	 * @return the first 64 bits of the SHA-256 hash of the given parts, separated by null characters
+	 */
+	public static long fingerprint(String... parts) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for(int i = 0; i < parts.length; i++) {
+				if(i > 0) digest.update((byte)0);
+				digest.update(parts[i].getBytes(StandardCharsets.UTF_8));
+			}
+			byte[] hash = digest.digest();
+			long fingerprint = 0;
+			for(int i = 0; i < 8; i++) fingerprint = (fingerprint << 8) | (hash[i] & 0xFF);
+			return fingerprint;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not supported by this JVM", e);
+		}
+	}
+
+}
@@ -0,0 +1,42 @@
+package fr.thesmyler.terracleanup.util;
+
+/**
+ * Maps 2D positions to their index along a Hilbert curve.
+ * Positions that are close on the curve are close in space, so processing positions sorted by their index keeps data shared by neighbors hot in caches.
+ */
+public class HilbertCurve {
+	
+	/** The curve covers coordinates from -2^(ORDER-1) (inclusive) to 2^(ORDER-1) (exclusive), which is more than enough for region columns */
+	public static final int ORDER = 24;
+	
+	private static final long SIDE = 1L << ORDER;
+	private static final long OFFSET = SIDE / 2;
+	
+	/**
+	 * @param x
+	 * @param z
+	 * @return the index of the given position along the curve, coordinates out of the range of the curve are clamped
+	 */
+	public static long index(int x, int z) {
+		long u = Math.max(0, Math.min(SIDE - 1, x + OFFSET));
+		long v = Math.max(0, Math.min(SIDE - 1, z + OFFSET));
+		long index = 0;
+		for(long s = SIDE / 2; s > 0; s /= 2) {
+			long ru = (u & s) != 0 ? 1: 0;
+			long rv = (v & s) != 0 ? 1: 0;
+			index += s * s * ((3 * ru) ^ rv);
+			// Rotate the quadrant so the sub-curve is oriented like the whole curve
+			if(rv == 0) {
+				if(ru == 1) {
+					u = SIDE - 1 - u;
+					v = SIDE - 1 - v;
+				}
+				long t = u;
+				u = v;
+				v = t;
+			}
+		}
+		return index;
+	}
+
+}
@@ -0,0 +1,113 @@
+package fr.thesmyler.terracleanup.util;
+
+/**
+ * Utility methods to pack pairs of ints into a single long, so they can be stored and compared without allocating objects.
+ */
+public class Packing {
+	
+	/**
+	 * The packed value used to represent a missing range (e.g. a column that is out of projection bounds).
+	 * It cannot be mistaken for a valid range because its lower bound is greater than its upper bound.
+	 */
+	public static final long NO_RANGE = pack(Integer.MAX_VALUE, Integer.MIN_VALUE);
+	
+	/**
+	 * Packs two ints into a long, the first one in the upper 32 bits and the second one in the lower 32 bits.
+	 *
+	 * @param high
+	 * @param low
+	 * @return the packed long
+	 */
+	public static long pack(int high, int low) {
+		return ((long)high << 32) | (low & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * @param packed
+	 * @return the int that was packed in the upper 32 bits
+	 */
+	public static int high(long packed) {
+		return (int)(packed >> 32);
+	}
+	
+	/**
+	 * @param packed
+	 * @return the int that was packed in the lower 32 bits
+	 */
+	public static int low(long packed) {
+		return (int)packed;
+	}
+	
+	/**
+	 * @param x
+	 * @param z
+	 * @return a packed representation of a column position
+	 */
+	public static long packColumn(int x, int z) {
+		return pack(x, z);
+	}
+	
+	/**
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return whether a region position can be packed with {@link #packPosition(int, int, int)}: X and Z must fit in 24 bits and Y in 16 bits,
+	 * 			which covers the whole horizontal extent of a world and ±8M blocks vertically
+	 */
+	public static boolean canPackPosition(int x, int y, int z) {
+		return x >= -(1 << 23) && x < (1 << 23) && y >= Short.MIN_VALUE && y <= Short.MAX_VALUE && z >= -(1 << 23) && z < (1 << 23);
+	}
+	
+	/**
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return a packed representation of a region position, see {@link #canPackPosition(int, int, int)} for the valid range
+	 */
+	public static long packPosition(int x, int y, int z) {
+		return ((long)x & 0xFFFFFFL) << 40 | ((long)y & 0xFFFFL) << 24 | ((long)z & 0xFFFFFFL);
+	}
+	
+	/**
+	 * @param packed a position packed with {@link #packPosition(int, int, int)}
+	 * @return its X coordinate
+	 */
+	public static int positionX(long packed) {
+		return (int)(packed >> 40);
+	}
+	
+	/**
+	 * @param packed a position packed with {@link #packPosition(int, int, int)}
+	 * @return its Y coordinate
+	 */
+	public static int positionY(long packed) {
+		return (int)(packed << 24 >> 48);
+	}
+	
+	/**
+	 * @param packed a position packed with {@link #packPosition(int, int, int)}
+	 * @return its Z coordinate
+	 */
+	public static int positionZ(long packed) {
+		return (int)(packed << 40 >> 40);
+	}
+	
+	/**
+	 * @param range an {@link IntRange}, may be null
+	 * @return a packed representation of the given range, or {@link #NO_RANGE} if range is null
+	 */
+	public static long packRange(IntRange range) {
+		if(range == null) return NO_RANGE;
+		return pack(range.lowerBound(), range.upperBound());
+	}
+	
+	/**
+	 * @param packed a range packed with {@link #packRange(IntRange)}
+	 * @return the corresponding {@link IntRange}, or null if packed is {@link #NO_RANGE}
+	 */
+	public static IntRange unpackRange(long packed) {
+		if(packed == NO_RANGE) return null;
+		return new IntRange(high(packed), low(packed));
+	}
+
+}
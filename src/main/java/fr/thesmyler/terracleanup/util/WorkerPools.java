@@ -0,0 +1,73 @@
+package fr.thesmyler.terracleanup.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * Creates the executors that classification work runs on.
+ * <br>
+ * Work is expected to be composed asynchronously rather than to wait on other tasks, so a work-stealing pool with one thread per core keeps all of them busy.
+ * On JDKs that have virtual threads (21 and later), a thread per task executor can be used instead. It is looked up reflectively, as this project targets Java 8.
+ */
+public class WorkerPools {
+	
+	/**
+	 * @param parallelism the number of worker threads
+	 * @param name used to name the worker threads
+	 * @return a work-stealing pool in FIFO mode, which suits event-style tasks that are never joined
+	 */
+	public static ExecutorService workStealing(int parallelism, String name) {
+		return new ForkJoinPool(parallelism, pool -> {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName(name + " " + thread.getPoolIndex());
+			return thread;
+		}, null, true);
+	}
+	
+	/**
+	 * @return whether the running JDK supports virtual threads
+	 */
+	public static boolean virtualThreadsAvailable() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch(NoSuchMethodException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Creates an executor that starts a virtual thread per task.
+	 * Virtual threads are scheduled on a shared pool of carrier threads, whose size is set to parallelism if nothing was configured yet.
+	 *
+	 * @param parallelism the number of carrier threads to ask for
+	 * @return an executor, or null if virtual threads are not available
+	 */
+	public static ExecutorService virtual(int parallelism) {
+		if(!virtualThreadsAvailable()) return null;
+		if(System.getProperty("jdk.virtualThreadScheduler.parallelism") == null) {
+			System.setProperty("jdk.virtualThreadScheduler.parallelism", Integer.toString(parallelism));
+		}
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch(NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * @param parallelism the number of threads
+	 * @param name used to name the worker threads
+	 * @param preferVirtual whether to use virtual threads when they are available
+	 * @return a virtual thread executor if preferred and available, a work-stealing pool otherwise
+	 */
+	public static ExecutorService create(int parallelism, String name, boolean preferVirtual) {
+		ExecutorService executor = preferVirtual ? virtual(parallelism): null;
+		return executor != null ? executor: workStealing(parallelism, name);
+	}
+
+}
@@ -20,6 +20,16 @@ public interface IPosition2d {
 	 */
 	int z();
 	
+	/**
+	 * @return the lowest block X coordinate in this column, same as the lower bound of {@link #rangeX()} without allocating it
+	 */
+	int minX();
+	
+	/**
+	 * @return the lowest block Z coordinate in this column, same as the lower bound of {@link #rangeZ()} without allocating it
+	 */
+	int minZ();
+	
 	/**
 	 * @return the range this column covers along the X axis, in blocks
 	 */
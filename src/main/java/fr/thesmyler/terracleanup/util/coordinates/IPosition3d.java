@@ -26,6 +26,11 @@ public interface IPosition3d<T extends IPosition2d> {
 	 */
 	int z();
 	
+	/**
+	 * @return the lowest block Y coordinate in this section, same as the lower bound of {@link #rangeY()} without allocating it
+	 */
+	int minY();
+	
 	/**
 	 * @return the range this section covers along the X axis, in blocks
 	 */
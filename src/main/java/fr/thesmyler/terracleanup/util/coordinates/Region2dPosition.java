@@ -13,7 +13,7 @@ import fr.thesmyler.terracleanup.util.IntRange;
  */
 public class Region2dPosition implements IPosition2d {
 	
-	private static final int SIZE = 512;
+	public static final int SIZE = 512;
 	
 	private final int x,z;
 	
@@ -38,6 +38,16 @@ public class Region2dPosition implements IPosition2d {
 		return this.z;
 	}
 
+	@Override
+	public int minX() {
+		return this.x * SIZE;
+	}
+
+	@Override
+	public int minZ() {
+		return this.z * SIZE;
+	}
+
 	@Override
 	public IntRange rangeX() {
 		return new IntRange(this.x * SIZE, (this.x + 1) * SIZE - 1);
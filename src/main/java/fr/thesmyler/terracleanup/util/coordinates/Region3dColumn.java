@@ -30,6 +30,16 @@ public class Region3dColumn implements IPosition2d {
 		return this.z;
 	}
 
+	@Override
+	public int minX() {
+		return this.x*SIZE;
+	}
+
+	@Override
+	public int minZ() {
+		return this.z*SIZE;
+	}
+
 	@Override
 	public IntRange rangeX() {
 		return new IntRange(x*SIZE, (x + 1)*SIZE - 1);
@@ -45,6 +45,10 @@ public class Region3dPosition implements IPosition3d<Region3dColumn> {
 		return SIZE;
 	}
 	
+	public int minY() {
+		return this.y*SIZE;
+	}
+	
 	public IntRange rangeX() {
 		return new IntRange(x*SIZE, (x + 1)*SIZE - 1);
 	}
@@ -60,6 +64,13 @@ public class Region3dPosition implements IPosition3d<Region3dColumn> {
 	public Region3dColumn column() {
 		return new Region3dColumn(this.x, this.z);
 	}
+	
+	/**
+	 * @return the name of the file this region is saved in
+	 */
+	public String fileName() {
+		return this.x + "." + this.y + "." + this.z + ".3dr";
+	}
 
 	@Override
 	public int hashCode() {
@@ -0,0 +1,107 @@
+package fr.thesmyler.terracleanup.util.metrics;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations, with one bucket per power of two nanoseconds.
+ * <br>
+ * Percentiles are therefore only accurate to a factor of two, which is enough to tell where time goes
+ * and cheap enough to record every operation from many threads.
+ */
+public class LatencyHistogram {
+
+	private static final int BUCKETS = 64;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder total = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Records a duration
+	 *
+	 * @param nanos the duration, in nanoseconds
+	 */
+	public void record(long nanos) {
+		if(nanos < 0) nanos = 0;
+		// Bucket i holds durations from 2^i to 2^(i+1) - 1, the first one also holds 0
+		this.buckets.incrementAndGet(nanos == 0 ? 0: BUCKETS - 1 - Long.numberOfLeadingZeros(nanos));
+		this.count.increment();
+		this.total.add(nanos);
+		this.max.accumulate(nanos);
+	}
+
+	/**
+	 * Records the time elapsed since the given start time
+	 *
+	 * @param start a start time from {@link System#nanoTime()}
+	 */
+	public void recordSince(long start) {
+		this.record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Records how long a future takes to complete from now, whether it completes normally or not
+	 *
+	 * @param future
+	 * @return the same future
+	 */
+	public <T> CompletableFuture<T> time(CompletableFuture<T> future) {
+		long start = System.nanoTime();
+		future.whenComplete((r, t) -> this.recordSince(start));
+		return future;
+	}
+
+	public long count() {
+		return this.count.sum();
+	}
+
+	/**
+	 * @return the sum of all recorded durations, in nanoseconds
+	 */
+	public long total() {
+		return this.total.sum();
+	}
+
+	/**
+	 * @return the longest recorded duration, in nanoseconds
+	 */
+	public long max() {
+		return this.max.get();
+	}
+
+	/**
+	 * @return the mean recorded duration, in nanoseconds
+	 */
+	public double mean() {
+		long count = this.count();
+		return count > 0 ? (double) this.total() / count: 0;
+	}
+
+	/**
+	 * Estimates a percentile, as the upper bound of the bucket it falls into
+	 *
+	 * @param percentile between 0 and 1
+	 * @return an estimation of the given percentile, in nanoseconds
+	 */
+	public long percentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long count = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = this.buckets.get(i);
+			count += snapshot[i];
+		}
+		if(count == 0) return 0;
+		long rank = (long) Math.ceil(percentile * count);
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if(seen >= Math.max(rank, 1)) return Math.min((1L << i + 1) - 1, this.max());
+		}
+		return this.max();
+	}
+
+}
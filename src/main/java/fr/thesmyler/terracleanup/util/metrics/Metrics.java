@@ -0,0 +1,133 @@
+package fr.thesmyler.terracleanup.util.metrics;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A set of named latency histograms, counters and gauges that a component updates as it runs.
+ * Metrics are created on first use, and can be written out as JSON or CSV at any time, while still being updated.
+ * <br>
+ * The metrics of other components can be included under a prefix, so everything can be written out together.
+ */
+public class Metrics {
+
+	public static final String CSV_HEADER = "timestamp,name,type,count,mean_us,p50_us,p90_us,p99_us,max_us,total_us";
+
+	private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+	private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+	private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+	private final Map<String, Metrics> included = new ConcurrentSkipListMap<>();
+
+	/**
+	 * @param name
+	 * @return the histogram with the given name, created if needed
+	 */
+	public LatencyHistogram histogram(String name) {
+		return this.histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+	}
+
+	/**
+	 * @param name
+	 * @return the counter with the given name, created if needed
+	 */
+	public LongAdder counter(String name) {
+		return this.counters.computeIfAbsent(name, n -> new LongAdder());
+	}
+
+	/**
+	 * Registers a value that is read from its owner whenever metrics are written out, e.g. a queue size
+	 *
+	 * @param name
+	 * @param value
+	 */
+	public void gauge(String name, LongSupplier value) {
+		this.gauges.put(name, value);
+	}
+
+	/**
+	 * Includes the metrics of another component
+	 *
+	 * @param prefix prepended to the names of the included metrics, followed by a dot
+	 * @param metrics
+	 */
+	public void include(String prefix, Metrics metrics) {
+		this.included.put(prefix, metrics);
+	}
+
+	private void collect(String prefix, Map<String, LatencyHistogram> histograms, Map<String, Long> values) {
+		for(Map.Entry<String, LatencyHistogram> entry: this.histograms.entrySet()) histograms.put(prefix + entry.getKey(), entry.getValue());
+		for(Map.Entry<String, LongAdder> entry: this.counters.entrySet()) values.put(prefix + entry.getKey(), entry.getValue().sum());
+		for(Map.Entry<String, LongSupplier> entry: this.gauges.entrySet()) values.put(prefix + entry.getKey(), entry.getValue().getAsLong());
+		for(Map.Entry<String, Metrics> entry: this.included.entrySet()) entry.getValue().collect(prefix + entry.getKey() + ".", histograms, values);
+	}
+
+	/**
+	 * Writes all metrics as a single line JSON object, durations are in microseconds
+	 *
+	 * @param out
+	 * @param timestamp the time of the snapshot, in milliseconds since the epoch
+	 */
+	public void writeJson(PrintStream out, long timestamp) {
+		Map<String, LatencyHistogram> histograms = new TreeMap<>();
+		Map<String, Long> values = new TreeMap<>();
+		this.collect("", histograms, values);
+		StringBuilder builder = new StringBuilder();
+		builder.append("{\"timestamp\":").append(timestamp).append(",\"histograms\":{");
+		String separator = "";
+		for(Map.Entry<String, LatencyHistogram> entry: histograms.entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			builder.append(separator).append('"').append(entry.getKey()).append("\":{")
+				.append("\"count\":").append(histogram.count())
+				.append(",\"mean_us\":").append(String.format(Locale.ROOT, "%.3f", histogram.mean() / 1e3))
+				.append(",\"p50_us\":").append(histogram.percentile(0.5) / 1000)
+				.append(",\"p90_us\":").append(histogram.percentile(0.9) / 1000)
+				.append(",\"p99_us\":").append(histogram.percentile(0.99) / 1000)
+				.append(",\"max_us\":").append(histogram.max() / 1000)
+				.append(",\"total_us\":").append(histogram.total() / 1000)
+				.append('}');
+			separator = ",";
+		}
+		builder.append("},\"counters\":{");
+		separator = "";
+		for(Map.Entry<String, Long> entry: values.entrySet()) {
+			builder.append(separator).append('"').append(entry.getKey()).append("\":").append(entry.getValue());
+			separator = ",";
+		}
+		builder.append("}}");
+		out.println(builder);
+	}
+
+	/**
+	 * Writes all metrics as CSV rows, with columns as in {@link #CSV_HEADER}. Durations are in microseconds.
+	 *
+	 * @param out
+	 * @param timestamp the time of the snapshot, in milliseconds since the epoch
+	 */
+	public void writeCsv(PrintStream out, long timestamp) {
+		Map<String, LatencyHistogram> histograms = new TreeMap<>();
+		Map<String, Long> values = new TreeMap<>();
+		this.collect("", histograms, values);
+		for(Map.Entry<String, LatencyHistogram> entry: histograms.entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			out.println(String.format(Locale.ROOT, "%d,%s,histogram,%d,%.3f,%d,%d,%d,%d,%d",
+					timestamp,
+					entry.getKey(),
+					histogram.count(),
+					histogram.mean() / 1e3,
+					histogram.percentile(0.5) / 1000,
+					histogram.percentile(0.9) / 1000,
+					histogram.percentile(0.99) / 1000,
+					histogram.max() / 1000,
+					histogram.total() / 1000));
+		}
+		for(Map.Entry<String, Long> entry: values.entrySet()) {
+			out.println(String.format(Locale.ROOT, "%d,%s,counter,%d,,,,,,", timestamp, entry.getKey(), entry.getValue()));
+		}
+	}
+
+}
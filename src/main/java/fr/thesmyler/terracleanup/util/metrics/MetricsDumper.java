@@ -0,0 +1,60 @@
+package fr.thesmyler.terracleanup.util.metrics;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically appends a snapshot of some {@link Metrics} to a file, as JSON lines or as CSV depending on the file extension.
+ * A last snapshot is written when closed.
+ */
+public class MetricsDumper implements Closeable {
+
+	private final Metrics metrics;
+	private final PrintStream out;
+	private final boolean csv;
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * @param metrics the metrics to dump
+	 * @param file the file to append to, CSV if its name ends with .csv, JSON lines otherwise
+	 * @param intervalSeconds the interval between two snapshots
+	 * @throws IOException if the file cannot be opened
+	 */
+	public MetricsDumper(Metrics metrics, Path file, long intervalSeconds) throws IOException {
+		this.metrics = metrics;
+		this.csv = file.getFileName().toString().toLowerCase().endsWith(".csv");
+		boolean empty = !file.toFile().exists() || file.toFile().length() == 0;
+		this.out = new PrintStream(new FileOutputStream(file.toFile(), true), false, "UTF-8");
+		if(this.csv && empty) this.out.println(Metrics.CSV_HEADER);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "Metrics dumper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.scheduler.scheduleAtFixedRate(this::dump, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	private synchronized void dump() {
+		long timestamp = System.currentTimeMillis();
+		if(this.csv) {
+			this.metrics.writeCsv(this.out, timestamp);
+		} else {
+			this.metrics.writeJson(this.out, timestamp);
+		}
+		this.out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.scheduler.shutdownNow();
+		this.dump();
+		this.out.close();
+	}
+
+}
@@ -0,0 +1,58 @@
+package fr.thesmyler.terracleanup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fr.thesmyler.terracleanup.elevation.ElevationClassification;
+import fr.thesmyler.terracleanup.files.Region3dScanner;
+
+public class ProgressReporterTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private Path folder;
+	private Region3dCleanupReport report;
+
+	@Before
+	public void prepare() throws IOException {
+		this.folder = this.temporaryFolder.newFolder("region3d").toPath();
+		Files.write(this.folder.resolve("0.0.0.3dr"), new byte[1024]);
+		Files.write(this.folder.resolve("0.1.0.3dr"), new byte[1024]);
+		this.report = new Region3dCleanupReport(this.folder);
+	}
+
+	@Test
+	public void testProgressLine() throws IOException, InterruptedException {
+		Region3dScanner scanner = new Region3dScanner(this.folder, 16, 16);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ProgressReporter progress = new ProgressReporter(scanner, this.report, new PrintStream(output), 60_000);
+		Assert.assertTrue(progress.progressLine(1_000_000_000L).contains("remaining: listing files"));
+		scanner.scan((column, positions) -> {
+			this.report.add(positions.get(0), ElevationClassification.SKY);
+			return CompletableFuture.completedFuture(null);
+		});
+		String line = progress.progressLine(2_000_000_000L);
+		Assert.assertTrue(line, line.startsWith("2/2 files | 1 files/s | 512 B/s | remaining: 0:00:00"));
+		Assert.assertTrue(line, line.endsWith(" | SKY: 1"));
+		progress.close();
+		Assert.assertFalse(output.toString().isEmpty());
+	}
+
+	@After
+	public void cleanup() throws IOException {
+		this.report.close();
+	}
+
+}
@@ -0,0 +1,103 @@
+package fr.thesmyler.terracleanup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fr.thesmyler.terracleanup.elevation.ElevationClassification;
+import fr.thesmyler.terracleanup.util.coordinates.Region3dPosition;
+
+public class Region3dCleanupReportTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private Path folder;
+	private Region3dCleanupReport report;
+
+	@Before
+	public void prepare() throws IOException {
+		this.folder = this.temporaryFolder.newFolder("region3d").toPath();
+		Files.write(this.folder.resolve("0.0.0.3dr"), new byte[100]);
+		Files.write(this.folder.resolve("0.10.0.3dr"), new byte[50]);
+		Files.write(this.folder.resolve("-1.12.3.3dr"), new byte[25]);
+		this.report = new Region3dCleanupReport(this.folder);
+	}
+
+	@Test
+	public void testAdd() throws IOException {
+		this.report.add(new Region3dPosition(0, 0, 0), ElevationClassification.SURFACE);
+		this.report.add(new Region3dPosition(0, 10, 0), ElevationClassification.SKY_HIGH);
+		this.report.add(new Region3dPosition(-1, 12, 3), ElevationClassification.SKY_HIGH);
+		Assert.assertEquals(1, this.report.getCount(ElevationClassification.SURFACE));
+		Assert.assertEquals(100, this.report.getSize(ElevationClassification.SURFACE));
+		Assert.assertEquals(2, this.report.getCount(ElevationClassification.SKY_HIGH));
+		Assert.assertEquals(75, this.report.getSize(ElevationClassification.SKY_HIGH));
+		Assert.assertEquals(0, this.report.getCount(ElevationClassification.SKY));
+		List<Region3dPosition> skyHigh = new ArrayList<>();
+		this.report.forEach(ElevationClassification.SKY_HIGH, skyHigh::add);
+		Assert.assertEquals(Arrays.asList(new Region3dPosition(0, 10, 0), new Region3dPosition(-1, 12, 3)), skyHigh);
+	}
+
+	@Test
+	public void testAddFrom() throws IOException {
+		this.report.add(new Region3dPosition(0, 0, 0), ElevationClassification.SURFACE);
+		this.report.add(new Region3dPosition(0, 10, 0), ElevationClassification.SKY_HIGH);
+		Path printed = this.temporaryFolder.newFile("report.txt").toPath();
+		try(PrintStream out = new PrintStream(printed.toFile())) {
+			this.report.printTo(out);
+		}
+		try(Region3dCleanupReport merged = new Region3dCleanupReport(this.folder)) {
+			merged.add(new Region3dPosition(-1, 12, 3), ElevationClassification.SKY_HIGH);
+			merged.addFrom(printed);
+			Assert.assertEquals(1, merged.getCount(ElevationClassification.SURFACE));
+			Assert.assertEquals(100, merged.getSize(ElevationClassification.SURFACE));
+			Assert.assertEquals(2, merged.getCount(ElevationClassification.SKY_HIGH));
+			Assert.assertEquals(75, merged.getSize(ElevationClassification.SKY_HIGH));
+			List<Region3dPosition> skyHigh = new ArrayList<>();
+			merged.forEach(ElevationClassification.SKY_HIGH, skyHigh::add);
+			Assert.assertEquals(Arrays.asList(new Region3dPosition(-1, 12, 3), new Region3dPosition(0, 10, 0)), skyHigh);
+		}
+	}
+
+	@Test
+	public void testAddFromInvalid() throws IOException {
+		Path printed = this.temporaryFolder.newFile("report.txt").toPath();
+		Files.write(printed, Arrays.asList("## SURFACE: 1 (100 B) ##", "notaregion.txt"));
+		Assert.assertThrows(IOException.class, () -> this.report.addFrom(printed));
+	}
+
+	@Test
+	public void testFailedAppend() throws IOException {
+		this.report.add(new Region3dPosition(0, 0, 0), ElevationClassification.SURFACE, 100);
+		// Spill files cannot be written once closed, which fails as soon as their buffer is flushed
+		this.report.close();
+		int added = 0;
+		try {
+			for(; added < 100_000; added++) this.report.add(new Region3dPosition(added, 1, 0), ElevationClassification.SKY, 10);
+			Assert.fail("Appending to a closed report should fail");
+		} catch(UncheckedIOException expected) {}
+		Assert.assertEquals(added, this.report.getCount(ElevationClassification.SKY));
+		Assert.assertThrows(IOException.class, () -> this.report.forEach(ElevationClassification.SURFACE, p -> {}));
+		Assert.assertThrows(IOException.class, () -> this.report.printTo(new PrintStream(new ByteArrayOutputStream())));
+	}
+
+	@After
+	public void cleanup() throws IOException {
+		this.report.close();
+	}
+
+}
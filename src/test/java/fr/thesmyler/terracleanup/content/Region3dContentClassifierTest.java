@@ -0,0 +1,204 @@
+package fr.thesmyler.terracleanup.content;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fr.thesmyler.terracleanup.files.RegionFile;
+import fr.thesmyler.terracleanup.util.coordinates.Region3dPosition;
+
+public class Region3dContentClassifierTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private static final int HEADER_SECTORS = RegionFile.ENTRY_COUNT_3D * 4 / RegionFile.SECTOR_SIZE;
+
+	private static final int STONE = 1;
+	private static final int COBBLESTONE = 4;
+
+	private Path region3d;
+	private Region3dContentClassifier classifier;
+
+	@Before
+	public void prepare() throws IOException {
+		this.region3d = this.temporaryFolder.newFolder("region3d").toPath();
+		this.classifier = new Region3dContentClassifier(this.region3d, Region3dContentClassifier.DEFAULT_NATURAL_BLOCKS, 2);
+	}
+
+	@Test
+	public void testUntouched() throws IOException, InterruptedException, ExecutionException {
+		this.write("0.0.0.3dr", gzip(cube(STONE, 0, false)), zlib(cube(0, 0, false)));
+		Region3dPosition position = new Region3dPosition(0, 0, 0);
+		Assert.assertEquals(ContentClassification.UNTOUCHED, this.classifier.classifyNow(position));
+		Assert.assertEquals(ContentClassification.UNTOUCHED, this.classifier.classify(position).get());
+		boolean[] modified = this.classifier.modifiedCubes(position);
+		Assert.assertNotNull(modified);
+		for(boolean cube: modified) Assert.assertFalse(cube);
+	}
+
+	@Test
+	public void testModifiedBlocks() throws IOException {
+		this.write("0.0.0.3dr", gzip(cube(STONE, 0, false)), gzip(cube(COBBLESTONE, 0, false)), cube(STONE, 0, false));
+		Region3dPosition position = new Region3dPosition(0, 0, 0);
+		Assert.assertEquals(ContentClassification.MODIFIED, this.classifier.classifyNow(position));
+		boolean[] modified = this.classifier.modifiedCubes(position);
+		Assert.assertFalse(modified[0]);
+		Assert.assertTrue(modified[1]);
+		Assert.assertFalse(modified[2]);
+
+		// Stone with an Add nibble is block 257, which terrain generation does not produce
+		this.write("1.0.0.3dr", gzip(cube(STONE, 1, false)));
+		Assert.assertEquals(ContentClassification.MODIFIED, this.classifier.classifyNow(new Region3dPosition(1, 0, 0)));
+	}
+
+	@Test
+	public void testModifiedTileEntities() throws IOException {
+		this.write("0.0.0.3dr", gzip(cube(STONE, 0, true)));
+		Assert.assertEquals(ContentClassification.MODIFIED, this.classifier.classifyNow(new Region3dPosition(0, 0, 0)));
+	}
+
+	@Test
+	public void testFailed() throws IOException {
+		byte[] truncated = gzip(cube(STONE, 0, false));
+		this.write("0.0.0.3dr", gzip(cube(STONE, 0, false)), Arrays.copyOf(truncated, truncated.length / 2));
+		Assert.assertEquals(ContentClassification.FAILED, this.classifier.classifyNow(new Region3dPosition(0, 0, 0)));
+		Assert.assertNull(this.classifier.modifiedCubes(new Region3dPosition(0, 0, 0)));
+
+		this.write("1.0.0.3dr", new byte[] {10, 0, 0, 42});
+		Assert.assertEquals(ContentClassification.FAILED, this.classifier.classifyNow(new Region3dPosition(1, 0, 0)));
+
+		Files.write(this.region3d.resolve("2.0.0.3dr"), new byte[100]);
+		Assert.assertEquals(ContentClassification.FAILED, this.classifier.classifyNow(new Region3dPosition(2, 0, 0)));
+
+		Assert.assertEquals(ContentClassification.FAILED, this.classifier.classifyNow(new Region3dPosition(3, 0, 0)));
+	}
+
+	@Test
+	public void testClassifyAll() throws IOException, InterruptedException, ExecutionException {
+		List<Region3dPosition> positions = new ArrayList<>();
+		for(int x = 0; x < 20; x++) {
+			this.write(x + ".0.0.3dr", gzip(cube(x % 2 == 0 ? STONE : COBBLESTONE, 0, false)));
+			positions.add(new Region3dPosition(x, 0, 0));
+		}
+		ContentClassification[] results = new ContentClassification[positions.size()];
+		this.classifier.classifyAll(positions, results).get();
+		for(int x = 0; x < 20; x++) {
+			Assert.assertEquals(x % 2 == 0 ? ContentClassification.UNTOUCHED : ContentClassification.MODIFIED, results[x]);
+		}
+		Assert.assertEquals(0, this.classifier.queueSize());
+	}
+
+	/**
+	 * Writes a region file with the given cubes as its first entries, each in its own sectors
+	 */
+	private void write(String name, byte[]... cubes) throws IOException {
+		int sectors = HEADER_SECTORS;
+		for(byte[] cube: cubes) sectors += (cube.length + 4) / RegionFile.SECTOR_SIZE + 1;
+		ByteBuffer data = ByteBuffer.allocate(sectors * RegionFile.SECTOR_SIZE);
+		int sector = HEADER_SECTORS;
+		for(int i = 0; i < cubes.length; i++) {
+			int count = (cubes[i].length + 4) / RegionFile.SECTOR_SIZE + 1;
+			data.putInt(i * 4, sector << 8 | count);
+			data.position(sector * RegionFile.SECTOR_SIZE);
+			data.putInt(cubes[i].length);
+			data.put(cubes[i]);
+			sector += count;
+		}
+		Files.write(this.region3d.resolve(name), data.array());
+	}
+
+	/**
+	 * @return the NBT of a cube with a single section filled with a block, as written by CubicChunks for 1.12
+	 */
+	private static byte[] cube(int block, int add, boolean tileEntity) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(10);
+			out.writeUTF("");
+			out.writeByte(10);
+			out.writeUTF("Level");
+			out.writeByte(1);
+			out.writeUTF("v");
+			out.writeByte(1);
+			out.writeByte(3);
+			out.writeUTF("y");
+			out.writeInt(0);
+			out.writeByte(9);
+			out.writeUTF("Sections");
+			out.writeByte(10);
+			out.writeInt(1);
+			byteArray(out, "Blocks", 4096, block);
+			byteArray(out, "Data", 2048, 0);
+			if(add != 0) byteArray(out, "Add", 2048, add | add << 4);
+			byteArray(out, "BlockLight", 2048, 0);
+			out.writeByte(0);
+			out.writeByte(9);
+			out.writeUTF("Entities");
+			out.writeByte(10);
+			out.writeInt(0);
+			out.writeByte(9);
+			out.writeUTF("TileEntities");
+			if(tileEntity) {
+				out.writeByte(10);
+				out.writeInt(1);
+				out.writeByte(8);
+				out.writeUTF("id");
+				out.writeUTF("minecraft:chest");
+				out.writeByte(0);
+			} else {
+				out.writeByte(0);
+				out.writeInt(0);
+			}
+			out.writeByte(0);
+			out.writeByte(0);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void byteArray(DataOutputStream out, String name, int length, int value) throws IOException {
+		out.writeByte(7);
+		out.writeUTF(name);
+		out.writeInt(length);
+		for(int i = 0; i < length; i++) out.writeByte(value);
+	}
+
+	private static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(OutputStream out = new GZIPOutputStream(bytes)) {
+			out.write(data);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static byte[] zlib(byte[] data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(OutputStream out = new DeflaterOutputStream(bytes)) {
+			out.write(data);
+		}
+		return bytes.toByteArray();
+	}
+
+	@After
+	public void cleanup() {
+		this.classifier.terminate();
+	}
+
+}
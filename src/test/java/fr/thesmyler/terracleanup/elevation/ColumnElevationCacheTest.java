@@ -0,0 +1,122 @@
+package fr.thesmyler.terracleanup.elevation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import fr.thesmyler.terracleanup.util.IntRange;
+import fr.thesmyler.terracleanup.util.coordinates.Region3dColumn;
+
+public class ColumnElevationCacheTest {
+	
+	private static final IntRange RANGE = new IntRange(0, 10);
+	
+	@Test
+	public void testHit() throws InterruptedException, ExecutionException {
+		ColumnElevationCache<Region3dColumn> cache = new ColumnElevationCache<>(1L << 20);
+		Region3dColumn column = new Region3dColumn(0, 0);
+		Assert.assertFalse(cache.contains(column));
+		cache.get(column, c -> CompletableFuture.completedFuture(RANGE));
+		IntRange range = cache.get(column, c -> { throw new AssertionError("Should have been a cache hit"); }).get();
+		Assert.assertEquals(RANGE.lowerBound(), range.lowerBound());
+		Assert.assertEquals(RANGE.upperBound(), range.upperBound());
+		Assert.assertEquals(1, cache.cacheHits());
+		Assert.assertEquals(1, cache.cacheMisses());
+		Assert.assertTrue(cache.contains(column));
+		
+		// Columns out of projection bounds are cached too
+		Region3dColumn outOfBounds = new Region3dColumn(1, 0);
+		cache.get(outOfBounds, c -> CompletableFuture.completedFuture(null));
+		Assert.assertNull(cache.get(outOfBounds, c -> { throw new AssertionError("Should have been a cache hit"); }).get());
+	}
+	
+	@Test
+	public void testInFlightShared() throws InterruptedException, ExecutionException {
+		ColumnElevationCache<Region3dColumn> cache = new ColumnElevationCache<>(1L << 20);
+		Region3dColumn column = new Region3dColumn(0, 0);
+		CompletableFuture<IntRange> computation = new CompletableFuture<>();
+		CompletableFuture<IntRange> first = cache.get(column, c -> computation);
+		CompletableFuture<IntRange> second = cache.get(column, c -> { throw new AssertionError("Should have waited for the computation in flight"); });
+		Assert.assertTrue(cache.contains(column));
+		Assert.assertFalse(second.isDone());
+		computation.complete(RANGE);
+		Assert.assertEquals(RANGE.upperBound(), first.get().upperBound());
+		Assert.assertEquals(RANGE.upperBound(), second.get().upperBound());
+		Assert.assertEquals(1, cache.cacheMisses());
+	}
+	
+	@Test
+	public void testManyInFlight() throws InterruptedException, ExecutionException {
+		ColumnElevationCache<Region3dColumn> cache = new ColumnElevationCache<>(1L << 20);
+		List<CompletableFuture<IntRange>> computations = new ArrayList<>();
+		for(int x = 0; x < 100; x++) {
+			CompletableFuture<IntRange> computation = new CompletableFuture<>();
+			computations.add(computation);
+			cache.get(new Region3dColumn(x, 0), c -> computation);
+		}
+		for(int x = 0; x < 100; x++) {
+			computations.get(x).complete(new IntRange(x, x + 1));
+		}
+		// Slots are reused once released
+		CompletableFuture<IntRange> computation = new CompletableFuture<>();
+		CompletableFuture<IntRange> future = cache.get(new Region3dColumn(100, 0), c -> computation);
+		Assert.assertSame(future, cache.get(new Region3dColumn(100, 0), c -> { throw new AssertionError("Should have waited for the computation in flight"); }));
+		computation.complete(RANGE);
+		for(int x = 0; x < 100; x++) {
+			Assert.assertEquals(x, cache.get(new Region3dColumn(x, 0), c -> { throw new AssertionError("Should have been a cache hit"); }).get().lowerBound());
+		}
+		Assert.assertEquals(101, cache.cacheMisses());
+	}
+	
+	@Test
+	public void testFailureNotCached() {
+		ColumnElevationCache<Region3dColumn> cache = new ColumnElevationCache<>(1L << 20);
+		Region3dColumn column = new Region3dColumn(0, 0);
+		CompletableFuture<IntRange> failure = new CompletableFuture<>();
+		failure.completeExceptionally(new RuntimeException("No elevation"));
+		Assert.assertTrue(cache.get(column, c -> failure).isCompletedExceptionally());
+		Assert.assertFalse(cache.contains(column));
+		cache.get(column, c -> CompletableFuture.completedFuture(RANGE));
+		Assert.assertEquals(2, cache.cacheMisses());
+	}
+	
+	@Test
+	public void testEviction() {
+		ColumnElevationCache<Region3dColumn> cache = new ColumnElevationCache<>(2 * ColumnElevationCache.ESTIMATED_ENTRY_SIZE);
+		for(int x = 0; x < 10; x++) {
+			cache.get(new Region3dColumn(x, 0), c -> CompletableFuture.completedFuture(RANGE));
+		}
+		Assert.assertEquals(2, cache.cacheCount());
+		Assert.assertEquals(8, cache.cacheEvictions());
+		Assert.assertTrue(cache.contains(new Region3dColumn(9, 0)));
+	}
+	
+	@Test
+	public void testRelease() {
+		ColumnElevationCache<Region3dColumn> cache = new ColumnElevationCache<>(1L << 20);
+		Region3dColumn computed = new Region3dColumn(0, 0);
+		Region3dColumn inFlight = new Region3dColumn(1, 0);
+		cache.get(computed, c -> CompletableFuture.completedFuture(RANGE));
+		cache.get(inFlight, c -> new CompletableFuture<>());
+		Assert.assertTrue(cache.release(computed));
+		Assert.assertFalse(cache.contains(computed));
+		Assert.assertFalse(cache.release(inFlight));
+		Assert.assertTrue(cache.contains(inFlight));
+		Assert.assertEquals(0, cache.cacheEvictions());
+	}
+	
+	@Test
+	public void testInFlightNotEvicted() {
+		ColumnElevationCache<Region3dColumn> cache = new ColumnElevationCache<>(2 * ColumnElevationCache.ESTIMATED_ENTRY_SIZE);
+		for(int x = 0; x < 3; x++) {
+			cache.get(new Region3dColumn(x, 0), c -> new CompletableFuture<>());
+		}
+		Assert.assertEquals(3, cache.cacheCount());
+		Assert.assertEquals(0, cache.cacheEvictions());
+	}
+
+}
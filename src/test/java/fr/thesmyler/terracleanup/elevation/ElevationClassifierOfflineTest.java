@@ -0,0 +1,189 @@
+package fr.thesmyler.terracleanup.elevation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.thesmyler.terracleanup.api.IElevationSource;
+import fr.thesmyler.terracleanup.util.IntRange;
+import fr.thesmyler.terracleanup.util.Packing;
+import fr.thesmyler.terracleanup.util.coordinates.Region3dColumn;
+import fr.thesmyler.terracleanup.util.coordinates.Region3dPosition;
+
+/**
+ * Same as {@link ElevationClassifierTest}, but against synthetic elevation so it does not need network access
+ */
+public class ElevationClassifierOfflineTest {
+
+	private ElevationClassifier<Region3dColumn, Region3dPosition> flat;
+	private ElevationClassifier<Region3dColumn, Region3dPosition> hills;
+	private ElevationClassifier<Region3dColumn, Region3dPosition> adaptiveHills;
+
+	@Before
+	public void prepare() {
+		this.flat = new ElevationClassifier<>(SyntheticElevationSource.flat(100), 8, 1000, 1000, 1, null, ElevationClassifier.DEFAULT_CACHE_BUDGET, false);
+		this.hills = new ElevationClassifier<>(SyntheticElevationSource.hills(), 8, 1000, 1000, 1, null, ElevationClassifier.DEFAULT_CACHE_BUDGET, false);
+		this.adaptiveHills = new ElevationClassifier<>(SyntheticElevationSource.hills(), 8, 1000, 1000, 1, null, ElevationClassifier.DEFAULT_CACHE_BUDGET, true);
+	}
+
+	@Test
+	public void classify() throws InterruptedException, ExecutionException {
+		Assert.assertEquals(ElevationClassification.SURFACE, this.flat.classify(new Region3dPosition(0, 0, 0)).get());
+		Assert.assertEquals(ElevationClassification.SKY, this.flat.classify(new Region3dPosition(0, 1, 0)).get());
+		Assert.assertEquals(ElevationClassification.SKY_HIGH, this.flat.classify(new Region3dPosition(0, 10, 0)).get());
+		Assert.assertEquals(ElevationClassification.UNDERGROUND, this.flat.classify(new Region3dPosition(0, -1, 0)).get());
+		Assert.assertEquals(ElevationClassification.UNDERGROUND_DEEP, this.flat.classify(new Region3dPosition(0, -10, 0)).get());
+	}
+
+	@Test
+	public void classifyOutOfBounds() throws InterruptedException, ExecutionException {
+		ElevationClassifier<Region3dColumn, Region3dPosition> nowhere = new ElevationClassifier<>(SyntheticElevationSource.flat(Double.NaN), 8, 1000, 1000, 1, null, ElevationClassifier.DEFAULT_CACHE_BUDGET, false);
+		try {
+			Assert.assertEquals(ElevationClassification.OUT_OF_BOUNDS, nowhere.classify(new Region3dPosition(0, 0, 0)).get());
+		} finally {
+			nowhere.terminate();
+		}
+	}
+
+	@Test
+	public void adaptiveSamplingMatchesFullSampling() throws InterruptedException, ExecutionException {
+		for(int i = -20; i < 20; i += 3) {
+			Region3dColumn column = new Region3dColumn(i * 7, i * 5);
+			List<Region3dPosition> sections = Arrays.asList(
+					new Region3dPosition(column.x(), -5, column.z()),
+					new Region3dPosition(column.x(), -1, column.z()),
+					new Region3dPosition(column.x(), 0, column.z()),
+					new Region3dPosition(column.x(), 2, column.z()),
+					new Region3dPosition(column.x(), 6, column.z())
+					);
+			Assert.assertArrayEquals(this.hills.classifyColumn(column, sections).get(), this.adaptiveHills.classifyColumn(column, sections).get());
+		}
+	}
+
+	@Test
+	public void adaptiveSamplingSeesNarrowFeatures() throws InterruptedException, ExecutionException {
+		// A narrow ridge that only the finest grid samples, it is just high enough to make the section above it SKY instead of SKY_HIGH
+		SyntheticElevationSource ridge = new SyntheticElevationSource("ridge", (x, z) -> x == 12 ? 170: 150);
+		ElevationClassifier<Region3dColumn, Region3dPosition> full = new ElevationClassifier<>(ridge, 8, 100, 100, 1, null, ElevationClassifier.DEFAULT_CACHE_BUDGET, false);
+		ElevationClassifier<Region3dColumn, Region3dPosition> adaptive = new ElevationClassifier<>(ridge, 8, 100, 100, 1, null, ElevationClassifier.DEFAULT_CACHE_BUDGET, true);
+		try {
+			Region3dColumn column = new Region3dColumn(0, 0);
+			List<Region3dPosition> sections = Arrays.asList(new Region3dPosition(0, 0, 0), new Region3dPosition(0, 1, 0));
+			ElevationClassification[] expected = full.classifyColumn(column, sections).get();
+			Assert.assertEquals(ElevationClassification.SKY, expected[1]);
+			Assert.assertArrayEquals(expected, adaptive.classifyColumn(column, sections).get());
+			// The finest grid was reached, so the range is cached for sections submitted later
+			Assert.assertEquals(1, adaptive.cacheCount());
+		} finally {
+			full.terminate();
+			adaptive.terminate();
+		}
+	}
+
+	@Test
+	public void adaptiveSamplingFetchesPointsOnce() throws InterruptedException, ExecutionException {
+		SyntheticElevationSource ridge = new SyntheticElevationSource("ridge", (x, z) -> x == 12 ? 170: 150);
+		Set<Long> points = ConcurrentHashMap.newKeySet();
+		AtomicInteger fetched = new AtomicInteger();
+		IElevationSource counting = new IElevationSource() {
+			@Override
+			public CompletableFuture<double[]> getElevationGrid(int minX, int minZ, int sizeX, int sizeZ, int step) {
+				for(int i = 0; i < sizeX; i++) for(int j = 0; j < sizeZ; j++) points.add(Packing.pack(minX + i * step, minZ + j * step));
+				fetched.addAndGet(sizeX * sizeZ);
+				return ridge.getElevationGrid(minX, minZ, sizeX, sizeZ, step);
+			}
+			@Override
+			public String description() {
+				return ridge.description();
+			}
+		};
+		ElevationClassifier<Region3dColumn, Region3dPosition> adaptive = new ElevationClassifier<>(counting, 8, 100, 100, 1, null, ElevationClassifier.DEFAULT_CACHE_BUDGET, true);
+		try {
+			Region3dColumn column = new Region3dColumn(0, 0);
+			adaptive.classifyColumn(column, Arrays.asList(new Region3dPosition(0, 1, 0))).get();
+			// Refined down to the finest grid, without fetching any point twice
+			int perAxis = column.size() / 8;
+			Assert.assertEquals(perAxis * perAxis, points.size());
+			Assert.assertEquals(points.size(), fetched.get());
+		} finally {
+			adaptive.terminate();
+		}
+	}
+
+	@Test
+	public void classifyAllMatchesClassify() throws InterruptedException, ExecutionException {
+		// Sections of a few columns, interleaved
+		List<Region3dPosition> sections = new ArrayList<>();
+		for(int y = -6; y < 6; y++) {
+			for(int x = 0; x < 3; x++) sections.add(new Region3dPosition(x * 11, y, x * 7));
+		}
+		ElevationClassification[] results = new ElevationClassification[sections.size()];
+		this.hills.classifyAll(sections, results).get();
+		for(int i = 0; i < results.length; i++) {
+			Assert.assertEquals(this.hills.classify(sections.get(i)).get(), results[i]);
+		}
+		ElevationClassification[] adaptiveResults = new ElevationClassification[sections.size()];
+		this.adaptiveHills.classifyAll(sections, adaptiveResults).get();
+		Assert.assertArrayEquals(results, adaptiveResults);
+		Assert.assertEquals(0, this.hills.queueSize());
+	}
+
+	@Test
+	public void classifyDeepThreshold() throws InterruptedException, ExecutionException {
+		ElevationClassifier<Region3dColumn, Region3dPosition> shallow = new ElevationClassifier<>(SyntheticElevationSource.flat(100), 8, 300, 1000, 1, null, ElevationClassifier.DEFAULT_CACHE_BUDGET, false);
+		try {
+			Assert.assertEquals(ElevationClassification.UNDERGROUND, shallow.classify(new Region3dPosition(0, -1, 0)).get());
+			Assert.assertEquals(ElevationClassification.UNDERGROUND_DEEP, shallow.classify(new Region3dPosition(0, -2, 0)).get());
+			Assert.assertEquals(ElevationClassification.SKY, shallow.classify(new Region3dPosition(0, 4, 0)).get());
+		} finally {
+			shallow.terminate();
+		}
+	}
+
+	@Test
+	public void classifyFromBoundsMatchesRanges() {
+		Random random = new Random(42);
+		for(int i = 0; i < 100_000; i++) {
+			int minY = random.nextInt(4000) - 2000;
+			IntRange section = new IntRange(minY, minY + random.nextInt(300));
+			int minElevation = random.nextInt(4000) - 2000;
+			IntRange elevation = new IntRange(minElevation, minElevation + random.nextInt(500));
+			Assert.assertEquals(referenceClassification(section, elevation, 1000, 1000), this.flat.classifyFromRange(section, elevation));
+			Assert.assertEquals(referenceClassification(section, elevation, 1000, 1000), this.flat.classifyFromPackedRange(section.lowerBound(), section.upperBound(), Packing.packRange(elevation)));
+		}
+		Assert.assertEquals(ElevationClassification.OUT_OF_BOUNDS, this.flat.classifyFromPackedRange(0, 255, Packing.NO_RANGE));
+	}
+
+	/**
+	 * Classification as it is defined with {@link IntRange} operations
+	 */
+	private static ElevationClassification referenceClassification(IntRange yRange, IntRange elevationRange, int deepBelow, int highAbove) {
+		if(elevationRange.above(0)) elevationRange = new IntRange(0, 0);
+		if(elevationRange.intersects(yRange)) return ElevationClassification.SURFACE;
+		IntRange sky = elevationRange.extendUp(highAbove);
+		if(sky.intersects(yRange)) return ElevationClassification.SKY;
+		if(sky.above(yRange)) return ElevationClassification.SKY_HIGH;
+		IntRange underground = elevationRange.extendDown(deepBelow);
+		if(underground.intersects(yRange)) return ElevationClassification.UNDERGROUND;
+		return ElevationClassification.UNDERGROUND_DEEP;
+	}
+
+	@After
+	public void cleanup() {
+		this.flat.terminate();
+		this.hills.terminate();
+		this.adaptiveHills.terminate();
+	}
+
+}
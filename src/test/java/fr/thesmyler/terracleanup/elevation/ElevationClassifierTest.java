@@ -1,5 +1,7 @@
 package fr.thesmyler.terracleanup.elevation;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 
 import org.junit.After;
@@ -47,6 +49,28 @@ public class ElevationClassifierTest {
 
 	}
 
+	@Test
+	public void classifyColumn() throws InterruptedException, ExecutionException {
+		
+		// Paris
+		List<Region3dPosition> sections = Arrays.asList(
+				new Region3dPosition(11139, 0, -19726),
+				new Region3dPosition(11139, 1, -19726),
+				new Region3dPosition(11139, -1, -19726),
+				new Region3dPosition(11139, 50, -19726),
+				new Region3dPosition(11139, -50, -19726)
+				);
+		ElevationClassification[] expected = {
+				ElevationClassification.SURFACE,
+				ElevationClassification.SKY,
+				ElevationClassification.UNDERGROUND,
+				ElevationClassification.SKY_HIGH,
+				ElevationClassification.UNDERGROUND_DEEP
+		};
+		Assert.assertArrayEquals(expected, this.classifier.classifyColumn(new Region3dColumn(11139, -19726), sections).get());
+		
+	}
+
 	@After
 	public void cleanup() {
 		this.classifier.terminate();
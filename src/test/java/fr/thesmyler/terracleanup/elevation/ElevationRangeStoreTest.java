@@ -0,0 +1,89 @@
+package fr.thesmyler.terracleanup.elevation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fr.thesmyler.terracleanup.util.IntRange;
+import fr.thesmyler.terracleanup.util.Packing;
+
+public class ElevationRangeStoreTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private File file;
+
+	@Before
+	public void prepare() throws IOException {
+		// Not created, the tested class creates it
+		this.file = new File(this.temporaryFolder.getRoot(), "terracleanup.elevations");
+	}
+
+	@Test
+	public void testPersist() throws IOException {
+		long paris = Packing.packColumn(11139, -19726);
+		long ocean = Packing.packColumn(3270, 1772);
+		try(ElevationRangeStore store = new ElevationRangeStore(this.file, 42)) {
+			Assert.assertEquals(ElevationRangeStore.MISSING, store.get(paris));
+			store.put(paris, Packing.packRange(new IntRange(25, 120)));
+			store.put(ocean, Packing.packRange(null));
+		}
+		try(ElevationRangeStore store = new ElevationRangeStore(this.file, 42)) {
+			Assert.assertEquals(2, store.size());
+			IntRange range = Packing.unpackRange(store.get(paris));
+			Assert.assertEquals(25, range.lowerBound());
+			Assert.assertEquals(120, range.upperBound());
+			Assert.assertEquals(Packing.NO_RANGE, store.get(ocean));
+		}
+	}
+
+	@Test
+	public void testFlush() throws IOException {
+		long column = Packing.packColumn(1, 2);
+		try(ElevationRangeStore store = new ElevationRangeStore(this.file, 42)) {
+			store.put(column, Packing.pack(0, 10));
+			store.flush();
+			// Ranges fetched before an interruption can be read back without closing the store
+			try(ElevationRangeStore reader = new ElevationRangeStore(this.file, 42)) {
+				Assert.assertEquals(Packing.pack(0, 10), reader.get(column));
+			}
+		}
+	}
+
+	@Test
+	public void testFingerprintMismatch() throws IOException {
+		try(ElevationRangeStore store = new ElevationRangeStore(this.file, 42)) {
+			store.put(Packing.packColumn(0, 0), Packing.pack(0, 10));
+		}
+		try(ElevationRangeStore store = new ElevationRangeStore(this.file, 43)) {
+			Assert.assertEquals(0, store.size());
+		}
+	}
+
+	@Test
+	public void testTruncatedRecord() throws IOException {
+		try(ElevationRangeStore store = new ElevationRangeStore(this.file, 42)) {
+			store.put(Packing.packColumn(0, 0), Packing.pack(0, 10));
+			store.put(Packing.packColumn(1, 0), Packing.pack(5, 15));
+		}
+		try(RandomAccessFile raf = new RandomAccessFile(this.file, "rw")) {
+			raf.setLength(raf.length() - 3);
+		}
+		try(ElevationRangeStore store = new ElevationRangeStore(this.file, 42)) {
+			Assert.assertEquals(1, store.size());
+			store.put(Packing.packColumn(2, 0), Packing.pack(-5, 5));
+		}
+		try(ElevationRangeStore store = new ElevationRangeStore(this.file, 42)) {
+			Assert.assertEquals(2, store.size());
+			Assert.assertEquals(Packing.pack(-5, 5), store.get(Packing.packColumn(2, 0)));
+		}
+	}
+
+}
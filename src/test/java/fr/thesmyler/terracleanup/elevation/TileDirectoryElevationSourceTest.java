@@ -0,0 +1,69 @@
+package fr.thesmyler.terracleanup.elevation;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TileDirectoryElevationSourceTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private Path folder;
+
+	@Before
+	public void prepare() throws IOException {
+		this.folder = this.temporaryFolder.newFolder("tiles").toPath();
+		// A single zoom 0 tile, 100m in the western hemisphere and 300m in the eastern one
+		BufferedImage tile = new BufferedImage(TileDirectoryElevationSource.TILE_SIZE, TileDirectoryElevationSource.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+		for(int x = 0; x < TileDirectoryElevationSource.TILE_SIZE; x++) {
+			int elevation = x < TileDirectoryElevationSource.TILE_SIZE / 2 ? 100: 300;
+			int encoded = elevation + 32768;
+			for(int y = 0; y < TileDirectoryElevationSource.TILE_SIZE; y++) {
+				tile.setRGB(x, y, (encoded >> 8) << 16 | (encoded & 0xFF) << 8);
+			}
+		}
+		Path file = Files.createDirectories(this.folder.resolve("0").resolve("0")).resolve("0.png");
+		ImageIO.write(tile, "png", file.toFile());
+		Files.createDirectories(this.folder.resolve("not-a-zoom-level"));
+	}
+
+	@Test
+	public void testElevation() throws IOException {
+		TileDirectoryElevationSource source = new TileDirectoryElevationSource(this.folder, null);
+		Assert.assertEquals(100d, source.elevationAt(-90, 45), 1e-3);
+		Assert.assertEquals(300d, source.elevationAt(90, -45), 1e-3);
+		// Interpolated across the meridian and wrapped around the antimeridian
+		Assert.assertEquals(200d, source.elevationAt(0, 0), 1e-3);
+		Assert.assertEquals(200d, source.elevationAt(180, 0), 1e-3);
+		Assert.assertEquals(100d, source.elevationAt(-90, 89.9), 1e-3);
+	}
+
+	@Test
+	public void testMissingTile() throws IOException {
+		Files.createDirectories(this.folder.resolve("1"));
+		TileDirectoryElevationSource source = new TileDirectoryElevationSource(this.folder, null);
+		Assert.assertThrows(IOException.class, () -> source.elevationAt(-90, 45));
+		Assert.assertNotEquals(source.description(), new TileDirectoryElevationSource(this.folder, 0, null).description());
+	}
+
+	@Test
+	public void testDescriptionChangesWithTiles() throws IOException {
+		String description = new TileDirectoryElevationSource(this.folder, null).description();
+		Assert.assertEquals(description, new TileDirectoryElevationSource(this.folder, null).description());
+		Path file = this.folder.resolve("0").resolve("0").resolve("0.png");
+		Files.write(file, new byte[] {0}, StandardOpenOption.APPEND);
+		Assert.assertNotEquals(description, new TileDirectoryElevationSource(this.folder, null).description());
+	}
+
+}
@@ -0,0 +1,115 @@
+package fr.thesmyler.terracleanup.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fr.thesmyler.terracleanup.elevation.ElevationClassification;
+import fr.thesmyler.terracleanup.util.coordinates.Region3dPosition;
+
+public class ClassificationJournalTest {
+	
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	
+	private File file;
+	
+	@Before
+	public void prepare() throws IOException {
+		// Not created, the tested class creates it
+		this.file = new File(this.temporaryFolder.getRoot(), "terracleanup.journal");
+	}
+	
+	@Test
+	public void testPersist() throws IOException {
+		Region3dPosition sky = new Region3dPosition(-4000, 12, 2500);
+		Region3dPosition surface = new Region3dPosition(3, -1, 7);
+		try(ClassificationJournal journal = new ClassificationJournal(this.file, 42)) {
+			Assert.assertNull(journal.get(sky, 1000, 4096));
+			journal.record(sky, 1000, 4096, ElevationClassification.SKY_HIGH);
+			journal.record(surface, 2000, 8192, ElevationClassification.SURFACE);
+		}
+		try(ClassificationJournal journal = new ClassificationJournal(this.file, 42)) {
+			Assert.assertEquals(2, journal.size());
+			Assert.assertEquals(ElevationClassification.SKY_HIGH, journal.get(sky, 1000, 4096));
+			Assert.assertEquals(ElevationClassification.SURFACE, journal.get(surface, 2000, 8192));
+		}
+	}
+	
+	@Test
+	public void testModifiedFile() throws IOException {
+		Region3dPosition position = new Region3dPosition(1, 2, 3);
+		try(ClassificationJournal journal = new ClassificationJournal(this.file, 42)) {
+			journal.record(position, 1000, 4096, ElevationClassification.UNDERGROUND);
+		}
+		try(ClassificationJournal journal = new ClassificationJournal(this.file, 42)) {
+			Assert.assertNull(journal.get(position, 1001, 4096));
+			Assert.assertNull(journal.get(position, 1000, 4097));
+			// The latest record of a region wins
+			journal.record(position, 1001, 4096, ElevationClassification.SURFACE);
+		}
+		try(ClassificationJournal journal = new ClassificationJournal(this.file, 42)) {
+			Assert.assertEquals(1, journal.size());
+			Assert.assertEquals(ElevationClassification.SURFACE, journal.get(position, 1001, 4096));
+		}
+	}
+	
+	@Test
+	public void testFlush() throws IOException {
+		try(ClassificationJournal journal = new ClassificationJournal(this.file, 42)) {
+			journal.record(new Region3dPosition(1, 2, 3), 1000, 4096, ElevationClassification.SKY);
+			journal.flush();
+			// Records written before an interruption can be read back without closing the journal
+			try(ClassificationJournal reader = new ClassificationJournal(this.file, 42)) {
+				Assert.assertEquals(ElevationClassification.SKY, reader.get(new Region3dPosition(1, 2, 3), 1000, 4096));
+			}
+		}
+	}
+	
+	@Test
+	public void testFailedNotRecorded() throws IOException {
+		Region3dPosition position = new Region3dPosition(1, 2, 3);
+		try(ClassificationJournal journal = new ClassificationJournal(this.file, 42)) {
+			journal.record(position, 1000, 4096, ElevationClassification.FAILED);
+		}
+		try(ClassificationJournal journal = new ClassificationJournal(this.file, 42)) {
+			Assert.assertEquals(0, journal.size());
+		}
+	}
+	
+	@Test
+	public void testFingerprintMismatch() throws IOException {
+		try(ClassificationJournal journal = new ClassificationJournal(this.file, 42)) {
+			journal.record(new Region3dPosition(0, 0, 0), 1000, 4096, ElevationClassification.SKY);
+		}
+		try(ClassificationJournal journal = new ClassificationJournal(this.file, 43)) {
+			Assert.assertEquals(0, journal.size());
+		}
+	}
+	
+	@Test
+	public void testTruncatedRecord() throws IOException {
+		try(ClassificationJournal journal = new ClassificationJournal(this.file, 42)) {
+			journal.record(new Region3dPosition(0, 0, 0), 1000, 4096, ElevationClassification.SKY);
+			journal.record(new Region3dPosition(1, 0, 0), 1000, 4096, ElevationClassification.SKY);
+		}
+		try(RandomAccessFile raf = new RandomAccessFile(this.file, "rw")) {
+			raf.setLength(raf.length() - 3);
+		}
+		try(ClassificationJournal journal = new ClassificationJournal(this.file, 42)) {
+			Assert.assertEquals(1, journal.size());
+			journal.record(new Region3dPosition(2, 0, 0), 1000, 4096, ElevationClassification.UNDERGROUND_DEEP);
+		}
+		try(ClassificationJournal journal = new ClassificationJournal(this.file, 42)) {
+			Assert.assertEquals(2, journal.size());
+			Assert.assertEquals(ElevationClassification.UNDERGROUND_DEEP, journal.get(new Region3dPosition(2, 0, 0), 1000, 4096));
+		}
+	}
+
+}
@@ -0,0 +1,93 @@
+package fr.thesmyler.terracleanup.files;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fr.thesmyler.terracleanup.util.Packing;
+
+public class Region2dCleanerTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private static final int HEADER_SECTORS = RegionFile.ENTRY_COUNT_2D * 4 / RegionFile.SECTOR_SIZE;
+
+	private Path root;
+	private Path region3d;
+	private Path region2d;
+
+	@Before
+	public void prepare() throws IOException {
+		this.root = this.temporaryFolder.newFolder("world").toPath();
+		this.region3d = Files.createDirectory(this.root.resolve("region3d"));
+		this.region2d = Files.createDirectory(this.root.resolve("region2d"));
+		// Region3d columns (0, 0) and (-1, -1) remain
+		Files.write(this.region3d.resolve("0.0.0.3dr"), new byte[1]);
+		Files.write(this.region3d.resolve("0.5.0.3dr"), new byte[1]);
+		Files.write(this.region3d.resolve("-1.0.-1.3dr"), new byte[1]);
+		// Covers region3d columns (0, 0) to (1, 1), one chunk column in (0, 0) and one in (1, 1)
+		writeRegion2d(this.region2d.resolve("0.0.2dr"), RegionFile.entryIndex2d(0, 0), RegionFile.entryIndex2d(31, 31));
+		// Covers region3d columns (-2, -2) to (-1, -1), fully used
+		writeRegion2d(this.region2d.resolve("-1.-1.2dr"), RegionFile.entryIndex2d(31, 31));
+		// Covers region3d columns (10, 10) to (11, 11), none of them remain
+		writeRegion2d(this.region2d.resolve("5.5.2dr"), RegionFile.entryIndex2d(0, 0));
+	}
+
+	private static void writeRegion2d(Path file, int... entries) throws IOException {
+		ByteBuffer data = ByteBuffer.allocate((HEADER_SECTORS + entries.length) * RegionFile.SECTOR_SIZE);
+		for(int i = 0; i < entries.length; i++) {
+			data.putInt(entries[i] * 4, (HEADER_SECTORS + i) << 8 | 1);
+		}
+		Files.write(file, data.array());
+	}
+
+	@Test
+	public void testCleanup() throws IOException, InterruptedException {
+		long fullSize = Files.size(this.region2d.resolve("0.0.2dr"));
+		CleanupResult result = new Region2dCleaner(this.region3d, this.region2d, null, 2, false).apply();
+		Assert.assertEquals(2, result.files());
+		Assert.assertEquals(0, result.failures());
+		Assert.assertFalse(Files.exists(this.region2d.resolve("5.5.2dr")));
+		Assert.assertTrue(Files.exists(this.region2d.resolve("-1.-1.2dr")));
+		Path partial = this.region2d.resolve("0.0.2dr");
+		Assert.assertEquals(fullSize - RegionFile.SECTOR_SIZE, Files.size(partial));
+		try(FileChannel channel = FileChannel.open(partial, StandardOpenOption.READ)) {
+			int[] entries = RegionFile.readHeader(channel, RegionFile.ENTRY_COUNT_2D);
+			Assert.assertNotEquals(0, entries[RegionFile.entryIndex2d(0, 0)]);
+			Assert.assertEquals(0, entries[RegionFile.entryIndex2d(31, 31)]);
+		}
+	}
+
+	@Test
+	public void testDryRun() throws IOException, InterruptedException {
+		CleanupResult result = new Region2dCleaner(this.region3d, this.region2d, null, 2, true).apply();
+		Assert.assertEquals(2, result.files());
+		Assert.assertTrue(Files.exists(this.region2d.resolve("5.5.2dr")));
+		try(FileChannel channel = FileChannel.open(this.region2d.resolve("0.0.2dr"), StandardOpenOption.READ)) {
+			Assert.assertNotEquals(0, RegionFile.readHeader(channel, RegionFile.ENTRY_COUNT_2D)[RegionFile.entryIndex2d(31, 31)]);
+		}
+	}
+
+	@Test
+	public void testDryRunWithRemovedRegions() throws IOException, InterruptedException {
+		// Column (-1, -1) would be gone if its only 3dr file had really been removed
+		long removed = Packing.packPosition(-1, 0, -1);
+		CleanupResult listed = new Region2dCleaner(this.region3d, this.region2d, null, 2, true, null, position -> position == removed).apply();
+		Assert.assertEquals(3, listed.files());
+		CleanupResult indexed = new Region2dCleaner(this.region3d, this.region2d, null, 2, true, RegionIndex.build(this.region3d), position -> position == removed).apply();
+		Assert.assertEquals(3, indexed.files());
+		Assert.assertTrue(Files.exists(this.region2d.resolve("-1.-1.2dr")));
+		Assert.assertTrue(Files.exists(this.region3d.resolve("-1.0.-1.3dr")));
+	}
+
+}
@@ -0,0 +1,128 @@
+package fr.thesmyler.terracleanup.files;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fr.thesmyler.terracleanup.Region3dCleanupReport;
+import fr.thesmyler.terracleanup.content.Region3dContentClassifier;
+import fr.thesmyler.terracleanup.elevation.ElevationClassification;
+import fr.thesmyler.terracleanup.util.Packing;
+import fr.thesmyler.terracleanup.util.coordinates.Region3dPosition;
+
+public class Region3dCleanerTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private Path root;
+	private Path region3d;
+	private Region3dCleanupReport report;
+
+	@Before
+	public void prepare() throws IOException {
+		this.root = this.temporaryFolder.newFolder("world").toPath();
+		this.region3d = Files.createDirectory(this.root.resolve("region3d"));
+		Files.write(this.region3d.resolve("0.0.0.3dr"), new byte[100]);
+		Files.write(this.region3d.resolve("0.10.0.3dr"), new byte[50]);
+		Files.write(this.region3d.resolve("0.-10.0.3dr"), new byte[25]);
+		this.report = new Region3dCleanupReport(this.region3d);
+		this.report.add(new Region3dPosition(0, 0, 0), ElevationClassification.SURFACE);
+		this.report.add(new Region3dPosition(0, 10, 0), ElevationClassification.SKY_HIGH);
+		this.report.add(new Region3dPosition(0, -10, 0), ElevationClassification.UNDERGROUND_DEEP);
+	}
+
+	@Test
+	public void testDelete() throws IOException, InterruptedException {
+		CleanupResult result = new Region3dCleaner(this.region3d, null, 2, false).apply(this.report, EnumSet.of(ElevationClassification.SKY_HIGH, ElevationClassification.UNDERGROUND_DEEP));
+		Assert.assertEquals(2, result.files());
+		Assert.assertEquals(75, result.bytes());
+		Assert.assertTrue(Files.exists(this.region3d.resolve("0.0.0.3dr")));
+		Assert.assertFalse(Files.exists(this.region3d.resolve("0.10.0.3dr")));
+		Assert.assertFalse(Files.exists(this.region3d.resolve("0.-10.0.3dr")));
+	}
+
+	@Test
+	public void testKeepRecentlyModified() throws IOException, InterruptedException {
+		// The deep region has been idle for an hour, the high one was just written
+		Files.setLastModifiedTime(this.region3d.resolve("0.-10.0.3dr"), FileTime.fromMillis(System.currentTimeMillis() - 3_600_000));
+		CleanupResult result = new Region3dCleaner(this.region3d, null, 2, false, null, 600_000).apply(this.report, EnumSet.of(ElevationClassification.SKY_HIGH, ElevationClassification.UNDERGROUND_DEEP));
+		Assert.assertEquals(1, result.files());
+		Assert.assertEquals(1, result.kept());
+		Assert.assertTrue(Files.exists(this.region3d.resolve("0.10.0.3dr")));
+		Assert.assertFalse(Files.exists(this.region3d.resolve("0.-10.0.3dr")));
+	}
+
+	@Test
+	public void testQuarantine() throws IOException, InterruptedException {
+		Path quarantine = this.root.resolve("quarantine");
+		CleanupResult result = new Region3dCleaner(this.region3d, quarantine, 2, false).apply(this.report, EnumSet.of(ElevationClassification.SKY_HIGH));
+		Assert.assertEquals(1, result.files());
+		Assert.assertFalse(Files.exists(this.region3d.resolve("0.10.0.3dr")));
+		Assert.assertTrue(Files.exists(quarantine.resolve("0.10.0.3dr")));
+	}
+
+	@Test
+	public void testQuarantineKeepsEarlierFiles() throws IOException, InterruptedException {
+		Path quarantine = Files.createDirectory(this.root.resolve("quarantine"));
+		Files.write(quarantine.resolve("0.10.0.3dr"), new byte[10]);
+		CleanupResult result = new Region3dCleaner(this.region3d, quarantine, 2, false).apply(this.report, EnumSet.of(ElevationClassification.SKY_HIGH));
+		Assert.assertEquals(0, result.files());
+		Assert.assertEquals(1, result.failures());
+		Assert.assertTrue(Files.exists(this.region3d.resolve("0.10.0.3dr")));
+		Assert.assertEquals(10, Files.size(quarantine.resolve("0.10.0.3dr")));
+	}
+
+	@Test
+	public void testDryRunQuarantine() throws IOException, InterruptedException {
+		Path quarantine = this.root.resolve("quarantine");
+		CleanupResult result = new Region3dCleaner(this.region3d, quarantine, 2, true).apply(this.report, EnumSet.of(ElevationClassification.SKY_HIGH));
+		Assert.assertEquals(1, result.files());
+		Assert.assertFalse(Files.exists(quarantine));
+		Assert.assertTrue(Files.exists(this.region3d.resolve("0.10.0.3dr")));
+	}
+
+	@Test
+	public void testDryRun() throws IOException, InterruptedException {
+		List<Long> removed = new ArrayList<>();
+		CleanupResult result = new Region3dCleaner(this.region3d, null, 2, true).apply(this.report, EnumSet.of(ElevationClassification.SKY_HIGH), position -> {
+			synchronized(removed) {
+				removed.add(position);
+			}
+		});
+		Assert.assertEquals(1, result.files());
+		Assert.assertEquals(50, result.bytes());
+		Assert.assertTrue(Files.exists(this.region3d.resolve("0.10.0.3dr")));
+		Assert.assertEquals(Collections.singletonList(Packing.packPosition(0, 10, 0)), removed);
+	}
+
+	@Test
+	public void testKeepUnreadable() throws IOException, InterruptedException {
+		Region3dContentClassifier content = new Region3dContentClassifier(this.region3d, Region3dContentClassifier.DEFAULT_NATURAL_BLOCKS, 2);
+		CleanupResult result = new Region3dCleaner(this.region3d, null, 2, false, content).apply(this.report, EnumSet.of(ElevationClassification.SKY_HIGH, ElevationClassification.UNDERGROUND_DEEP));
+		content.terminate();
+		// These files are not valid regions, so their content cannot be checked
+		Assert.assertEquals(0, result.files());
+		Assert.assertEquals(2, result.kept());
+		Assert.assertTrue(Files.exists(this.region3d.resolve("0.10.0.3dr")));
+		Assert.assertTrue(Files.exists(this.region3d.resolve("0.-10.0.3dr")));
+	}
+
+	@After
+	public void cleanup() throws IOException {
+		this.report.close();
+	}
+
+}
@@ -0,0 +1,36 @@
+package fr.thesmyler.terracleanup.files;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class Region3dFilenameClassifierTest {
+	
+	@Test
+	public void testClassifyAll() throws InterruptedException, ExecutionException {
+		Region3dFilenameClassifier classifier = new Region3dFilenameClassifier();
+		List<Path> paths = Arrays.asList(
+				Paths.get("region3d", "0.0.0.3dr"),
+				Paths.get("region3d", "-12.3.-40.3dr"),
+				Paths.get("region3d", "0.0.2dr"),
+				Paths.get("region3d", "notaregion.txt")
+				);
+		FilenameClassification[] results = new FilenameClassification[paths.size()];
+		classifier.classifyAll(paths, results).get();
+		Assert.assertArrayEquals(new FilenameClassification[] {
+				FilenameClassification.VALID,
+				FilenameClassification.VALID,
+				FilenameClassification.INVALID,
+				FilenameClassification.INVALID
+				}, results);
+		for(int i = 0; i < results.length; i++) {
+			Assert.assertEquals(classifier.classify(paths.get(i)).get(), results[i]);
+		}
+	}
+
+}
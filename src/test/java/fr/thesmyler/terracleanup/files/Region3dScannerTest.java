@@ -0,0 +1,159 @@
+package fr.thesmyler.terracleanup.files;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fr.thesmyler.terracleanup.util.HilbertCurve;
+import fr.thesmyler.terracleanup.util.coordinates.Region3dColumn;
+
+public class Region3dScannerTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private Path folder;
+
+	@Before
+	public void prepare() throws IOException {
+		this.folder = this.temporaryFolder.newFolder("region3d").toPath();
+		for(String name: new String[] {"0.0.0.3dr", "0.1.0.3dr", "0.-1.0.3dr", "1.0.0.3dr", "-3.4.-5.3dr", "0.0.2dr", "notaregion.txt"}) {
+			Files.createFile(this.folder.resolve(name));
+		}
+	}
+
+	@Test
+	public void testScan() throws IOException, InterruptedException {
+		Region3dScanner scanner = new Region3dScanner(this.folder, 2, 2);
+		Map<Region3dColumn, AtomicInteger> counts = new ConcurrentHashMap<>();
+		scanner.scan((column, positions) -> {
+			counts.computeIfAbsent(column, c -> new AtomicInteger()).addAndGet(positions.size());
+			return CompletableFuture.completedFuture(null);
+		});
+		Assert.assertEquals(5, scanner.foundCount());
+		Assert.assertEquals(2, scanner.ignoredCount());
+		Assert.assertEquals(3, counts.get(new Region3dColumn(0, 0)).get());
+		Assert.assertEquals(1, counts.get(new Region3dColumn(1, 0)).get());
+		Assert.assertEquals(1, counts.get(new Region3dColumn(-3, -5)).get());
+	}
+
+	@Test
+	public void testScanWaitsForCompletion() throws IOException, InterruptedException {
+		Region3dScanner scanner = new Region3dScanner(this.folder, 2, 4);
+		AtomicInteger done = new AtomicInteger();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			scanner.scan((column, positions) -> CompletableFuture.runAsync(() -> {
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				done.addAndGet(positions.size());
+			}, executor));
+		} finally {
+			executor.shutdown();
+		}
+		Assert.assertTrue(scanner.isListingDone());
+		Assert.assertEquals(5, done.get());
+		Assert.assertEquals(5, scanner.processedCount());
+	}
+
+	@Test
+	public void testShards() throws IOException, InterruptedException {
+		Map<Region3dColumn, Integer> owners = new ConcurrentHashMap<>();
+		long found = 0;
+		for(int i = 0; i < 3; i++) {
+			int index = i;
+			Region3dScanner scanner = new Region3dScanner(this.folder, 2, 2, new Shard(i, 3));
+			scanner.scan((column, positions) -> {
+				Integer previous = owners.putIfAbsent(column, index);
+				Assert.assertTrue(previous == null || previous == index);
+				return CompletableFuture.completedFuture(null);
+			});
+			Assert.assertEquals(5, scanner.foundCount() + scanner.skippedCount());
+			found += scanner.foundCount();
+		}
+		Assert.assertEquals(5, found);
+		Assert.assertEquals(3, owners.size());
+	}
+
+	@Test
+	public void testPrefetchBeforeSubmit() throws IOException, InterruptedException {
+		Region3dScanner scanner = new Region3dScanner(this.folder, 100, 100);
+		List<Region3dColumn> prefetched = new ArrayList<>();
+		List<Region3dColumn> submitted = new ArrayList<>();
+		scanner.scan((column, positions) -> {
+			Assert.assertTrue(prefetched.contains(column));
+			submitted.add(column);
+			return CompletableFuture.completedFuture(null);
+		}, prefetched::add);
+		Assert.assertEquals(3, submitted.size());
+		Assert.assertEquals(submitted, prefetched);
+	}
+
+	@Test
+	public void testPrefetchWhileThrottled() throws Exception {
+		int batchSize = 3 * Region3dScanner.PREFETCH_DISTANCE;
+		// Two batches of regions that are each alone in their column
+		Path folder = this.temporaryFolder.newFolder("throttled").toPath();
+		for(int x = 0; x < 2 * batchSize; x++) Files.createFile(folder.resolve(x + ".0.0.3dr"));
+		Region3dScanner scanner = new Region3dScanner(folder, batchSize, batchSize);
+		Set<Region3dColumn> prefetched = ConcurrentHashMap.newKeySet();
+		AtomicInteger submitted = new AtomicInteger();
+		CompletableFuture<Void> processing = new CompletableFuture<>();
+		Thread thread = new Thread(() -> {
+			try {
+				scanner.scan((column, positions) -> {
+					Assert.assertTrue(prefetched.contains(column));
+					submitted.addAndGet(positions.size());
+					return processing;
+				}, prefetched::add);
+			} catch(IOException | InterruptedException e) {
+				e.printStackTrace();
+			}
+		});
+		thread.start();
+		// The first batch fills the throttle, the scan then looks further ahead in the next one while waiting
+		long deadline = System.currentTimeMillis() + 20_000;
+		while(prefetched.size() < batchSize + 2 * Region3dScanner.PREFETCH_DISTANCE && System.currentTimeMillis() < deadline) Thread.sleep(10);
+		Assert.assertEquals(batchSize + 2 * Region3dScanner.PREFETCH_DISTANCE, prefetched.size());
+		Assert.assertTrue(submitted.get() <= batchSize);
+		processing.complete(null);
+		thread.join(5000);
+		Assert.assertFalse(thread.isAlive());
+		Assert.assertEquals(scanner.foundCount(), scanner.processedCount());
+	}
+
+	@Test
+	public void testSortAlongCurve() {
+		List<Region3dColumn> columns = new ArrayList<>();
+		for(int x = -8; x < 8; x++) for(int z = -8; z < 8; z++) columns.add(new Region3dColumn(x, z));
+		Collections.shuffle(columns, new Random(0));
+		Region3dColumn[] sorted = Region3dScanner.sortAlongCurve(columns);
+		Assert.assertEquals(columns.size(), sorted.length);
+		for(int i = 1; i < sorted.length; i++) {
+			Assert.assertTrue(HilbertCurve.index(sorted[i - 1].x(), sorted[i - 1].z()) < HilbertCurve.index(sorted[i].x(), sorted[i].z()));
+			// The curve is continuous, consecutive columns are neighbors
+			Assert.assertEquals(1, Math.abs(sorted[i].x() - sorted[i - 1].x()) + Math.abs(sorted[i].z() - sorted[i - 1].z()));
+		}
+	}
+
+}
@@ -0,0 +1,168 @@
+package fr.thesmyler.terracleanup.files;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fr.thesmyler.terracleanup.util.coordinates.Region3dPosition;
+
+public class Region3dWatcherTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private Path folder;
+
+	@Before
+	public void prepare() throws IOException {
+		this.folder = this.temporaryFolder.newFolder("region3d").toPath();
+		Files.createFile(this.folder.resolve("5.5.5.3dr"));
+	}
+
+	@Test
+	public void testWatch() throws Exception {
+		Set<Region3dPosition> submitted = ConcurrentHashMap.newKeySet();
+		Semaphore periods = new Semaphore(0);
+		Region3dWatcher watcher = new Region3dWatcher(this.folder, 100, null);
+		try {
+			Thread thread = new Thread(() -> {
+				try {
+					watcher.run((column, positions) -> {
+						for(Region3dPosition position: positions) {
+							Assert.assertEquals(column, position.column());
+							Assert.assertTrue(submitted.add(position));
+						}
+						return CompletableFuture.completedFuture(null);
+					}, periods::release, 200);
+				} catch(IOException | InterruptedException e) {
+					e.printStackTrace();
+				}
+			});
+			thread.start();
+			Files.createFile(this.folder.resolve("0.0.0.3dr"));
+			Files.createFile(this.folder.resolve("0.1.0.3dr"));
+			Files.createFile(this.folder.resolve("1.0.0.3dr"));
+			Files.createFile(this.folder.resolve("notaregion.txt"));
+			Files.write(this.folder.resolve("0.0.0.3dr"), new byte[10]);
+			long deadline = System.currentTimeMillis() + 20_000;
+			while(submitted.size() < 3 && System.currentTimeMillis() < deadline) periods.tryAcquire(100, TimeUnit.MILLISECONDS);
+			watcher.close();
+			thread.join(5000);
+			Assert.assertFalse(thread.isAlive());
+		} finally {
+			watcher.close();
+		}
+		// Regions that existed before the watcher started are not submitted, and each new one is submitted once
+		Assert.assertEquals(3, submitted.size());
+		Assert.assertTrue(submitted.contains(new Region3dPosition(0, 1, 0)));
+		Assert.assertFalse(submitted.contains(new Region3dPosition(5, 5, 5)));
+	}
+
+	@Test
+	public void testCloseEndsLastPeriod() throws Exception {
+		Set<Region3dPosition> processed = ConcurrentHashMap.newKeySet();
+		List<Set<Region3dPosition>> periods = new CopyOnWriteArrayList<>();
+		Region3dWatcher watcher = new Region3dWatcher(this.folder, 0, null);
+		try {
+			Thread thread = new Thread(() -> {
+				try {
+					// Processing completes on another thread, the last period must still wait for it
+					watcher.run((column, positions) -> CompletableFuture.runAsync(() -> {
+						try {
+							Thread.sleep(200);
+						} catch(InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						processed.addAll(positions);
+					}), () -> periods.add(new HashSet<>(processed)), 60_000);
+				} catch(IOException | InterruptedException e) {
+					e.printStackTrace();
+				}
+			});
+			thread.start();
+			Files.createFile(this.folder.resolve("0.0.0.3dr"));
+			long deadline = System.currentTimeMillis() + 20_000;
+			while(watcher.submittedCount() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(50);
+			watcher.close();
+			thread.join(5000);
+			Assert.assertFalse(thread.isAlive());
+		} finally {
+			watcher.close();
+		}
+		Assert.assertEquals(1, periods.size());
+		Assert.assertTrue(periods.get(0).contains(new Region3dPosition(0, 0, 0)));
+	}
+
+	@Test
+	public void testInterruptEndsLastPeriod() throws Exception {
+		AtomicInteger periods = new AtomicInteger();
+		AtomicBoolean interrupted = new AtomicBoolean();
+		try(Region3dWatcher watcher = new Region3dWatcher(this.folder, 0, null)) {
+			Thread thread = new Thread(() -> {
+				try {
+					watcher.run((column, positions) -> CompletableFuture.completedFuture(null), periods::incrementAndGet, 60_000);
+				} catch(IOException | InterruptedException e) {
+					e.printStackTrace();
+				}
+				interrupted.set(Thread.currentThread().isInterrupted());
+			});
+			thread.start();
+			Thread.sleep(200);
+			thread.interrupt();
+			thread.join(5000);
+			Assert.assertFalse(thread.isAlive());
+		}
+		Assert.assertEquals(1, periods.get());
+		Assert.assertTrue(interrupted.get());
+	}
+
+	@Test
+	public void testShard() throws Exception {
+		Set<Region3dPosition> submitted = ConcurrentHashMap.newKeySet();
+		Shard shard = new Shard(Shard.of(0, 0, 2), 2);
+		Region3dWatcher watcher = new Region3dWatcher(this.folder, 0, shard);
+		try {
+			Thread thread = new Thread(() -> {
+				try {
+					watcher.run((column, positions) -> {
+						submitted.addAll(positions);
+						return CompletableFuture.completedFuture(null);
+					}, () -> {}, 100);
+				} catch(IOException | InterruptedException e) {
+					e.printStackTrace();
+				}
+			});
+			thread.start();
+			int other = 0;
+			while(shard.contains(other, 0)) other += Shard.BLOCK_SIZE;
+			Files.createFile(this.folder.resolve("0.0.0.3dr"));
+			Files.createFile(this.folder.resolve(other + ".0.0.3dr"));
+			long deadline = System.currentTimeMillis() + 20_000;
+			while(submitted.isEmpty() && System.currentTimeMillis() < deadline) Thread.sleep(50);
+			Thread.sleep(500);
+			watcher.close();
+			thread.join(5000);
+		} finally {
+			watcher.close();
+		}
+		Assert.assertEquals(1, submitted.size());
+		Assert.assertTrue(submitted.contains(new Region3dPosition(0, 0, 0)));
+	}
+
+}
@@ -0,0 +1,74 @@
+package fr.thesmyler.terracleanup.files;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RegionFileTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private static final int HEADER_SECTORS = RegionFile.ENTRY_COUNT_3D * 4 / RegionFile.SECTOR_SIZE;
+
+	private Path file;
+
+	@Before
+	public void prepare() throws IOException {
+		this.file = this.temporaryFolder.newFile("0.0.0.3dr").toPath();
+		// Three cubes: one sector filled with 1s, two sectors filled with 2s and one sector filled with 3s
+		ByteBuffer data = ByteBuffer.allocate((HEADER_SECTORS + 4) * RegionFile.SECTOR_SIZE);
+		data.putInt(RegionFile.entryIndex3d(0, 0, 0) * 4, HEADER_SECTORS << 8 | 1);
+		data.putInt(RegionFile.entryIndex3d(1, 2, 3) * 4, (HEADER_SECTORS + 1) << 8 | 2);
+		data.putInt(RegionFile.entryIndex3d(15, 15, 15) * 4, (HEADER_SECTORS + 3) << 8 | 1);
+		for(int i = 0; i < 4; i++) {
+			byte value = (byte) (i == 0 ? 1: i < 3 ? 2: 3);
+			for(int j = 0; j < RegionFile.SECTOR_SIZE; j++) data.put((HEADER_SECTORS + i) * RegionFile.SECTOR_SIZE + j, value);
+		}
+		Files.write(this.file, data.array());
+	}
+
+	@Test
+	public void testRemoveEntries() throws IOException {
+		boolean[] remove = new boolean[RegionFile.ENTRY_COUNT_3D];
+		remove[RegionFile.entryIndex3d(1, 2, 3)] = true;
+		remove[RegionFile.entryIndex3d(5, 5, 5)] = true;
+		long size = Files.size(this.file);
+		Assert.assertEquals(2 * RegionFile.SECTOR_SIZE, RegionFile.removeEntries(this.file, remove, true));
+		Assert.assertEquals(size, Files.size(this.file));
+		Assert.assertEquals(2 * RegionFile.SECTOR_SIZE, RegionFile.removeEntries(this.file, remove, false));
+		Assert.assertEquals(size - 2 * RegionFile.SECTOR_SIZE, Files.size(this.file));
+		try(FileChannel channel = FileChannel.open(this.file, StandardOpenOption.READ)) {
+			int[] entries = RegionFile.readHeader(channel, RegionFile.ENTRY_COUNT_3D);
+			Assert.assertEquals(0, entries[RegionFile.entryIndex3d(1, 2, 3)]);
+			int last = entries[RegionFile.entryIndex3d(15, 15, 15)];
+			Assert.assertEquals(HEADER_SECTORS + 1, RegionFile.sectorOffset(last));
+			Assert.assertEquals(1, RegionFile.sectorCount(last));
+			ByteBuffer sector = ByteBuffer.allocate(1);
+			channel.read(sector, (long) RegionFile.sectorOffset(last) * RegionFile.SECTOR_SIZE);
+			Assert.assertEquals(3, sector.get(0));
+		}
+		Assert.assertEquals(0, RegionFile.removeEntries(this.file, remove, false));
+	}
+
+	@Test
+	public void testRemoveAllEntries() throws IOException {
+		boolean[] remove = new boolean[RegionFile.ENTRY_COUNT_3D];
+		remove[RegionFile.entryIndex3d(0, 0, 0)] = true;
+		remove[RegionFile.entryIndex3d(1, 2, 3)] = true;
+		remove[RegionFile.entryIndex3d(15, 15, 15)] = true;
+		long size = Files.size(this.file);
+		Assert.assertEquals(size, RegionFile.removeEntries(this.file, remove, false));
+		Assert.assertFalse(Files.exists(this.file));
+	}
+
+}
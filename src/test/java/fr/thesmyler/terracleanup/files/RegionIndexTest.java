@@ -0,0 +1,125 @@
+package fr.thesmyler.terracleanup.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RegionIndexTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private Path folder;
+	private File indexFile;
+
+	@Before
+	public void prepare() throws IOException {
+		this.folder = this.temporaryFolder.newFolder("region3d").toPath();
+		for(String name: new String[] {"0.0.0.3dr", "0.1.0.3dr", "0.-1.0.3dr", "0.70.0.3dr", "0.-65.0.3dr", "1.0.0.3dr", "-3.4.-5.3dr", "0.0.2dr", "notaregion.txt"}) {
+			Files.createFile(this.folder.resolve(name));
+		}
+		Files.setLastModifiedTime(this.folder, FileTime.fromMillis(1_000_000));
+		this.indexFile = this.temporaryFolder.newFile("region-index.bin");
+	}
+
+	@Test
+	public void testBuild() throws IOException {
+		RegionIndex index = RegionIndex.build(this.folder);
+		Assert.assertEquals(7, index.regionCount());
+		Assert.assertEquals(3, index.columnCount());
+		Assert.assertTrue(index.contains(0, 70, 0));
+		Assert.assertTrue(index.contains(0, -65, 0));
+		Assert.assertTrue(index.contains(-3, 4, -5));
+		Assert.assertFalse(index.contains(0, 2, 0));
+		Assert.assertFalse(index.contains(0, -64, 0));
+		Assert.assertFalse(index.contains(2, 0, 0));
+		Assert.assertTrue(index.containsColumn(1, 0));
+		Assert.assertFalse(index.containsColumn(0, 1));
+		Assert.assertEquals(-65, index.yRange(0, 0).lowerBound());
+		Assert.assertEquals(70, index.yRange(0, 0).upperBound());
+		Assert.assertEquals(4, index.yRange(-3, -5).lowerBound());
+		Assert.assertEquals(4, index.yRange(-3, -5).upperBound());
+		Assert.assertNull(index.yRange(5, 5));
+		int column = index.indexOf(0, 0);
+		Assert.assertEquals(5, index.regionCount(column));
+		List<Integer> ys = new ArrayList<>();
+		index.forEachRegion(column, ys::add);
+		Assert.assertEquals(Arrays.asList(-65, -1, 0, 1, 70), ys);
+	}
+
+	@Test
+	public void testColumnsAreSorted() throws IOException {
+		RegionIndex index = RegionIndex.build(this.folder);
+		Assert.assertEquals(-3, index.columnX(0));
+		Assert.assertEquals(-5, index.columnZ(0));
+		Assert.assertEquals(0, index.columnX(1));
+		Assert.assertEquals(0, index.columnZ(1));
+		Assert.assertEquals(1, index.columnX(2));
+		Assert.assertEquals(0, index.columnZ(2));
+	}
+
+	@Test
+	public void testSaveAndLoad() throws IOException {
+		RegionIndex.build(this.folder).save(this.indexFile);
+		RegionIndex index = RegionIndex.load(this.indexFile, this.folder);
+		Assert.assertNotNull(index);
+		Assert.assertEquals(7, index.regionCount());
+		Assert.assertEquals(3, index.columnCount());
+		Assert.assertEquals(-65, index.yRange(0, 0).lowerBound());
+		Assert.assertEquals(70, index.yRange(0, 0).upperBound());
+		Assert.assertTrue(index.contains(-3, 4, -5));
+
+		// Saving over an index that was loaded replaces it and leaves no temporary file behind
+		index.save(this.indexFile);
+		Assert.assertNotNull(RegionIndex.load(this.indexFile, this.folder));
+		Assert.assertFalse(Files.exists(this.indexFile.toPath().resolveSibling(this.indexFile.getName() + ".tmp")));
+	}
+
+	@Test
+	public void testStaleIndexIsRebuilt() throws IOException {
+		RegionIndex.loadOrBuild(this.indexFile, this.folder);
+		Files.createFile(this.folder.resolve("2.0.0.3dr"));
+		Files.setLastModifiedTime(this.folder, FileTime.fromMillis(2_000_000));
+		Assert.assertNull(RegionIndex.load(this.indexFile, this.folder));
+		RegionIndex index = RegionIndex.loadOrBuild(this.indexFile, this.folder);
+		Assert.assertEquals(8, index.regionCount());
+		Assert.assertNotNull(RegionIndex.load(this.indexFile, this.folder));
+	}
+
+	@Test
+	public void testInvalidFile() throws IOException {
+		Files.write(this.indexFile.toPath(), new byte[] {1, 2, 3});
+		Assert.assertNull(RegionIndex.load(this.indexFile, this.folder));
+	}
+
+	@Test
+	public void testScanFromIndex() throws IOException, InterruptedException {
+		Region3dScanner scanner = new Region3dScanner(this.folder, 2, 8, null, RegionIndex.build(this.folder));
+		List<Integer> sizes = new ArrayList<>();
+		scanner.scan((column, positions) -> {
+			for(int i = 0; i < positions.size(); i++) Assert.assertEquals(column, positions.get(i).column());
+			synchronized(sizes) {
+				sizes.add(positions.size());
+			}
+			return CompletableFuture.completedFuture(null);
+		});
+		sizes.sort(null);
+		// Columns are submitted whole, even when larger than a batch
+		Assert.assertEquals(Arrays.asList(1, 1, 5), sizes);
+		Assert.assertEquals(7, scanner.foundCount());
+		Assert.assertEquals(0, scanner.ignoredCount());
+	}
+
+}
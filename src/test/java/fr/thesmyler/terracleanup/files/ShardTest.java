@@ -0,0 +1,51 @@
+package fr.thesmyler.terracleanup.files;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ShardTest {
+
+	@Test
+	public void testPartition() {
+		Shard[] shards = new Shard[5];
+		for(int i = 0; i < shards.length; i++) shards[i] = new Shard(i, shards.length);
+		int[] sizes = new int[shards.length];
+		for(int x = -100; x < 100; x++) {
+			for(int z = -100; z < 100; z++) {
+				int owners = 0;
+				for(Shard shard: shards) {
+					if(shard.contains(x, z)) {
+						owners++;
+						sizes[shard.index()]++;
+					}
+				}
+				Assert.assertEquals(1, owners);
+				Assert.assertEquals(Shard.of(x, z, shards.length), Shard.of(Math.floorDiv(x, Shard.BLOCK_SIZE) * Shard.BLOCK_SIZE, Math.floorDiv(z, Shard.BLOCK_SIZE) * Shard.BLOCK_SIZE, shards.length));
+			}
+		}
+		for(int size: sizes) Assert.assertTrue(size > 200 * 200 / shards.length / 2);
+	}
+
+	@Test
+	public void testSingleShard() {
+		Shard shard = new Shard(0, 1);
+		Assert.assertTrue(shard.contains(0, 0));
+		Assert.assertTrue(shard.contains(Integer.MIN_VALUE, Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void testParse() {
+		Shard shard = Shard.parse("2/8");
+		Assert.assertEquals(2, shard.index());
+		Assert.assertEquals(8, shard.count());
+		Assert.assertEquals("2/8", shard.toString());
+	}
+
+	@Test
+	public void testParseInvalid() {
+		Assert.assertThrows(IllegalArgumentException.class, () -> Shard.parse("4/4"));
+		Assert.assertThrows(IllegalArgumentException.class, () -> Shard.parse("two/8"));
+		Assert.assertThrows(IllegalArgumentException.class, () -> Shard.parse("2"));
+	}
+
+}
@@ -0,0 +1,98 @@
+package fr.thesmyler.terracleanup.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConcurrentLongMapTest {
+	
+	@Test
+	public void testAgainstHashMap() {
+		// Keys are drawn from a small set so that collisions, replacements and removals in the middle of probe sequences all happen
+		ConcurrentLongMap map = new ConcurrentLongMap();
+		Map<Long, Long> reference = new HashMap<>();
+		Random random = new Random(42);
+		for(int i = 0; i < 100_000; i++) {
+			long key = Packing.packColumn(random.nextInt(64) - 32, random.nextInt(64) - 32);
+			long value = random.nextLong() & Long.MAX_VALUE;
+			switch(random.nextInt(4)) {
+			case 0:
+				Assert.assertEquals(orMissing(reference.put(key, value)), map.put(key, value));
+				break;
+			case 1:
+				Assert.assertEquals(orMissing(reference.putIfAbsent(key, value)), map.putIfAbsent(key, value));
+				break;
+			case 2:
+				Assert.assertEquals(orMissing(reference.remove(key)), map.remove(key));
+				break;
+			default:
+				Assert.assertEquals(orMissing(reference.get(key)), map.get(key));
+			}
+		}
+		Assert.assertEquals(reference.size(), map.size());
+		for(Map.Entry<Long, Long> entry: reference.entrySet()) {
+			Assert.assertEquals(entry.getValue().longValue(), map.get(entry.getKey()));
+		}
+	}
+	
+	@Test
+	public void testBounded() {
+		ConcurrentLongMap map = new ConcurrentLongMap(100, value -> value >= 0);
+		map.put(-1, -1);
+		for(long key = 0; key < 1000; key++) map.put(key, key);
+		Assert.assertEquals(100, map.size());
+		Assert.assertEquals(901, map.evictions());
+		Assert.assertEquals(-1, map.get(-1));
+	}
+	
+	@Test
+	public void testRemoveEvictable() {
+		ConcurrentLongMap map = new ConcurrentLongMap(100, value -> value >= 0);
+		map.put(1, 1);
+		map.put(2, -1);
+		Assert.assertEquals(1, map.removeEvictable(1));
+		Assert.assertEquals(ConcurrentLongMap.MISSING, map.removeEvictable(2));
+		Assert.assertEquals(ConcurrentLongMap.MISSING, map.removeEvictable(3));
+		Assert.assertEquals(1, map.size());
+		Assert.assertEquals(-1, map.get(2));
+	}
+	
+	@Test
+	public void testConcurrentPutIfAbsent() throws InterruptedException {
+		ConcurrentLongMap map = new ConcurrentLongMap();
+		AtomicInteger inserted = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		for(int thread = 0; thread < 8; thread++) {
+			executor.execute(() -> {
+				for(long key = 0; key < 10_000; key++) {
+					if(map.putIfAbsent(key, key * 2) == ConcurrentLongMap.MISSING) inserted.incrementAndGet();
+					Assert.assertEquals(key * 2, map.get(key));
+				}
+			});
+		}
+		executor.shutdown();
+		Assert.assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+		Assert.assertEquals(10_000, inserted.get());
+		Assert.assertEquals(10_000, map.size());
+	}
+	
+	@Test
+	public void testInvalidEntries() {
+		ConcurrentLongMap map = new ConcurrentLongMap();
+		Assert.assertThrows(IllegalArgumentException.class, () -> map.put(ConcurrentLongMap.MISSING, 0));
+		Assert.assertThrows(IllegalArgumentException.class, () -> map.put(0, ConcurrentLongMap.MISSING));
+		Assert.assertEquals(ConcurrentLongMap.MISSING, map.get(ConcurrentLongMap.MISSING));
+	}
+	
+	private static long orMissing(Long value) {
+		return value != null ? value: ConcurrentLongMap.MISSING;
+	}
+
+}
@@ -0,0 +1,35 @@
+package fr.thesmyler.terracleanup.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HilbertCurveTest {
+	
+	@Test
+	public void testContinuity() {
+		// An aligned square is covered by a contiguous section of the curve, where each step moves to an adjacent cell
+		int size = 32;
+		int[][] cells = new int[size * size][];
+		for(int x = 0; x < size; x++) {
+			for(int z = 0; z < size; z++) cells[x * size + z] = new int[] {x, z};
+		}
+		Arrays.sort(cells, Comparator.comparingLong(cell -> HilbertCurve.index(cell[0], cell[1])));
+		long first = HilbertCurve.index(cells[0][0], cells[0][1]);
+		for(int i = 1; i < cells.length; i++) {
+			Assert.assertEquals(first + i, HilbertCurve.index(cells[i][0], cells[i][1]));
+			Assert.assertEquals(1, Math.abs(cells[i][0] - cells[i - 1][0]) + Math.abs(cells[i][1] - cells[i - 1][1]));
+		}
+	}
+	
+	@Test
+	public void testNegativeAndClamped() {
+		Assert.assertNotEquals(HilbertCurve.index(-1, -1), HilbertCurve.index(0, 0));
+		Assert.assertNotEquals(HilbertCurve.index(-80000, 12), HilbertCurve.index(80000, 12));
+		Assert.assertEquals(HilbertCurve.index(Integer.MAX_VALUE, 0), HilbertCurve.index((1 << 23) - 1, 0));
+		Assert.assertTrue(HilbertCurve.index(Integer.MIN_VALUE, Integer.MIN_VALUE) >= 0);
+	}
+
+}
@@ -0,0 +1,23 @@
+package fr.thesmyler.terracleanup.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PackingTest {
+	
+	@Test
+	public void testPosition() {
+		int[][] positions = { {0, 0, 0}, {-1, -1, -1}, {8388607, 32767, -8388608}, {-4000, 12, 2500} };
+		for(int[] position: positions) {
+			Assert.assertTrue(Packing.canPackPosition(position[0], position[1], position[2]));
+			long packed = Packing.packPosition(position[0], position[1], position[2]);
+			Assert.assertEquals(position[0], Packing.positionX(packed));
+			Assert.assertEquals(position[1], Packing.positionY(packed));
+			Assert.assertEquals(position[2], Packing.positionZ(packed));
+		}
+		Assert.assertNotEquals(Packing.packPosition(1, 0, 0), Packing.packPosition(0, 0, 1));
+		Assert.assertFalse(Packing.canPackPosition(8388608, 0, 0));
+		Assert.assertFalse(Packing.canPackPosition(0, 32768, 0));
+	}
+
+}
@@ -0,0 +1,37 @@
+package fr.thesmyler.terracleanup.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WorkerPoolsTest {
+	
+	@Test
+	public void testWorkStealing() throws InterruptedException, ExecutionException {
+		ExecutorService pool = WorkerPools.workStealing(2, "Test worker");
+		try {
+			String name = CompletableFuture.supplyAsync(() -> Thread.currentThread().getName(), pool).get();
+			Assert.assertTrue(name.startsWith("Test worker "));
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void testVirtualFallback() throws InterruptedException, ExecutionException {
+		ExecutorService executor = WorkerPools.create(2, "Test worker", true);
+		try {
+			// Falls back to a work-stealing pool on JDKs without virtual threads
+			Assert.assertEquals(WorkerPools.virtualThreadsAvailable(), !(executor instanceof ForkJoinPool));
+			Assert.assertEquals(42, CompletableFuture.supplyAsync(() -> 42, executor).get().intValue());
+		} finally {
+			executor.shutdownNow();
+		}
+		Assert.assertTrue(WorkerPools.create(2, "Test worker", false) instanceof ForkJoinPool);
+	}
+
+}
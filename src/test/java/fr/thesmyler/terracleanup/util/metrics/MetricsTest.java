@@ -0,0 +1,52 @@
+package fr.thesmyler.terracleanup.util.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetricsTest {
+
+	@Test
+	public void testHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for(int i = 0; i < 90; i++) histogram.record(1000);
+		for(int i = 0; i < 10; i++) histogram.record(1_000_000);
+		Assert.assertEquals(100, histogram.count());
+		Assert.assertEquals(1_000_000, histogram.max());
+		Assert.assertEquals((90 * 1000 + 10 * 1_000_000) / 100d, histogram.mean(), 1e-9);
+		// Percentiles are the upper bound of power of two buckets
+		Assert.assertEquals(1023, histogram.percentile(0.5));
+		Assert.assertEquals(1023, histogram.percentile(0.9));
+		Assert.assertEquals(1_000_000, histogram.percentile(0.99));
+		Assert.assertEquals(0, new LatencyHistogram().percentile(0.5));
+	}
+
+	@Test
+	public void testWrite() throws UnsupportedEncodingException {
+		Metrics component = new Metrics();
+		component.histogram("fetch").record(5000);
+		component.counter("done").add(3);
+		component.gauge("queue", () -> 7);
+		Metrics root = new Metrics();
+		root.include("classifier", component);
+
+		ByteArrayOutputStream json = new ByteArrayOutputStream();
+		root.writeJson(new PrintStream(json, true, "UTF-8"), 42);
+		Assert.assertEquals(
+				"{\"timestamp\":42,\"histograms\":{\"classifier.fetch\":{\"count\":1,\"mean_us\":5.000,\"p50_us\":5,\"p90_us\":5,\"p99_us\":5,\"max_us\":5,\"total_us\":5}},"
+				+ "\"counters\":{\"classifier.done\":3,\"classifier.queue\":7}}",
+				json.toString("UTF-8").trim());
+
+		ByteArrayOutputStream csv = new ByteArrayOutputStream();
+		root.writeCsv(new PrintStream(csv, true, "UTF-8"), 42);
+		String[] rows = csv.toString("UTF-8").trim().split("\\R");
+		Assert.assertEquals(3, rows.length);
+		Assert.assertEquals("42,classifier.fetch,histogram,1,5.000,5,5,5,5,5", rows[0]);
+		Assert.assertEquals("42,classifier.done,counter,3,,,,,,", rows[1]);
+		Assert.assertEquals(Metrics.CSV_HEADER.split(",").length, rows[1].split(",", -1).length);
+	}
+
+}